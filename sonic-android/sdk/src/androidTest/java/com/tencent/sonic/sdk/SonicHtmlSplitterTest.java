@@ -0,0 +1,105 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.test.InstrumentationRegistry;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SonicHtmlSplitterTest {
+
+    private static final String[] PIECES = {
+            "<!--sonicdiff-a-->", "<!--sonicdiff-a-end-->", "<!--sonicdiff-b-->", "<!--sonicdiff-b-end-->",
+            "<!--sonicdiff-end-->", "<!--sonicdiffx-->", "<!--sonicdiff", "<title>", "</title>", "<title", "<", "-->",
+            "<div>", "</div>", "text", "\n", "声速", "😀"
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        if (!SonicEngine.isGetInstanceAllowed()) {
+            SonicEngine.createInstance(new SonicRuntimeImplTest(InstrumentationRegistry.getContext()), new SonicConfig.Builder().build());
+        }
+    }
+
+    private void assertSameSplit(String html, String charsetName, Random random) throws Exception {
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        assertTrue(SonicUtils.separateTemplateAndData("test", html, template, data));
+
+        byte[] bytes = html.getBytes(charsetName);
+        SonicHtmlSplitter splitter = new SonicHtmlSplitter(charsetName);
+        for (int offset = 0; offset < bytes.length; ) {
+            if (random.nextInt(4) == 0) {
+                splitter.write(bytes[offset++]);
+            } else {
+                int count = Math.min(bytes.length - offset, 1 + random.nextInt(5000));
+                splitter.write(bytes, offset, count);
+                offset += count;
+            }
+        }
+        splitter.finish();
+
+        assertEquals(template.toString(), splitter.getTemplate());
+        JSONObject expected = new JSONObject(data.toString());
+        Map<String, String> actual = splitter.getData();
+        assertEquals(expected.length(), actual.size());
+        Iterator<String> keys = expected.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            assertEquals(expected.getString(key), actual.get(key));
+        }
+        assertEquals(SonicUtils.getSHA1(html), splitter.getHtmlSha1());
+        if (template.length() > 0) {
+            assertEquals(SonicUtils.getSHA1(template.toString()), splitter.getTemplateSha1());
+        }
+    }
+
+    @Test
+    public void splitPage() throws Exception {
+        StringBuilder html = new StringBuilder("<html><head><title>新闻</title></head><body>");
+        for (int i = 0; i < 200; ++i) {
+            html.append("<div><!--sonicdiff-item").append(i).append("--><p>内容 ").append(i)
+                    .append("</p><!--sonicdiff-item").append(i).append("-end--></div>\n");
+        }
+        html.append("</body></html>");
+        assertSameSplit(html.toString(), "UTF-8", new Random(1));
+        assertSameSplit(html.toString(), "GBK", new Random(2));
+    }
+
+    @Test
+    public void splitPieces() throws Exception {
+        Random random = new Random(23);
+        for (int i = 0; i < 2000; ++i) {
+            StringBuilder html = new StringBuilder();
+            for (int j = random.nextInt(30); j > 0; --j) {
+                html.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            if (html.length() > 0) {
+                assertSameSplit(html.toString(), "UTF-8", random);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SonicSessionStreamTest {
+
+    private final byte[] page = new byte[256 * 1024];
+
+    private Boolean readComplete;
+
+    private SonicSegmentedBuffer closedOutputStream;
+
+    private final SonicSessionStream.SegmentedCallback callback = new SonicSessionStream.SegmentedCallback() {
+        @Override
+        public void onClose(boolean complete, SonicSegmentedBuffer outputStream) {
+            readComplete = complete;
+            closedOutputStream = outputStream;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        if (!SonicEngine.isGetInstanceAllowed()) {
+            SonicEngine.createInstance(new SonicRuntimeImplTest(InstrumentationRegistry.getContext()), new SonicConfig.Builder().build());
+        }
+        new Random(21).nextBytes(page);
+    }
+
+    private SonicSessionStream createStream(int memoryLength) {
+        SonicSegmentedBuffer memory = new SonicSegmentedBuffer();
+        memory.write(page, 0, memoryLength);
+        BufferedInputStream network = new BufferedInputStream(new ByteArrayInputStream(page, memoryLength, page.length - memoryLength));
+        return new SonicSessionStream(callback, memory, network);
+    }
+
+    @Test
+    public void readArrays() throws Exception {
+        SonicSessionStream stream = createStream(10000);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = stream.read(buffer, 0, buffer.length)) != -1) {
+            assertTrue(count > 0);
+            result.write(buffer, 0, count);
+        }
+        assertEquals(-1, stream.read(buffer, 0, buffer.length));
+        stream.close();
+
+        assertArrayEquals(page, result.toByteArray());
+        assertTrue(readComplete);
+        assertArrayEquals(page, closedOutputStream.toByteArray());
+    }
+
+    @Test
+    public void readBytesAndArrays() throws Exception {
+        SonicSessionStream stream = createStream(3);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        Random random = new Random(1);
+        while (true) {
+            if (random.nextBoolean()) {
+                int c = stream.read();
+                if (c == -1) {
+                    break;
+                }
+                result.write(c);
+            } else {
+                int offset = random.nextInt(10);
+                int count = stream.read(buffer, offset, random.nextInt(buffer.length - offset));
+                if (count == -1) {
+                    break;
+                }
+                result.write(buffer, offset, count);
+            }
+        }
+        stream.close();
+
+        assertArrayEquals(page, result.toByteArray());
+        assertTrue(readComplete);
+        assertArrayEquals(page, closedOutputStream.toByteArray());
+    }
+
+    @Test
+    public void closeBeforeEnd() throws Exception {
+        SonicSessionStream stream = createStream(100);
+        byte[] buffer = new byte[4096];
+        assertEquals(100, stream.read(buffer, 0, buffer.length));
+        int count = stream.read(buffer, 0, buffer.length);
+        assertTrue(count > 0);
+        stream.close();
+
+        assertFalse(readComplete);
+        assertArrayEquals(Arrays.copyOf(page, 100 + count), closedOutputStream.toByteArray());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void byteArrayCallback() throws Exception {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        memory.write(page, 0, 5000);
+        BufferedInputStream network = new BufferedInputStream(new ByteArrayInputStream(page, 5000, page.length - 5000));
+        final ByteArrayOutputStream[] closed = new ByteArrayOutputStream[1];
+        SonicSessionStream stream = new SonicSessionStream(new SonicSessionStream.Callback() {
+            @Override
+            public void onClose(boolean complete, ByteArrayOutputStream outputStream) {
+                readComplete = complete;
+                closed[0] = outputStream;
+            }
+        }, memory, network);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = stream.read(buffer, 0, buffer.length)) != -1) {
+            result.write(buffer, 0, count);
+        }
+        stream.close();
+
+        assertArrayEquals(page, result.toByteArray());
+        assertTrue(readComplete);
+        // the callback gets the stream it passed, holding the bytes read from network too
+        assertSame(memory, closed[0]);
+        assertArrayEquals(page, memory.toByteArray());
+    }
+
+    @Test
+    public void independentReaders() throws Exception {
+        SonicSegmentedBuffer buffer = new SonicSegmentedBuffer();
+        buffer.write(page, 0, 100000);
+        InputStream first = buffer.newInputStream();
+        buffer.write(page, 100000, page.length - 100000);
+        InputStream second = buffer.newInputStream();
+
+        byte[] bytes = new byte[page.length];
+        assertEquals(100, second.read(bytes, 0, 100));
+        assertEquals(100000, first.read(bytes, 0, bytes.length));
+        assertEquals(-1, first.read());
+        assertArrayEquals(Arrays.copyOf(page, 100000), Arrays.copyOf(bytes, 100000));
+
+        int offset = 100;
+        int count;
+        while ((count = second.read(bytes, offset, bytes.length - offset)) != -1) {
+            offset += count;
+        }
+        assertArrayEquals(page, bytes);
+        assertEquals(page.length, buffer.size());
+    }
+
+    @Test
+    public void decodeAcrossSegments() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; ++i) {
+            builder.append("<p>声速").append(i).append("😀</p>");
+        }
+        String html = builder.toString();
+        SonicSegmentedBuffer buffer = new SonicSegmentedBuffer();
+        buffer.write(html.getBytes("UTF-8"));
+        assertEquals(html, buffer.toString("UTF-8"));
+    }
+}
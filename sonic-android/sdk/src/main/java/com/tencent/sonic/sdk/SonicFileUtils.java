@@ -44,6 +44,11 @@ public class SonicFileUtils {
      */
     private static final String TEMPLATE_EXT = ".tpl";
 
+    /**
+     * Template index extensions, the index is saved beside the template
+     */
+    private static final String TEMPLATE_INDEX_EXT = ".tpl.idx";
+
     /**
      * Data extensions
      */
@@ -105,6 +110,15 @@ public class SonicFileUtils {
         return getSonicCacheDirPath() + sessionId + TEMPLATE_EXT;
     }
 
+    /**
+     *
+     * @param sessionId session id
+     * @return The path of the sonic template index file, see {@link SonicTemplateIndex}.
+     */
+    static String getSonicTemplateIndexPath(String sessionId) {
+        return getSonicCacheDirPath() + sessionId + TEMPLATE_INDEX_EXT;
+    }
+
     /**
      *
      * @param sessionId session id
@@ -167,6 +181,11 @@ public class SonicFileUtils {
             deleteSuccess &= templateFile.delete();
         }
 
+        File templateIndexFile = new File(getSonicTemplateIndexPath(sessionId));
+        if (templateIndexFile.exists()) {
+            deleteSuccess &= templateIndexFile.delete();
+        }
+
         File dataFile = new File(getSonicDataPath(sessionId));
         if (dataFile.exists()) {
             deleteSuccess &= dataFile.delete();
@@ -0,0 +1,601 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Separates html into template and data while its bytes are read, the result is the same as
+ * {@link SonicUtils#separateTemplateAndData(String, String, StringBuilder, StringBuilder)} on the whole html.
+ * <p>
+ * Bytes are decoded and scanned once as they come, sha1 of the html and of the template are computed
+ * on the way, so nothing is left to do on the whole html once it has been read.
+ * Sha1 is computed over the UTF-8 bytes of the decoded text, like {@link SonicUtils#getSHA1(String)}
+ * does with the default charset of Android.
+ */
+class SonicHtmlSplitter {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Both the beginning and the end of a block start with it, followed by an optional '-', a key and
+     * "-->" or "-end-->"
+     */
+    private static final String TAG_PREFIX = "<!--sonicdiff";
+
+    /**
+     * The beginning of the key in a block, a block beginning without it has the key "null"
+     */
+    private static final String KEY_PREFIX = "<!--sonicdiff-";
+
+    private static final String TAG_END = "-->";
+
+    private static final String BLOCK_END = "-end-->";
+
+    private static final String TITLE_OPEN = "<title>";
+
+    private static final String TITLE_CLOSE = "</title>";
+
+    private static final String TITLE_KEY = "{title}";
+
+    /**
+     * Decoder of the bytes written, null when the html is given as a String to {@link #split}
+     */
+    private final CharsetDecoder decoder;
+
+    private final ByteBuffer bytes;
+
+    private final CharBuffer chars;
+
+    private final Utf8Digest htmlDigest;
+
+    private final Utf8Digest templateDigest;
+
+    /**
+     * A tag being matched, it holds no '<' but the first char so a failed tag is only text
+     */
+    private final StringBuilder tag = new StringBuilder(64);
+
+    /**
+     * The block being read, from its beginning tag, null when out of blocks
+     */
+    private StringBuilder block;
+
+    /**
+     * Length of the beginning tag of <code>block</code>
+     */
+    private int blockTagLength;
+
+    private int blockCount;
+
+    private final StringBuilder template;
+
+    private final Map<String, String> data = new LinkedHashMap<String, String>();
+
+    /**
+     * Chars of the template matching the beginning of {@link #TITLE_OPEN}, or of {@link #TITLE_CLOSE}
+     * once <code>title</code> is not null
+     */
+    private int titleMatched;
+
+    /**
+     * The title being read, from its open tag
+     */
+    private StringBuilder title;
+
+    /**
+     * Length of the template when the title starts
+     */
+    private int titleStart;
+
+    /**
+     * The whole title once it has been read
+     */
+    private String titleData;
+
+    private boolean finished;
+
+    /**
+     * @param charsetName charset of the html
+     * @throws IllegalArgumentException if the charset is not supported
+     */
+    SonicHtmlSplitter(String charsetName) {
+        this(Charset.forName(charsetName).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE), new StringBuilder(BUFFER_SIZE));
+    }
+
+    /**
+     * @param decoder  decoder of the bytes written, null if chars are scanned without sha1
+     * @param template receives the template
+     */
+    private SonicHtmlSplitter(CharsetDecoder decoder, StringBuilder template) {
+        this.decoder = decoder;
+        this.template = template;
+        if (null != decoder) {
+            bytes = ByteBuffer.allocate(BUFFER_SIZE);
+            chars = CharBuffer.allocate(BUFFER_SIZE);
+            htmlDigest = new Utf8Digest();
+            templateDigest = new Utf8Digest();
+        } else {
+            bytes = null;
+            chars = null;
+            htmlDigest = null;
+            templateDigest = null;
+        }
+    }
+
+    void write(int b) {
+        if (!bytes.hasRemaining()) {
+            decode(false);
+        }
+        bytes.put((byte) b);
+    }
+
+    void write(byte[] buffer, int offset, int count) {
+        while (count > 0) {
+            int length = Math.min(count, bytes.remaining());
+            bytes.put(buffer, offset, length);
+            offset += length;
+            count -= length;
+            decode(false);
+        }
+    }
+
+    /**
+     * Decodes the bytes written at the end of html, then template, data and sha1 are ready.
+     */
+    void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (null != decoder) {
+            decode(true);
+            while (decoder.flush(chars).isOverflow()) {
+                scanChars();
+            }
+            scanChars();
+        }
+
+        // Neither an unfinished tag nor an unfinished block can be matched any more, they are text of template
+        if (null != block) {
+            block.append(tag);
+            appendTemplate(block);
+            block = null;
+        } else {
+            appendTemplate(tag);
+        }
+        tag.setLength(0);
+
+        if (null != title) {
+            int end = 0;
+            if (titleStart < TITLE_OPEN.length()) {
+                // a title without its close tag ends where its open tag would end from the beginning of template
+                end = TITLE_OPEN.length() - titleStart;
+                titleData = title.substring(0, end);
+                appendToTemplate(TITLE_KEY, 0, TITLE_KEY.length());
+            }
+            appendToTemplate(title, end, title.length());
+            title = null;
+        } else if (null == titleData) {
+            appendToTemplate(TITLE_OPEN, 0, titleMatched);
+        }
+
+        if (blockCount > 0 && null != titleData) {
+            data.put(TITLE_KEY, titleData);
+        }
+    }
+
+    /**
+     * @return the template, empty if html has no block
+     */
+    String getTemplate() {
+        return blockCount > 0 ? template.toString() : "";
+    }
+
+    /**
+     * @return the data of each key in html order, empty if html has no block
+     */
+    Map<String, String> getData() {
+        return blockCount > 0 ? data : new LinkedHashMap<String, String>();
+    }
+
+    String getHtmlSha1() {
+        return htmlDigest.getSha1();
+    }
+
+    String getTemplateSha1() {
+        return templateDigest.getSha1();
+    }
+
+    /**
+     * Separates the whole html in one pass over it, its chars go through the same scan as the bytes
+     * written to a {@link SonicHtmlSplitter}, without decoding nor sha1.
+     *
+     * @param html     Html content
+     * @param template StringBuilder to save template content, left empty if html has no block
+     * @param data     StringBuilder to save data content as a JSONObject String
+     */
+    static void split(String html, StringBuilder template, StringBuilder data) {
+        int templateLength = template.length();
+        SonicHtmlSplitter splitter = new SonicHtmlSplitter(null, template);
+        for (int i = 0, length = html.length(); i < length; ++i) {
+            splitter.scan(html.charAt(i));
+        }
+        splitter.finish();
+        if (0 == splitter.blockCount) {
+            template.setLength(templateLength);
+        }
+
+        data.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : splitter.getData().entrySet()) {
+            if (!first) {
+                data.append(',');
+            }
+            first = false;
+            String key = entry.getKey();
+            appendJsonString(data, key, 0, key.length());
+            data.append(':');
+            String value = entry.getValue();
+            appendJsonString(data, value, 0, value.length());
+        }
+        data.append('}');
+    }
+
+    /**
+     * Appends text as a JSON string, escaped as {@link org.json.JSONObject} reads it back
+     */
+    private static void appendJsonString(StringBuilder out, CharSequence text, int start, int end) {
+        out.append('"');
+        int unescaped = start;
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            out.append(text, unescaped, i);
+            unescaped = i + 1;
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    break;
+            }
+        }
+        out.append(text, unescaped, end).append('"');
+    }
+
+    private void decode(boolean endOfInput) {
+        bytes.flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            scanChars();
+        } while (result.isOverflow());
+        bytes.compact();
+    }
+
+    private void scanChars() {
+        char[] array = chars.array();
+        for (int i = 0, length = chars.position(); i < length; ++i) {
+            char c = array[i];
+            htmlDigest.update(c);
+            scan(c);
+        }
+        chars.clear();
+    }
+
+    private void scan(char c) {
+        if (null == block) {
+            scanText(c);
+        } else {
+            scanBlock(c);
+        }
+    }
+
+    private void scanText(char c) {
+        int matched = tag.length();
+        if (matched == 0) {
+            if (c == '<') {
+                tag.append(c);
+            } else {
+                appendTemplate(c);
+            }
+        } else if (matched < TAG_PREFIX.length() ? c == TAG_PREFIX.charAt(matched) : isTagChar(c)) {
+            tag.append(c);
+        } else if (matched >= TAG_PREFIX.length() && c == '>') {
+            tag.append(c);
+            if (isTag(tag, 0, tag.length(), TAG_END)) {
+                block = new StringBuilder(tag.length() + BUFFER_SIZE).append(tag);
+                blockTagLength = tag.length();
+            } else {
+                appendTemplate(tag);
+            }
+            tag.setLength(0);
+        } else {
+            appendTemplate(tag);
+            tag.setLength(0);
+            scanText(c);
+        }
+    }
+
+    private void scanBlock(char c) {
+        int matched = tag.length();
+        if (matched == 0) {
+            // data of a block has at least one char, so its end tag can not follow its beginning tag
+            if (c == '<' && block.length() > blockTagLength) {
+                tag.append(c);
+            } else {
+                block.append(c);
+            }
+        } else if (matched < TAG_PREFIX.length() ? c == TAG_PREFIX.charAt(matched) : isTagChar(c)) {
+            tag.append(c);
+        } else if (matched >= TAG_PREFIX.length() && c == '>') {
+            tag.append(c);
+            block.append(tag);
+            boolean blockEnd = isTag(tag, 0, tag.length(), BLOCK_END);
+            tag.setLength(0);
+            if (blockEnd) {
+                endBlock();
+            }
+        } else {
+            block.append(tag);
+            tag.setLength(0);
+            scanBlock(c);
+        }
+    }
+
+    /**
+     * @return true for '-' and the chars of <code>\w</code> in the regular expression of Android, which is Unicode aware:
+     * letters, letter numbers, marks, decimal digits, connector punctuation and the zero width joiners. Supplementary chars are never part of a key,
+     * a key holding one is left in the template.
+     */
+    private static boolean isTagChar(char c) {
+        if (c < 0x80) {
+            return c == '-' || c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+        switch (Character.getType(c)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+            case Character.LETTER_NUMBER:
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+            default:
+                // zero width non-joiner and joiner
+                return c == '\u200c' || c == '\u200d';
+        }
+    }
+
+    /**
+     * @return true if text from start to end is {@link #TAG_PREFIX}, an optional '-', a key without '-' and suffix
+     */
+    private static boolean isTag(CharSequence text, int start, int end, String suffix) {
+        int keyEnd = end - suffix.length();
+        if (keyEnd < start + TAG_PREFIX.length()) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); ++i) {
+            if (text.charAt(keyEnd + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        int keyStart = start + TAG_PREFIX.length();
+        if (keyStart < keyEnd && text.charAt(keyStart) == '-') {
+            ++keyStart;
+        }
+        for (int i = keyStart; i < keyEnd; ++i) {
+            if (text.charAt(i) == '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The key is taken between {@link #KEY_PREFIX} and the first {@link #TAG_END} of the beginning tag,
+     * "null" if the tag does not start with {@link #KEY_PREFIX} or the key is empty.
+     */
+    private static String getKey(CharSequence text, int start, int tagEnd) {
+        int keyStart = start + KEY_PREFIX.length();
+        if (text.charAt(keyStart - 1) != '-') {
+            return "null";
+        }
+        for (int i = keyStart - 1; i + TAG_END.length() <= tagEnd; ++i) {
+            if (text.charAt(i) == '-' && text.charAt(i + 1) == '-' && text.charAt(i + 2) == '>') {
+                return keyStart < i ? text.subSequence(keyStart, i).toString() : "null";
+            }
+        }
+        return "null";
+    }
+
+    private void endBlock() {
+        String key = "{" + getKey(block, 0, blockTagLength) + "}";
+        data.put(key, block.toString());
+        block = null;
+        ++blockCount;
+        appendTemplate(key);
+    }
+
+    private void appendTemplate(CharSequence text) {
+        appendTemplate(text, 0, text.length());
+    }
+
+    private void appendTemplate(CharSequence text, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            appendTemplate(text.charAt(i));
+        }
+    }
+
+    /**
+     * Template goes through here, where its first title is replaced with {@link #TITLE_KEY}
+     */
+    private void appendTemplate(char c) {
+        if (null != titleData) {
+            appendToTemplate(c);
+        } else if (null == title) {
+            if (c == TITLE_OPEN.charAt(titleMatched)) {
+                if (++titleMatched == TITLE_OPEN.length()) {
+                    title = new StringBuilder(TITLE_OPEN);
+                    titleStart = template.length();
+                    titleMatched = 0;
+                }
+            } else {
+                appendToTemplate(TITLE_OPEN, 0, titleMatched);
+                titleMatched = 0;
+                if (c == '<') {
+                    titleMatched = 1;
+                } else {
+                    appendToTemplate(c);
+                }
+            }
+        } else {
+            title.append(c);
+            if (c == TITLE_CLOSE.charAt(titleMatched)) {
+                if (++titleMatched == TITLE_CLOSE.length()) {
+                    titleData = title.toString();
+                    title = null;
+                    titleMatched = 0;
+                    appendToTemplate(TITLE_KEY, 0, TITLE_KEY.length());
+                }
+            } else {
+                titleMatched = c == '<' ? 1 : 0;
+            }
+        }
+    }
+
+    private void appendToTemplate(CharSequence text, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            appendToTemplate(text.charAt(i));
+        }
+    }
+
+    private void appendToTemplate(char c) {
+        template.append(c);
+        if (null != templateDigest) {
+            templateDigest.update(c);
+        }
+    }
+
+    /**
+     * SHA1 of text fed char by char, encoded in UTF-8 as <code>String.getBytes()</code> does,
+     * with '?' for a surrogate out of a pair
+     */
+    private static class Utf8Digest {
+
+        private final MessageDigest digest;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private int count;
+
+        private char highSurrogate;
+
+        private boolean empty = true;
+
+        private String sha1;
+
+        Utf8Digest() {
+            try {
+                digest = MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(char c) {
+            empty = false;
+            if (count > BUFFER_SIZE - 4) {
+                digest.update(buffer, 0, count);
+                count = 0;
+            }
+            if (0 != highSurrogate) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                    return;
+                }
+                buffer[count++] = '?';
+            }
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        /**
+         * @return sha1 of the text, empty like {@link SonicUtils#getSHA1(String)} if nothing was fed,
+         * nothing can be fed after
+         */
+        String getSha1() {
+            if (null == sha1) {
+                if (empty) {
+                    sha1 = "";
+                } else {
+                    if (0 != highSurrogate) {
+                        buffer[count++] = '?';
+                    }
+                    digest.update(buffer, 0, count);
+                    sha1 = SonicUtils.toHexString(digest.digest());
+                }
+            }
+            return sha1;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only byte buffer made of segments, used instead of <code>ByteArrayOutputStream</code>
+ * for the bytes read from network.
+ * <p>
+ * Written bytes are never moved or changed, so the buffer does not copy them when it grows and
+ * any number of streams from {@link #newInputStream()} can read them without copying them first.
+ */
+public class SonicSegmentedBuffer extends OutputStream {
+
+    /**
+     * Size of the first segment
+     */
+    private static final int MIN_SEGMENT_SIZE = 4 * 1024;
+
+    /**
+     * Segments double in size up to this one, so small resources waste little and large pages need few segments
+     */
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Full segments and the last one being filled
+     */
+    private List<byte[]> segments = new ArrayList<byte[]>();
+
+    /**
+     * Count of bytes written in the last segment
+     */
+    private int lastCount;
+
+    /**
+     * Count of bytes written
+     */
+    private int size;
+
+    @Override
+    public synchronized void write(int b) {
+        byte[] segment = lastSegment();
+        segment[lastCount++] = (byte) b;
+        ++size;
+    }
+
+    @Override
+    public synchronized void write(@NonNull byte[] buffer, int byteOffset, int byteCount) {
+        if ((byteOffset | byteCount) < 0 || byteOffset > buffer.length || buffer.length - byteOffset < byteCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (byteCount > 0) {
+            byte[] segment = lastSegment();
+            int count = Math.min(byteCount, segment.length - lastCount);
+            System.arraycopy(buffer, byteOffset, segment, lastCount, count);
+            lastCount += count;
+            size += count;
+            byteOffset += count;
+            byteCount -= count;
+        }
+    }
+
+    /**
+     * @return the last segment, a new one if it is full
+     */
+    private byte[] lastSegment() {
+        int segmentCount = segments.size();
+        if (segmentCount > 0) {
+            byte[] segment = segments.get(segmentCount - 1);
+            if (lastCount < segment.length) {
+                return segment;
+            }
+        }
+        byte[] segment = new byte[segmentCount == 0 ? MIN_SEGMENT_SIZE
+                : Math.min(MAX_SEGMENT_SIZE, segments.get(segmentCount - 1).length * 2)];
+        segments.add(segment);
+        lastCount = 0;
+        return segment;
+    }
+
+    /**
+     * @return count of bytes written
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Discards the written bytes, streams opened before keep reading them.
+     */
+    public synchronized void reset() {
+        segments = new ArrayList<byte[]>();
+        lastCount = 0;
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the written bytes, only for callers which need them in one array
+     */
+    public synchronized byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (byte[] segment : segments) {
+            int count = Math.min(segment.length, size - offset);
+            System.arraycopy(segment, 0, bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes the written bytes segment by segment, without gathering them in one array first.
+     *
+     * @param charsetName the name of a supported charset
+     * @return the written bytes as a string
+     * @throws IOException if the charset is not supported
+     */
+    public String toString(String charsetName) throws IOException {
+        InputStreamReader reader = new InputStreamReader(newInputStream(), charsetName);
+        StringBuilder builder = new StringBuilder(size());
+        char[] buffer = new char[4096];
+        int count;
+        while (-1 != (count = reader.read(buffer))) {
+            builder.append(buffer, 0, count);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Opens a stream over the bytes written so far, bytes written later are not read by it.
+     * Each stream has its own position, so several of them can read the buffer at the same time.
+     *
+     * @return a stream reading the bytes in place
+     */
+    public synchronized InputStream newInputStream() {
+        return new SegmentInputStream(segments.toArray(new byte[segments.size()][]), size);
+    }
+
+    private static class SegmentInputStream extends InputStream {
+
+        /**
+         * Segments when the stream was opened, their bytes before <code>end</code> never change
+         */
+        private final byte[][] segments;
+
+        private final int end;
+
+        private int position;
+
+        private int segmentIndex;
+
+        private int segmentOffset;
+
+        SegmentInputStream(byte[][] segments, int end) {
+            this.segments = segments;
+            this.end = end;
+        }
+
+        @Override
+        public synchronized int read() {
+            if (position >= end) {
+                return -1;
+            }
+            if (segmentOffset == segments[segmentIndex].length) {
+                ++segmentIndex;
+                segmentOffset = 0;
+            }
+            ++position;
+            return segments[segmentIndex][segmentOffset++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(@NonNull byte[] buffer, int byteOffset, int byteCount) {
+            if ((byteOffset | byteCount) < 0 || byteOffset > buffer.length || buffer.length - byteOffset < byteCount) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (byteCount == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int total = 0;
+            byteCount = Math.min(byteCount, end - position);
+            while (total < byteCount) {
+                if (segmentOffset == segments[segmentIndex].length) {
+                    ++segmentIndex;
+                    segmentOffset = 0;
+                }
+                int count = Math.min(byteCount - total, segments[segmentIndex].length - segmentOffset);
+                System.arraycopy(segments[segmentIndex], segmentOffset, buffer, byteOffset + total, count);
+                segmentOffset += count;
+                total += count;
+            }
+            position += total;
+            return total;
+        }
+
+        @Override
+        public synchronized int available() {
+            return end - position;
+        }
+    }
+}
@@ -17,10 +17,11 @@ import android.content.Intent;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
@@ -43,13 +44,13 @@ import static com.tencent.sonic.sdk.SonicSessionConnection.CUSTOM_HEAD_FILED_TEM
  * Instances of this class can be used to read server response from SonicSessionConnection.
  * If this request support Local Sonic Server, it will separate html into template and data file.
  */
-public class SonicServer implements SonicSessionStream.Callback {
+public class SonicServer implements SonicSessionStream.SegmentedCallback {
     public static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicServer";
 
     /**
-     * A session connection implement.
+     * A session connection implement, replaced when sonic asks again for the whole page.
      */
-    protected final SonicSessionConnection connectionImpl;
+    protected SonicSessionConnection connectionImpl;
 
     protected String serverRsp;
 
@@ -68,7 +69,16 @@ public class SonicServer implements SonicSessionStream.Callback {
      *  {@code com.tencent.sonic.sdk.SonicSessionConfig}
      */
     protected Map<String, List<String>> cachedResponseHeaders;
-    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    /**
+     * Bytes read from network, shared with the {@link SonicSessionStream} reading them again
+     */
+    private final SonicSegmentedBuffer outputStream = new SonicSegmentedBuffer();
+
+    /**
+     * Separates the html while {@link SonicSessionStream} is read, null if no stream needs it
+     */
+    private SonicHtmlSplitter splitter;
 
     public SonicServer(SonicSession session, Intent requestIntent) {
         this.session = session;
@@ -126,6 +136,15 @@ public class SonicServer implements SonicSessionStream.Callback {
             return SonicConstants.ERROR_CODE_SUCCESS;
         }
 
+        // When server sends the changes of the template, rebuild the whole page from the local template
+        if ("true".equalsIgnoreCase(getResponseHeaderField(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_DIFF))
+                && !applyTemplateDiff()) {
+            if ("false".equals(requestIntent.getStringExtra(SonicSessionConnection.CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DIFF))) {
+                return SonicConstants.ERROR_CODE_SERVER_DATA_EXCEPTION;
+            }
+            return reconnectWithoutTemplateDiff();
+        }
+
         if (isSonicResponse() || !session.config.SUPPORT_LOCAL_SERVER) {
             return SonicConstants.ERROR_CODE_SUCCESS; // real sonic response or not support local server
         }
@@ -186,6 +205,53 @@ public class SonicServer implements SonicSessionStream.Callback {
         return SonicConstants.ERROR_CODE_SUCCESS;
     }
 
+    /**
+     * Rebuild the page from the local template, the template diff and the data sent by server,
+     * then the page is read as if server had sent it.
+     *
+     * @return false if the page can not be rebuilt or does not match its sha1
+     */
+    private boolean applyTemplateDiff() {
+        readServerResponse(null);
+        if (TextUtils.isEmpty(serverRsp)) {
+            return false;
+        }
+        try {
+            File templateFile = new File(SonicFileUtils.getSonicTemplatePath(session.id));
+            String localTemplate = templateFile.exists() ? SonicFileUtils.readFile(templateFile) : null;
+            JSONObject serverJson = new JSONObject(serverRsp);
+            String newTemplate = SonicUtils.applyTemplateDiff(localTemplate, new JSONArray(serverJson.optString("diff")));
+            String htmlString = SonicUtils.buildHtml(newTemplate, serverJson.optJSONObject("data"), serverRsp.length());
+            if (TextUtils.isEmpty(htmlString) || !serverJson.optString("html-sha1").equalsIgnoreCase(SonicUtils.getSHA1(htmlString))) {
+                SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") applyTemplateDiff error: can not rebuild html.");
+                return false;
+            }
+            outputStream.reset();
+            outputStream.write(htmlString.getBytes(session.getCharsetFromHeaders()));
+            serverRsp = htmlString;
+            return true;
+        } catch (Exception e) {
+            SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") applyTemplateDiff error:" + e.getMessage() + ".");
+            return false;
+        }
+    }
+
+    /**
+     * Connect again without accepting template diff, so that server sends the whole page.
+     *
+     * @return Returns the response code of connection
+     */
+    private int reconnectWithoutTemplateDiff() {
+        SonicUtils.log(TAG, Log.INFO, "session(" + session.sId + ") template diff is not applied, ask for the whole page.");
+        disconnect();
+        serverRsp = null;
+        outputStream.reset();
+        cachedResponseHeaders = null;
+        requestIntent.putExtra(SonicSessionConnection.CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DIFF, "false");
+        connectionImpl = SonicSessionConnectionInterceptor.getSonicSessionConnection(session, requestIntent);
+        return connect();
+    }
+
     private boolean isSonicResponse() {
         Map<String, List<String>> headersFromServer = connectionImpl.getResponseHeaderFields();
         if (null != headersFromServer && !headersFromServer.isEmpty()) {
@@ -302,7 +368,7 @@ public class SonicServer implements SonicSessionStream.Callback {
     }
 
     /**
-     * Read all of data from {@link SonicSessionConnection#getResponseStream()} into byte array output stream {@code outputStream} until
+     * Read all of data from {@link SonicSessionConnection#getResponseStream()} into the segmented buffer {@code outputStream} until
      * {@code breakCondition} is true when {@code breakCondition} is not null.
      * Then return a {@code SonicSessionStream} obtains input bytes
      * from  {@code outputStream} and a {@code netStream} when there is unread data from network.
@@ -314,7 +380,17 @@ public class SonicServer implements SonicSessionStream.Callback {
     public synchronized InputStream getResponseStream(AtomicBoolean breakConditions) {
         if (readServerResponse(breakConditions)) {
             BufferedInputStream netStream = !TextUtils.isEmpty(serverRsp) ? null : connectionImpl.getResponseStream();
-            return new SonicSessionStream(this, outputStream, netStream);
+            splitter = null;
+            String cacheOffline = getResponseHeaderField(CUSTOM_HEAD_FILED_CACHE_OFFLINE);
+            if (TextUtils.isEmpty(templateString)
+                    && SonicUtils.needSaveData(session.config.SUPPORT_CACHE_CONTROL, cacheOffline, getResponseHeaderFields())) {
+                try {
+                    splitter = new SonicHtmlSplitter(session.getCharsetFromHeaders());
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") create splitter error:" + e.getMessage() + ".");
+                }
+            }
+            return new SonicSessionStream(this, outputStream, netStream, splitter);
         } else {
             return null;
         }
@@ -333,7 +409,7 @@ public class SonicServer implements SonicSessionStream.Callback {
 
     /**
      *  Return current cached server response data.
-     *  If @{code readUntilEnd} is true and current cached response data is empty, read all of data from {@link SonicSessionConnection#getResponseStream()} into byte array output stream {@code outputStream}.
+     *  If @{code readUntilEnd} is true and current cached response data is empty, read all of data from {@link SonicSessionConnection#getResponseStream()} into the segmented buffer {@code outputStream}.
      *  And then this method convert outputStream into response string {@code serverRsp}. <br>
      * <p><b>Note: This method blocks until the end of the input stream has been reached or {@code breakCondition} has been reset to true.</b></p>
      *
@@ -372,7 +448,7 @@ public class SonicServer implements SonicSessionStream.Callback {
     }
 
     /**
-     * Read all of data from {@link SonicSessionConnection#getResponseStream()} into byte array output stream {@code outputStream} until
+     * Read all of data from {@link SonicSessionConnection#getResponseStream()} into the segmented buffer {@code outputStream} until
      * {@code breakCondition} is true if {@code breakCondition} is not null.
      *  And then this method convert outputStream into response string {@code serverRsp} at the end of response stream.
      *
@@ -411,52 +487,91 @@ public class SonicServer implements SonicSessionStream.Callback {
         if (!TextUtils.isEmpty(serverRsp)) {
             StringBuilder templateStringBuilder = new StringBuilder();
             StringBuilder dataStringBuilder = new StringBuilder();
-            String data = null;
+            JSONObject data = null;
             if (SonicUtils.separateTemplateAndData(session.id, serverRsp, templateStringBuilder, dataStringBuilder)) {
                 templateString = templateStringBuilder.toString();
-                data = dataStringBuilder.toString();
+                try {
+                    data = new JSONObject(dataStringBuilder.toString());
+                } catch (Exception e) {
+                    SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") parse server response data error:" + e.getMessage() + ".");
+                }
             }
+            onTemplateAndDataSeparated(data, null, null);
+        }
+    }
 
-            String eTag = getResponseHeaderField(getCustomHeadFieldEtagKey());
-            String templateTag = getResponseHeaderField(CUSTOM_HEAD_FILED_TEMPLATE_TAG);
-            String newHtmlSha1 = null;
-            if (TextUtils.isEmpty(eTag)) { // When eTag is empty, fill eTag with Sha1
-                newHtmlSha1 = eTag = SonicUtils.getSHA1(serverRsp);
-                addResponseHeaderFields(getCustomHeadFieldEtagKey(), eTag);
-                addResponseHeaderFields(CUSTOM_HEAD_FILED_HTML_SHA1, newHtmlSha1);
-            }
+    /**
+     * Fill the headers and {@code dataString} once {@code serverRsp} is separated into {@code templateString} and data.
+     *
+     * @param data         The data separated, null if none
+     * @param htmlSha1     Sha1 of {@code serverRsp}, null to compute it when needed
+     * @param templateSha1 Sha1 of {@code templateString}, null to compute it when needed
+     */
+    private void onTemplateAndDataSeparated(JSONObject data, String htmlSha1, String templateSha1) {
+        String eTag = getResponseHeaderField(getCustomHeadFieldEtagKey());
+        String templateTag = getResponseHeaderField(CUSTOM_HEAD_FILED_TEMPLATE_TAG);
+        String newHtmlSha1 = null;
+        if (TextUtils.isEmpty(eTag)) { // When eTag is empty, fill eTag with Sha1
+            newHtmlSha1 = eTag = null != htmlSha1 ? htmlSha1 : SonicUtils.getSHA1(serverRsp);
+            addResponseHeaderFields(getCustomHeadFieldEtagKey(), eTag);
+            addResponseHeaderFields(CUSTOM_HEAD_FILED_HTML_SHA1, newHtmlSha1);
+        }
 
-            if (TextUtils.isEmpty(templateString)) { // The same with htmlString
-                templateString = serverRsp;
-                addResponseHeaderFields(CUSTOM_HEAD_FILED_TEMPLATE_TAG, eTag);
-            } else if (TextUtils.isEmpty(templateTag)){ // When eTag is empty, fill templateTag with Sha1 of templateString
-                addResponseHeaderFields(CUSTOM_HEAD_FILED_TEMPLATE_TAG, SonicUtils.getSHA1(templateString));
-            }
+        if (TextUtils.isEmpty(templateString)) { // The same with htmlString
+            templateString = serverRsp;
+            addResponseHeaderFields(CUSTOM_HEAD_FILED_TEMPLATE_TAG, eTag);
+        } else if (TextUtils.isEmpty(templateTag)){ // When eTag is empty, fill templateTag with Sha1 of templateString
+            addResponseHeaderFields(CUSTOM_HEAD_FILED_TEMPLATE_TAG, null != templateSha1 ? templateSha1 : SonicUtils.getSHA1(templateString));
+        }
 
-            if (!TextUtils.isEmpty(data)) {
-                try {
-                    JSONObject object = new JSONObject();
-                    object.put("data", new JSONObject(data));
-                    if (TextUtils.isEmpty(newHtmlSha1)) {
-                        newHtmlSha1 = SonicUtils.getSHA1(serverRsp);
-                        addResponseHeaderFields(CUSTOM_HEAD_FILED_HTML_SHA1, newHtmlSha1);
-                    }
-                    object.put("html-sha1", getResponseHeaderField(CUSTOM_HEAD_FILED_HTML_SHA1));
-                    object.put("template-tag", getResponseHeaderField(CUSTOM_HEAD_FILED_TEMPLATE_TAG));
-                    dataString = object.toString();
-                } catch (Exception e) {
-                    SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") parse server response data error:" + e.getMessage() + ".");
+        if (null != data) {
+            try {
+                JSONObject object = new JSONObject();
+                object.put("data", data);
+                if (TextUtils.isEmpty(newHtmlSha1)) {
+                    newHtmlSha1 = null != htmlSha1 ? htmlSha1 : SonicUtils.getSHA1(serverRsp);
+                    addResponseHeaderFields(CUSTOM_HEAD_FILED_HTML_SHA1, newHtmlSha1);
                 }
+                object.put("html-sha1", getResponseHeaderField(CUSTOM_HEAD_FILED_HTML_SHA1));
+                object.put("template-tag", getResponseHeaderField(CUSTOM_HEAD_FILED_TEMPLATE_TAG));
+                dataString = object.toString();
+            } catch (Exception e) {
+                SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") parse server response data error:" + e.getMessage() + ".");
             }
         }
     }
 
+    /**
+     * Take the template and data separated while {@link SonicSessionStream} was read, the same as
+     * {@link #separateTemplateAndData()} would separate from {@code serverRsp}.
+     */
+    private synchronized void separateTemplateAndData(SonicHtmlSplitter splitter) {
+        if (TextUtils.isEmpty(serverRsp) || !TextUtils.isEmpty(templateString)) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        splitter.finish();
+        templateString = splitter.getTemplate();
+        onTemplateAndDataSeparated(new JSONObject(splitter.getData()), splitter.getHtmlSha1(), splitter.getTemplateSha1());
+        if (SonicUtils.shouldLog(Log.DEBUG)) {
+            SonicUtils.log(TAG, Log.DEBUG, "session(" + session.sId + ") separate template and data while reading, finish cost " + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+    }
+
+    /**
+     * @return True if {@code templateString} and {@code dataString} are ready, so that they can be saved without
+     * separating {@code serverRsp} again
+     */
+    synchronized boolean isTemplateAndDataSeparated() {
+        return !TextUtils.isEmpty(templateString);
+    }
+
     public String getCustomHeadFieldEtagKey() {
         return connectionImpl != null ? connectionImpl.getCustomHeadFieldEtagKey() : SonicSessionConnection.CUSTOM_HEAD_FILED_ETAG;
     }
 
     @Override
-    public void onClose(boolean readComplete, ByteArrayOutputStream outputStream) {
+    public void onClose(boolean readComplete, SonicSegmentedBuffer outputStream) {
         if (TextUtils.isEmpty(serverRsp) && readComplete && outputStream != null) {
             try {
                 serverRsp = outputStream.toString(session.getCharsetFromHeaders());
@@ -465,6 +580,11 @@ public class SonicServer implements SonicSessionStream.Callback {
                 SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + "), onClose error:" + e.getMessage() + ".");
             }
         }
+        SonicHtmlSplitter splitter = this.splitter;
+        this.splitter = null;
+        if (readComplete && null != splitter) {
+            separateTemplateAndData(splitter);
+        }
         session.onServerClosed(this, readComplete);
     }
 
@@ -989,7 +989,8 @@ public abstract class SonicSession implements Handler.Callback {
                 Message message = Message.obtain();
                 message.what = FILE_THREAD_SAVE_CACHE_ON_SERVER_CLOSE;
                 message.obj = sonicServer;
-                fileHandler.sendMessageDelayed(message, 1500);
+                // the html has been separated while it was read, nothing is left but writing files
+                fileHandler.sendMessageDelayed(message, sonicServer.isTemplateAndDataSeparated() ? 0 : 1500);
                 return;
             }
             SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") onClose:offline->" + cacheOffline + " , so do not need cache to file.");
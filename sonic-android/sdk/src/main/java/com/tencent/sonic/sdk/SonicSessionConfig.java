@@ -50,6 +50,14 @@ public class SonicSessionConfig {
      */
     boolean ACCEPT_DIFF_DATA = true;
 
+    /**
+     * Accept template diff or not, if accept template diff server will return
+     * only the changes of the template when local template is one of its recent templates.
+     * Off by default, a template diff only fits a local template when the server splits the page
+     * the way {@link SonicHtmlSplitter} does, as SonicFilter of sonic-java does.
+     */
+    boolean ACCEPT_TEMPLATE_DIFF = false;
+
     /**
      * Local data is related to user id or nor, if true local data is used only by this user.
      */
@@ -158,6 +166,11 @@ public class SonicSessionConfig {
             return this;
         }
 
+        public Builder setAcceptTemplateDiff(boolean enable) {
+            target.ACCEPT_TEMPLATE_DIFF = enable;
+            return this;
+        }
+
         public Builder setIsAccountRelated(boolean value) {
             target.IS_ACCOUNT_RELATED = value;
             return this;
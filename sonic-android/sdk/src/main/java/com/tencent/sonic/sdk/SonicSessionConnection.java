@@ -63,6 +63,18 @@ public abstract class SonicSessionConnection {
      */
     public final static String CUSTOM_HEAD_FILED_ACCEPT_DIFF = "accept-diff";
 
+    /**
+     * HTTP header:accept-template-diff. <br>
+     * This header represents that client accepts the changes of the template instead of the whole page or not.
+     */
+    public final static String CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DIFF = "accept-template-diff";
+
+    /**
+     * HTTP header:template-diff. <br>
+     * This header indicates that the response holds the changes of the template and the data instead of the whole page.
+     */
+    public final static String CUSTOM_HEAD_FILED_TEMPLATE_DIFF = "template-diff";
+
     /**
      * HTTP header:template_tag. <br>
      * This header represents SHA1 value of the template file.
@@ -342,7 +354,7 @@ public abstract class SonicSessionConnection {
                 connection.setReadTimeout(config.READ_TIMEOUT_MILLIS);
                 /*
                  *  {@link SonicSessionConnection#CUSTOM_HEAD_FILED_ACCEPT_DIFF} is need to be set If client accepts incrementally updates. <br>
-                 *  <p><b>Note: It doesn't support incrementally updated for template file.</b><p/>
+                 *  {@link SonicSessionConnection#CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DIFF} is set below for incrementally updated template file.
                  */
                 connection.setRequestProperty(CUSTOM_HEAD_FILED_ACCEPT_DIFF, config.ACCEPT_DIFF_DATA ? "true" : "false");
 
@@ -355,6 +367,12 @@ public abstract class SonicSessionConnection {
                 if (null == templateTag) templateTag = "";
                 connection.setRequestProperty(CUSTOM_HEAD_FILED_TEMPLATE_TAG, templateTag);
 
+                // the changes of the template are applied to the local template, SonicServer asks again without it if they can not
+                if (config.ACCEPT_TEMPLATE_DIFF && !TextUtils.isEmpty(templateTag)
+                        && !"false".equals(intent.getStringExtra(CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DIFF))) {
+                    connection.setRequestProperty(CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DIFF, "true");
+                }
+
                 connection.setRequestProperty("method", "GET");
                 connection.setRequestProperty("Accept-Encoding", "gzip");
                 connection.setRequestProperty("Accept-Language", "zh-CN,zh;");
@@ -21,6 +21,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 
 /**
@@ -43,14 +44,20 @@ public class SonicSessionStream extends InputStream {
     private BufferedInputStream netStream;
 
     /**
-     * Read data from network
+     * Read data from network, read in place from <code>outputStream</code>
      */
-    private BufferedInputStream memStream;
+    private InputStream memStream;
 
     /**
-     * OutputStream include <code>memStream</code> data and <code>netStream</code> data
+     * OutputStream include <code>memStream</code> data and <code>netStream</code> data,
+     * a {@link SonicSegmentedBuffer} or the <code>ByteArrayOutputStream</code> of a {@link Callback}
      */
-    private ByteArrayOutputStream outputStream;
+    private OutputStream outputStream;
+
+    /**
+     * Separates the html while it is read, null if not needed
+     */
+    private SonicHtmlSplitter splitter;
 
     /**
      * <code>netStream</code> data completed flag
@@ -76,17 +83,38 @@ public class SonicSessionStream extends InputStream {
     }
 
     /**
-     * Callback WeakReference
+     * Same as {@link Callback}, with the data in a {@link SonicSegmentedBuffer}
+     */
+    public interface SegmentedCallback {
+        /**
+         * Close callback
+         *
+         * @param readComplete <code>SonicSessionStream</code> data has read completed
+         * @param outputStream outputStream include <code>memStream</code> data and <code>netStream</code> data
+         */
+        void onClose(boolean readComplete, SonicSegmentedBuffer outputStream);
+    }
+
+    /**
+     * Callback WeakReference, null if the stream was created with a <code>SegmentedCallback</code>
      */
     private final WeakReference<Callback> callbackWeakReference;
 
+    /**
+     * SegmentedCallback WeakReference, null if the stream was created with a <code>Callback</code>
+     */
+    private final WeakReference<SegmentedCallback> segmentedCallbackWeakReference;
+
     /**
      * Constructor
      *
      * @param callback     Callback
      * @param outputStream Read data from network
      * @param netStream    Unread data from network
+     * @deprecated the data read from network is copied to build <code>memStream</code>, use
+     * {@link #SonicSessionStream(SegmentedCallback, SonicSegmentedBuffer, BufferedInputStream)} which reads it in place
      */
+    @Deprecated
     public SonicSessionStream(Callback callback, ByteArrayOutputStream outputStream, BufferedInputStream netStream) {
         if (null != netStream) {
             this.netStream = netStream;
@@ -102,6 +130,45 @@ public class SonicSessionStream extends InputStream {
         }
 
         callbackWeakReference = new WeakReference<Callback>(callback);
+        segmentedCallbackWeakReference = null;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param callback     Callback
+     * @param outputStream Read data from network
+     * @param netStream    Unread data from network
+     */
+    public SonicSessionStream(SegmentedCallback callback, SonicSegmentedBuffer outputStream, BufferedInputStream netStream) {
+        this(callback, outputStream, netStream, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param callback     Callback
+     * @param outputStream Read data from network
+     * @param netStream    Unread data from network
+     * @param splitter     Fed with every byte read from this stream, so the html is separated once it is read
+     */
+    SonicSessionStream(SegmentedCallback callback, SonicSegmentedBuffer outputStream, BufferedInputStream netStream, SonicHtmlSplitter splitter) {
+        this.splitter = splitter;
+        if (null != netStream) {
+            this.netStream = netStream;
+            this.netStreamReadComplete = false;
+        }
+
+        if (outputStream != null) {
+            this.outputStream = outputStream;
+            this.memStream = outputStream.newInputStream();
+            this.memStreamReadComplete = false;
+        } else {
+            this.outputStream = new SonicSegmentedBuffer();
+        }
+
+        callbackWeakReference = null;
+        segmentedCallbackWeakReference = new WeakReference<SegmentedCallback>(callback);
     }
 
     /**
@@ -138,9 +205,17 @@ public class SonicSessionStream extends InputStream {
             netStream = null;
         }
 
-        Callback callback = callbackWeakReference.get();
-        if (null != callback) {
-            callback.onClose(netStreamReadComplete && memStreamReadComplete, outputStream);
+        boolean readComplete = netStreamReadComplete && memStreamReadComplete;
+        if (null != callbackWeakReference) {
+            Callback callback = callbackWeakReference.get();
+            if (null != callback) {
+                callback.onClose(readComplete, (ByteArrayOutputStream) outputStream);
+            }
+        } else {
+            SegmentedCallback callback = segmentedCallbackWeakReference.get();
+            if (null != callback) {
+                callback.onClose(readComplete, (SonicSegmentedBuffer) outputStream);
+            }
         }
         outputStream = null;
 
@@ -185,6 +260,10 @@ public class SonicSessionStream extends InputStream {
                     }
                 }
             }
+
+            if (-1 != c && null != splitter) {
+                splitter.write(c);
+            }
         } catch (Throwable e) {
             SonicUtils.log(TAG, Log.ERROR, "read error:" + e.getMessage());
             if (e instanceof IOException) {
@@ -212,6 +291,9 @@ public class SonicSessionStream extends InputStream {
      * the byte array {@code buffer} starting at {@code byteOffset}.
      * Returns the number of bytes actually read or -1 if the end of the stream
      * has been reached.
+     * <p>
+     * Bytes are copied in bulk, either what is left of <code>memStream</code> or what one read
+     * of <code>netStream</code> returns, so the call does not wait for the network once some bytes are ready.
      *
      * @throws IndexOutOfBoundsException if {@code byteOffset < 0 || byteCount < 0 || byteOffset + byteCount > buffer.length}.
      * @throws IOException               if the stream is closed or another IOException occurs.
@@ -221,21 +303,42 @@ public class SonicSessionStream extends InputStream {
         if ((byteOffset | byteCount) < 0 || byteOffset > arrayLength || arrayLength - byteOffset < byteCount) {
             throw new ArrayIndexOutOfBoundsException();
         }
+        if (byteCount == 0) {
+            return 0;
+        }
 
-        for (int i = 0; i < byteCount; ++i) {
-            int c;
-            try {
-                if ((c = read()) == -1) {
-                    return i == 0 ? -1 : i;
+        try {
+            if (null != memStream && !memStreamReadComplete) {
+                int count = memStream.read(buffer, byteOffset, byteCount);
+                if (count > 0) {
+                    if (null != splitter) {
+                        splitter.write(buffer, byteOffset, count);
+                    }
+                    return count;
                 }
-            } catch (IOException e) {
-                if (i != 0) {
-                    return i;
+            }
+            memStreamReadComplete = true;
+
+            if (null != netStream && !netStreamReadComplete) {
+                int count = netStream.read(buffer, byteOffset, byteCount);
+                if (count > 0) {
+                    outputStream.write(buffer, byteOffset, count);
+                    if (null != splitter) {
+                        splitter.write(buffer, byteOffset, count);
+                    }
+                } else if (-1 == count) {
+                    netStreamReadComplete = true;
                 }
-                throw e;
+                return count;
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "read error:" + e.getMessage());
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else {//Turn all exceptions to IO exceptions to prevent scenes that the kernel can not capture
+                throw new IOException(e);
             }
-            buffer[byteOffset + i] = (byte) c;
         }
-        return byteCount;
+        return -1;
     }
 }
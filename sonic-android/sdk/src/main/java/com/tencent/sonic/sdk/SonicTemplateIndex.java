@@ -0,0 +1,267 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Offsets of the data keys in a template, so that html is built from the template and data in one
+ * sequential pass instead of searching and replacing every key in a growing buffer.
+ * <p>
+ * Each key is placed where <code>indexOf</code> first finds it in the template. Keys the template does not
+ * contain are kept too, so that a data with a key the index does not know can be detected.
+ * The index is saved beside the template file, see {@link SonicFileUtils#getSonicTemplateIndexPath(String)}.
+ */
+class SonicTemplateIndex {
+
+    /**
+     * Length of the template this index was made for
+     */
+    private final int templateLength;
+
+    /**
+     * Keys found in the template, ordered by offset
+     */
+    private final String[] keys;
+
+    private final int[] offsets;
+
+    /**
+     * Keys the template does not contain
+     */
+    private final String[] absentKeys;
+
+    /**
+     * All keys of the index, created when {@link #covers(JSONObject)} is called first
+     */
+    private Set<String> allKeys;
+
+    private SonicTemplateIndex(int templateLength, String[] keys, int[] offsets, String[] absentKeys) {
+        this.templateLength = templateLength;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.absentKeys = absentKeys;
+    }
+
+    /**
+     * Finds the keys in one pass over the template: at each '{' the text up to the next '}' is looked up in the keys.
+     * Other keys, like the ones with a '}' before their end, fall back to <code>indexOf</code>.
+     *
+     * @param templateString The contents of the template
+     * @param keys           Keys of the data
+     * @return the index, null if two keys overlap in the template
+     */
+    static SonicTemplateIndex create(String templateString, Iterator<?> keys) {
+        final Map<String, Integer> keyOffsets = new HashMap<String, Integer>();
+        int maxKeyLength = 0;
+        while (keys.hasNext()) {
+            String key = keys.next().toString();
+            keyOffsets.put(key, -1);
+            maxKeyLength = Math.max(maxKeyLength, key.length());
+        }
+
+        int found = 0;
+        int start = templateString.indexOf('{');
+        int end = -1;
+        while (-1 != start && found < keyOffsets.size()) {
+            if (end <= start) {
+                end = templateString.indexOf('}', start + 1);
+                if (-1 == end) {
+                    break;
+                }
+            }
+            if (end - start < maxKeyLength) {
+                String key = templateString.substring(start, end + 1);
+                Integer offset = keyOffsets.get(key);
+                if (null != offset && offset < 0) {
+                    keyOffsets.put(key, start);
+                    ++found;
+                }
+            }
+            start = templateString.indexOf('{', start + 1);
+        }
+
+        List<String> placeholders = new ArrayList<String>(keyOffsets.size());
+        List<String> absentKeys = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : keyOffsets.entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() < 0 && !isBraced(key)) {
+                entry.setValue(templateString.indexOf(key));
+            }
+            if (entry.getValue() < 0) {
+                absentKeys.add(key);
+            } else {
+                placeholders.add(key);
+            }
+        }
+        Collections.sort(placeholders, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return keyOffsets.get(lhs) - keyOffsets.get(rhs);
+            }
+        });
+        int[] offsets = new int[placeholders.size()];
+        for (int i = 0; i < offsets.length; ++i) {
+            offsets[i] = keyOffsets.get(placeholders.get(i));
+        }
+
+        SonicTemplateIndex index = new SonicTemplateIndex(templateString.length(),
+                placeholders.toArray(new String[placeholders.size()]), offsets, absentKeys.toArray(new String[absentKeys.size()]));
+        return index.isOrdered() ? index : null;
+    }
+
+    /**
+     * @return True if the key is '{', chars but '}' and '}', the only keys the scan of {@link #create(String, Iterator)} can find
+     */
+    private static boolean isBraced(String key) {
+        return key.length() >= 2 && key.charAt(0) == '{' && key.indexOf('}') == key.length() - 1;
+    }
+
+    /**
+     * @return True if the keys follow each other without overlapping
+     */
+    private boolean isOrdered() {
+        for (int i = 1; i < offsets.length; ++i) {
+            if (offsets[i - 1] + keys[i - 1].length() > offsets[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param indexString Index saved by {@link #toString()}
+     * @return the index, null if it can not be read
+     */
+    static SonicTemplateIndex parse(String indexString) {
+        try {
+            int position = indexString.indexOf('\n');
+            int templateLength = Integer.parseInt(indexString.substring(0, position));
+            List<String> keys = new ArrayList<String>();
+            List<Integer> offsets = new ArrayList<Integer>();
+            List<String> absentKeys = new ArrayList<String>();
+            ++position;
+            while (position < indexString.length()) {
+                int offsetEnd = indexString.indexOf(',', position);
+                int keyStart = indexString.indexOf(',', offsetEnd + 1) + 1;
+                int offset = Integer.parseInt(indexString.substring(position, offsetEnd));
+                int keyEnd = keyStart + Integer.parseInt(indexString.substring(offsetEnd + 1, keyStart - 1));
+                if (keyEnd >= indexString.length() || indexString.charAt(keyEnd) != '\n') {
+                    return null;
+                }
+                String key = indexString.substring(keyStart, keyEnd);
+                if (offset < 0) {
+                    absentKeys.add(key);
+                } else {
+                    keys.add(key);
+                    offsets.add(offset);
+                }
+                position = keyEnd + 1;
+            }
+            int[] offsetArray = new int[offsets.size()];
+            for (int i = 0; i < offsetArray.length; ++i) {
+                offsetArray[i] = offsets.get(i);
+            }
+            return new SonicTemplateIndex(templateLength, keys.toArray(new String[keys.size()]), offsetArray,
+                    absentKeys.toArray(new String[absentKeys.size()]));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if the index was made for this template, so that an index left by an older template is not used
+     */
+    boolean matches(String templateString) {
+        if (templateString.length() != templateLength || !isOrdered()) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            if (!templateString.startsWith(keys[i], offsets[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if every key of the data is in the index
+     */
+    boolean covers(JSONObject dataJson) {
+        if (null == allKeys) {
+            Set<String> allKeys = new HashSet<String>();
+            Collections.addAll(allKeys, keys);
+            Collections.addAll(allKeys, absentKeys);
+            this.allKeys = allKeys;
+        }
+        Iterator<?> iterator = dataJson.keys();
+        while (iterator.hasNext()) {
+            if (!allKeys.contains(iterator.next().toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build the template and data into html, the template must match this index and the data must be covered by it.
+     *
+     * @param templateString The contents of the template
+     * @param dataJson       The contents of the data
+     * @param dataMaxSize    the length of data.Through it to determine StringBuilder's original length
+     * @return final html string
+     */
+    String buildHtml(String templateString, JSONObject dataJson, int dataMaxSize) {
+        StringBuilder htmlStringBuilder = new StringBuilder(templateString.length() + dataMaxSize);
+        int position = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            htmlStringBuilder.append(templateString, position, offsets[i]);
+            if (dataJson.has(keys[i])) {
+                htmlStringBuilder.append(dataJson.optString(keys[i]));
+            } else {
+                htmlStringBuilder.append(keys[i]);
+            }
+            position = offsets[i] + keys[i].length();
+        }
+        htmlStringBuilder.append(templateString, position, templateString.length());
+        return htmlStringBuilder.toString();
+    }
+
+    /**
+     * @return the index read back by {@link #parse(String)}: the length of the template in the first line, then a line
+     * "offset,length of key,key" for each key in the order of offsets, with offset -1 for keys the template does not contain
+     */
+    @Override
+    public String toString() {
+        StringBuilder indexString = new StringBuilder();
+        indexString.append(templateLength).append('\n');
+        for (int i = 0; i < keys.length; ++i) {
+            indexString.append(offsets[i]).append(',').append(keys[i].length()).append(',').append(keys[i]).append('\n');
+        }
+        for (String key : absentKeys) {
+            indexString.append(-1).append(',').append(key.length()).append(',').append(key).append('\n');
+        }
+        return indexString.toString();
+    }
+}
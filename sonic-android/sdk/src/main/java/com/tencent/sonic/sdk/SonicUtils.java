@@ -20,6 +20,8 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
@@ -34,8 +36,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Sonic Utils
@@ -52,47 +52,6 @@ public class SonicUtils {
      */
     private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicUtils";
 
-    /**
-     * Sonic template tag :the beginning of title label
-     * title is considered part of the data in sonic
-     */
-    private static final String SONIC_TAG_TITLE_OPEN = "<title>";
-
-    /**
-     * Sonic template tag :the end of title label
-     */
-    private static final String SONIC_TAG_TITLE_CLOSE = "</title>";
-
-    /**
-     * Sonic template tag:
-     */
-    private static final String SONIC_TAG_TITLE_KEY = "{title}";
-
-    /**
-     * Sonic pattern : through the pattern sonic splits the html to template and data
-     */
-    private static final String SONIC_TAG_PATTERN = "<!--sonicdiff-?(\\w*)-->([\\s\\S]+?)<!--sonicdiff-?(\\w*)-end-->";
-
-    /**
-     * The beginning of sonic pattern
-     */
-    private static final String SONIC_TAG_DIFF_BEGIN = "<!--sonicdiff-";
-
-    /**
-     * the end of sonic pattern
-     */
-    private static final String SONIC_TAG_DIFF_END = "-->";
-
-    /**
-     * The beginning of data key
-     */
-    private static final String SONIC_TAG_KEY_BEGIN = "{";
-
-    /**
-     * the end of data key
-     */
-    private static final String SONIC_TAG_KEY_END = "}";
-
     /**
      * the key of last cache check and clear time saved in SharedPreference
      */
@@ -304,7 +263,7 @@ public class SonicUtils {
             String templateString = SonicFileUtils.readFile(templateFile);
             if (!TextUtils.isEmpty(templateString)) {
 
-                final String htmlString = buildHtml(templateString, dataJson, dataMaxSize);
+                final String htmlString = buildHtml(templateString, readTemplateIndex(sessionId, templateString), dataJson, dataMaxSize);
 
                 if (TextUtils.isEmpty(sha1) || sha1.equalsIgnoreCase(SonicUtils.getSHA1(htmlString))) {
                     return htmlString;
@@ -337,9 +296,30 @@ public class SonicUtils {
      * @return final html string
      */
     static String buildHtml(String templateString, JSONObject dataJson, int dataMaxSize) {
+        return buildHtml(templateString, null, dataJson, dataMaxSize);
+    }
+
+    /**
+     * Build the template and data into html in one pass with the template index, or replace the keys one by one
+     * when the keys overlap in the template.
+     *
+     * @param templateString The contents of the template
+     * @param templateIndex  Index saved with the template, null to index the template now
+     * @param dataJson       The contents of the data
+     * @param dataMaxSize    the length of data.Through it to determine StringBuilder's original length
+     * @return final html string
+     */
+    private static String buildHtml(String templateString, SonicTemplateIndex templateIndex, JSONObject dataJson, int dataMaxSize) {
         if (TextUtils.isEmpty(templateString) || dataJson == null) {
             return null;
         }
+        if (null == templateIndex || !templateIndex.covers(dataJson)) {
+            templateIndex = SonicTemplateIndex.create(templateString, dataJson.keys());
+        }
+        if (null != templateIndex) {
+            return templateIndex.buildHtml(templateString, dataJson, dataMaxSize);
+        }
+
         StringBuilder htmlStringBuilder = new StringBuilder(templateString.length() + dataMaxSize);
         htmlStringBuilder.append(templateString);
         String key;
@@ -357,6 +337,65 @@ public class SonicUtils {
         return htmlStringBuilder.toString();
     }
 
+    /**
+     * @return the index saved beside the template, null if there is none or it was saved for another template
+     */
+    private static SonicTemplateIndex readTemplateIndex(String sessionId, String templateString) {
+        File templateIndexFile = new File(SonicFileUtils.getSonicTemplateIndexPath(sessionId));
+        if (templateIndexFile.exists()) {
+            String indexString = SonicFileUtils.readFile(templateIndexFile);
+            SonicTemplateIndex templateIndex = TextUtils.isEmpty(indexString) ? null : SonicTemplateIndex.parse(indexString);
+            if (null != templateIndex && templateIndex.matches(templateString)) {
+                return templateIndex;
+            }
+            log(TAG, Log.ERROR, "buildHtml error: template index does not match the template.");
+        }
+        return null;
+    }
+
+    /**
+     * Apply the template diff sent by server to the local template. The diff is read in order against the lines
+     * of the template: a positive number n copies the next n lines, a negative number -n skips the next n lines
+     * and a string is inserted as it is.
+     *
+     * @param templateString The contents of the local template
+     * @param diff           The template diff
+     * @return the new template, null if the diff does not fit the template
+     */
+    static String applyTemplateDiff(String templateString, JSONArray diff) {
+        if (TextUtils.isEmpty(templateString) || diff == null) {
+            return null;
+        }
+        StringBuilder newTemplate = new StringBuilder(templateString.length());
+        int position = 0;
+        try {
+            for (int i = 0, length = diff.length(); i < length; ++i) {
+                Object op = diff.get(i);
+                if (op instanceof String) {
+                    newTemplate.append((String) op);
+                    continue;
+                }
+                int lines = ((Number) op).intValue();
+                int end = position;
+                for (int n = Math.abs(lines); n > 0; --n) {
+                    if (end >= templateString.length()) {
+                        return null;
+                    }
+                    int lineEnd = templateString.indexOf('\n', end);
+                    end = -1 == lineEnd ? templateString.length() : lineEnd + 1;
+                }
+                if (lines > 0) {
+                    newTemplate.append(templateString, position, end);
+                }
+                position = end;
+            }
+        } catch (Exception e) {
+            log(TAG, Log.ERROR, "applyTemplateDiff error:" + e.getMessage());
+            return null;
+        }
+        return position == templateString.length() ? newTemplate.toString() : null;
+    }
+
     /**
      * Save sonic files, such as html, template and data
      *
@@ -372,9 +411,19 @@ public class SonicUtils {
             return false;
         }
 
-        if (!TextUtils.isEmpty(templateString) && !SonicFileUtils.writeFile(templateString, SonicFileUtils.getSonicTemplatePath(sessionId))) {
-            log(TAG, Log.ERROR, "saveSessionData error: write template file fail.");
-            return false;
+        if (!TextUtils.isEmpty(templateString)) {
+            File templateIndexFile = new File(SonicFileUtils.getSonicTemplateIndexPath(sessionId));
+            if (templateIndexFile.exists() && !templateIndexFile.delete()) {
+                log(TAG, Log.ERROR, "saveSessionData error: delete template index file fail.");
+                return false;
+            }
+
+            if (!SonicFileUtils.writeFile(templateString, SonicFileUtils.getSonicTemplatePath(sessionId))) {
+                log(TAG, Log.ERROR, "saveSessionData error: write template file fail.");
+                return false;
+            }
+
+            saveTemplateIndex(sessionId, templateString, dataString);
         }
 
         if (!TextUtils.isEmpty(dataString) && !SonicFileUtils.writeFile(dataString, SonicFileUtils.getSonicDataPath(sessionId))) {
@@ -390,6 +439,24 @@ public class SonicUtils {
         return true;
     }
 
+    /**
+     * Save the index of the template beside it, so that html is built without searching the keys of data in the template.
+     * Html is still built without the index, so failing to save it is not an error.
+     */
+    private static void saveTemplateIndex(String sessionId, String templateString, String dataString) {
+        if (TextUtils.isEmpty(dataString)) {
+            return;
+        }
+        try {
+            SonicTemplateIndex templateIndex = SonicTemplateIndex.create(templateString, new JSONObject(dataString).keys());
+            if (null != templateIndex && !SonicFileUtils.writeFile(templateIndex.toString(), SonicFileUtils.getSonicTemplateIndexPath(sessionId))) {
+                log(TAG, Log.WARN, "saveSessionData: write template index file fail.");
+            }
+        } catch (JSONException e) {
+            log(TAG, Log.WARN, "saveSessionData: data is not a JSONObject, template index is not saved.");
+        }
+    }
+
     /**
      * save resource files, including resource and headers.
      *
@@ -466,7 +533,7 @@ public class SonicUtils {
     }
 
     /**
-     * Separate html into templates and data
+     * Separate html into templates and data in one pass, see {@link SonicHtmlSplitter#split(String, StringBuilder, StringBuilder)}
      *
      * @param sessionId             A unique session id
      * @param htmlString            Html content
@@ -478,50 +545,8 @@ public class SonicUtils {
         long startTime = System.currentTimeMillis();
         log(TAG, Log.INFO, "separateTemplateAndData:sessionId(" + sessionId + ") start, htmlString = " + (htmlString.length() > 128 ? htmlString.substring(0, 128) : htmlString));
 
-        JSONObject info = new JSONObject();
-        int lastEnd = 0;
         try {
-            Pattern pattern = Pattern.compile(SONIC_TAG_PATTERN, Pattern.MULTILINE);
-            Matcher matcher = pattern.matcher(htmlString);
-            while (matcher.find()) {
-                String dataInfo = matcher.group();
-                String dataMark = SONIC_TAG_DIFF_BEGIN;
-                int markLen = dataMark.length();
-                int keyStart = dataInfo.indexOf(dataMark);
-                int keyEnd = dataInfo.indexOf(SONIC_TAG_DIFF_END);
-                String key = null;
-                if (keyStart != -1 && keyStart + markLen < keyEnd) {
-                    key = dataInfo.substring(keyStart + markLen, keyEnd);
-                }
-
-                key = SONIC_TAG_KEY_BEGIN + key + SONIC_TAG_KEY_END;
-                if (SonicUtils.shouldLog(Log.DEBUG)) {
-                    SonicUtils.log(TAG, Log.DEBUG, "separateTemplateAndData:sessionId(" + sessionId + "), key = " + key);
-                }
-
-                if (!TextUtils.isEmpty(key) && !TextUtils.isEmpty(dataInfo)) {
-                    info.put(key, dataInfo);
-                    int start = matcher.start();
-                    templateStringBuilder.append(htmlString.substring(lastEnd, start));
-                    templateStringBuilder.append(key);
-                    lastEnd = matcher.end();
-                }
-            }
-
-            if (lastEnd < htmlString.length() && templateStringBuilder.length() > 0) {
-                templateStringBuilder.append(htmlString.substring(lastEnd, htmlString.length()));
-            }
-
-            int titleStart = templateStringBuilder.indexOf(SONIC_TAG_TITLE_OPEN);
-            int titleEnd = templateStringBuilder.indexOf(SONIC_TAG_TITLE_CLOSE, titleStart + SONIC_TAG_TITLE_OPEN.length()) + SONIC_TAG_TITLE_CLOSE.length();
-            if (titleStart != -1 && titleStart < titleEnd) {
-                String key = SONIC_TAG_TITLE_KEY;
-                info.put(key, templateStringBuilder.substring(titleStart, titleEnd));
-                templateStringBuilder.replace(titleStart, titleEnd, key);
-            }
-
-            dataStringBuilder.append(info.toString());
-
+            SonicHtmlSplitter.split(htmlString, templateStringBuilder, dataStringBuilder);
         } catch (Exception e) {
             log(TAG, Log.ERROR, "separateTemplateAndData:sessionId(" + sessionId + ") error:" + e.getMessage());
             return false;
@@ -706,7 +731,7 @@ public class SonicUtils {
         }
     }
 
-    private static String toHexString(byte b[]) {
+    static String toHexString(byte b[]) {
         StringBuilder sb = new StringBuilder(b.length * 2);
         for (byte aB : b) {
             sb.append(hexChar[(aB & 0xf0) >>> 4]);
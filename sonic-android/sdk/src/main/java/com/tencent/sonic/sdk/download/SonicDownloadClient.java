@@ -19,11 +19,11 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.tencent.sonic.sdk.SonicConstants;
+import com.tencent.sonic.sdk.SonicSegmentedBuffer;
 import com.tencent.sonic.sdk.SonicSessionStream;
 import com.tencent.sonic.sdk.SonicUtils;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -43,7 +43,7 @@ import static java.net.HttpURLConnection.HTTP_OK;
  * Handles a single HTTP resource download
  *
  */
-public class SonicDownloadClient implements SonicSessionStream.Callback {
+public class SonicDownloadClient implements SonicSessionStream.SegmentedCallback {
 
     /**
      * log filter
@@ -136,7 +136,10 @@ public class SonicDownloadClient implements SonicSessionStream.Callback {
      */
     private DownloadTask mTask;
 
-    private ByteArrayOutputStream mOutputStream;
+    /**
+     * downloaded bytes, shared with the bridge stream
+     */
+    private SonicSegmentedBuffer mOutputStream;
 
     /**
      * whether the download task is finished or is a bridge stream
@@ -146,7 +149,7 @@ public class SonicDownloadClient implements SonicSessionStream.Callback {
     public SonicDownloadClient(DownloadTask task) {
         mTask = task;
         mConn = new SonicDownloadConnection(task.mResourceUrl);
-        mOutputStream = new ByteArrayOutputStream();
+        mOutputStream = new SonicSegmentedBuffer();
     }
 
     /**
@@ -228,7 +231,7 @@ public class SonicDownloadClient implements SonicSessionStream.Callback {
     }
 
     @Override
-    public void onClose(boolean readComplete, ByteArrayOutputStream outputStream) {
+    public void onClose(boolean readComplete, SonicSegmentedBuffer outputStream) {
         SonicUtils.log(TAG, Log.INFO, "sub resource bridge stream on close(" + mTask.mResourceUrl + ").");
         if (!mDownloadFinished) {
             onSuccess(outputStream.toByteArray(), mConn.getResponseHeaderFields());
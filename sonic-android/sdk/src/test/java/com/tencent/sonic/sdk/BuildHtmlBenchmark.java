@@ -0,0 +1,103 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import org.json.JSONObject;
+
+/**
+ * Compares the time to build html from template and data by replacing the keys one by one, by indexing the
+ * template first and by reading the index saved with the template, on the demo page with more and more blocks.
+ * <p>
+ * Not a test, run its <code>main</code> from the IDE with the unit test classpath of the sdk module.
+ */
+public class BuildHtmlBenchmark {
+
+    private static final int[] BLOCK_COUNTS = {10, 200, 500, 1000};
+
+    private static final long MIN_DURATION_NS = 2000L * 1000 * 1000;
+
+    /**
+     * Lengths of the results, so the builds are not optimized away
+     */
+    private static volatile long sink;
+
+    private interface Build {
+        String run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("blocks\tlength\treplace(us)\tindex(us)\tsaved index(us)");
+        for (int blockCount : BLOCK_COUNTS) {
+            String[] page = SonicTemplateIndexTest.splitDemoPage(blockCount);
+            final String html = page[0];
+            final String template = page[1];
+            final String data = page[2];
+            final JSONObject dataJson = new JSONObject(data);
+            final String savedIndex = SonicTemplateIndex.create(template, dataJson.keys()).toString();
+
+            Build replace = new Build() {
+                @Override
+                public String run() {
+                    return SonicTemplateIndexTest.replaceKeys(template, dataJson);
+                }
+            };
+            Build index = new Build() {
+                @Override
+                public String run() {
+                    return SonicTemplateIndex.create(template, dataJson.keys()).buildHtml(template, dataJson, data.length());
+                }
+            };
+            Build saved = new Build() {
+                @Override
+                public String run() {
+                    SonicTemplateIndex templateIndex = SonicTemplateIndex.parse(savedIndex);
+                    if (!templateIndex.matches(template) || !templateIndex.covers(dataJson)) {
+                        throw new IllegalStateException("saved index does not fit");
+                    }
+                    return templateIndex.buildHtml(template, dataJson, data.length());
+                }
+            };
+            if (!html.equals(replace.run()) || !html.equals(index.run()) || !html.equals(saved.run())) {
+                throw new IllegalStateException("html is not rebuilt");
+            }
+
+            // twice, the first round only warms up
+            double replaceTime = 0;
+            double indexTime = 0;
+            double savedTime = 0;
+            for (int round = 0; round < 2; ++round) {
+                replaceTime = time(replace);
+                indexTime = time(index);
+                savedTime = time(saved);
+            }
+            System.out.println(blockCount + "\t" + html.length() + "\t"
+                    + String.format("%.1f\t%.1f\t%.1f", replaceTime / 1000, indexTime / 1000, savedTime / 1000));
+        }
+    }
+
+    /**
+     * @return average time of one build in nanoseconds
+     */
+    private static double time(Build build) throws Exception {
+        long start = System.nanoTime();
+        long count = 0;
+        long consumed = 0;
+        do {
+            consumed += build.run().length();
+            ++count;
+        } while (System.nanoTime() - start < MIN_DURATION_NS);
+        sink += consumed;
+        return (double) (System.nanoTime() - start) / count;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regular expression which <code>SonicUtils.separateTemplateAndData</code> used before
+ * {@link SonicHtmlSplitter#split(String, StringBuilder, StringBuilder)}, kept as the reference of its results.
+ */
+class RegexTemplateSplitter {
+
+    /**
+     * <code>\w</code> is Unicode aware on Android, as with UNICODE_CHARACTER_CLASS here
+     */
+    private static final Pattern SONIC_TAG_PATTERN = Pattern.compile("<!--sonicdiff-?(\\w*)-->([\\s\\S]+?)<!--sonicdiff-?(\\w*)-end-->", Pattern.MULTILINE | Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static final String SONIC_TAG_DIFF_BEGIN = "<!--sonicdiff-";
+
+    private static final String SONIC_TAG_DIFF_END = "-->";
+
+    private static final String SONIC_TAG_TITLE_OPEN = "<title>";
+
+    private static final String SONIC_TAG_TITLE_CLOSE = "</title>";
+
+    private static final String SONIC_TAG_TITLE_KEY = "{title}";
+
+    /**
+     * @param data Ordered map in place of the JSONObject, filled as the JSONObject was
+     */
+    static void split(String htmlString, StringBuilder templateStringBuilder, Map<String, String> data) {
+        int lastEnd = 0;
+        Matcher matcher = SONIC_TAG_PATTERN.matcher(htmlString);
+        while (matcher.find()) {
+            String dataInfo = matcher.group();
+            int keyStart = dataInfo.indexOf(SONIC_TAG_DIFF_BEGIN);
+            int keyEnd = dataInfo.indexOf(SONIC_TAG_DIFF_END);
+            String key = null;
+            if (keyStart != -1 && keyStart + SONIC_TAG_DIFF_BEGIN.length() < keyEnd) {
+                key = dataInfo.substring(keyStart + SONIC_TAG_DIFF_BEGIN.length(), keyEnd);
+            }
+            key = "{" + key + "}";
+            data.put(key, dataInfo);
+            templateStringBuilder.append(htmlString.substring(lastEnd, matcher.start()));
+            templateStringBuilder.append(key);
+            lastEnd = matcher.end();
+        }
+
+        if (lastEnd < htmlString.length() && templateStringBuilder.length() > 0) {
+            templateStringBuilder.append(htmlString.substring(lastEnd, htmlString.length()));
+        }
+
+        int titleStart = templateStringBuilder.indexOf(SONIC_TAG_TITLE_OPEN);
+        int titleEnd = templateStringBuilder.indexOf(SONIC_TAG_TITLE_CLOSE, titleStart + SONIC_TAG_TITLE_OPEN.length()) + SONIC_TAG_TITLE_CLOSE.length();
+        if (titleStart != -1 && titleStart < titleEnd) {
+            data.put(SONIC_TAG_TITLE_KEY, templateStringBuilder.substring(titleStart, titleEnd));
+            templateStringBuilder.replace(titleStart, titleEnd, SONIC_TAG_TITLE_KEY);
+        }
+    }
+}
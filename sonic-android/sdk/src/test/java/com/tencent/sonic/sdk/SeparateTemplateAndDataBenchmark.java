@@ -0,0 +1,118 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import org.json.JSONObject;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the time to separate template and data of the regular expression and of
+ * {@link SonicHtmlSplitter#split(String, StringBuilder, StringBuilder)}, on the demo page with more and more blocks.
+ * The regular expression is timed with the JSONObject it filled, so both sides produce the data string.
+ * <p>
+ * Not a test, run its <code>main</code> from the IDE with the unit test classpath of the sdk module.
+ */
+public class SeparateTemplateAndDataBenchmark {
+
+    private static final int[] BLOCK_COUNTS = {1, 10, 50, 200, 1000};
+
+    private static final long MIN_DURATION_NS = 2000L * 1000 * 1000;
+
+    /**
+     * Lengths of the results, so the splits are not optimized away
+     */
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        String page = SeparateTemplateAndDataTest.readDemoPage();
+        System.out.println("blocks\tlength\tregex(us)\tsplit(us)");
+        for (int blockCount : BLOCK_COUNTS) {
+            String html = SeparateTemplateAndDataTest.withBlocks(page, blockCount);
+            // twice, the first round only warms up
+            double regexTime = 0;
+            double splitTime = 0;
+            for (int round = 0; round < 2; ++round) {
+                regexTime = timeRegex(html);
+                splitTime = timeSplit(html);
+            }
+            System.out.println(blockCount + "\t" + html.length() + "\t" + String.format("%.1f\t%.1f", regexTime / 1000, splitTime / 1000));
+        }
+    }
+
+    /**
+     * @return average time of one split in nanoseconds
+     */
+    private static double timeRegex(String html) throws Exception {
+        long start = System.nanoTime();
+        long count = 0;
+        long consumed = 0;
+        do {
+            StringBuilder template = new StringBuilder();
+            JSONObject data = new JSONObject();
+            RegexTemplateSplitter.split(html, template, new JSONObjectMap(data));
+            consumed += template.length() + data.toString().length();
+            ++count;
+        } while (System.nanoTime() - start < MIN_DURATION_NS);
+        return consume(System.nanoTime() - start, count, consumed);
+    }
+
+    private static double timeSplit(String html) {
+        long start = System.nanoTime();
+        long count = 0;
+        long consumed = 0;
+        do {
+            StringBuilder template = new StringBuilder();
+            StringBuilder data = new StringBuilder();
+            SonicHtmlSplitter.split(html, template, data);
+            consumed += template.length() + data.length();
+            ++count;
+        } while (System.nanoTime() - start < MIN_DURATION_NS);
+        return consume(System.nanoTime() - start, count, consumed);
+    }
+
+    private static double consume(long duration, long count, long consumed) {
+        sink += consumed;
+        return (double) duration / count;
+    }
+
+    /**
+     * Puts into a JSONObject as the regular expression version did
+     */
+    private static class JSONObjectMap extends AbstractMap<String, String> {
+
+        private final JSONObject jsonObject;
+
+        JSONObjectMap(JSONObject jsonObject) {
+            this.jsonObject = jsonObject;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            try {
+                jsonObject.put(key, value);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link SonicHtmlSplitter#split(String, StringBuilder, StringBuilder)} against the regular expression it replaced.
+ */
+public class SeparateTemplateAndDataTest {
+
+    private static final String DEMO_PAGE = "sonic-demo-index.html";
+
+    /**
+     * A page and its template, sonic-java checks the template it diffs against the same files
+     */
+    private static final String CLIENT_TEMPLATE_PAGE = "sonic-client-template.html";
+
+    private static final String CLIENT_TEMPLATE = "sonic-client-template.tpl";
+
+    private static final String[] PIECES = {
+            "<!--sonicdiff-a-->", "<!--sonicdiff-a-end-->", "<!--sonicdiff-b-->", "<!--sonicdiff-b-end-->",
+            "<!--sonicdiff-end-->", "<!--sonicdiffx-->", "<!--sonicdiff--->", "<!--sonicdiff-x_1-end-->", "<!--sonicdiff",
+            "<!--sonicdiff-title-->", "{title}", "<title>", "</title>", "<title", "<", "-->", "-", "<!--",
+            "<div>", "</div>", "text", "\n", "\r", "\t", "\"", "\\", "/", "\u0001", " ", "声速", "😀",
+            // keys out of ASCII, \w is Unicode aware on Android
+            "<!--sonicdiff-数据-->", "<!--sonicdiff-数据-end-->", "<!--sonicdiff-é-->", "<!--sonicdiff-é-end-->",
+            "é", "\u0301", "\u0663", "\u203f", "\u200d", "\u00a0", "\u00b2"
+    };
+
+    static String readDemoPage() throws Exception {
+        return readResource(DEMO_PAGE);
+    }
+
+    private static String readResource(String name) throws Exception {
+        InputStream inputStream = SeparateTemplateAndDataTest.class.getClassLoader().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while (-1 != (count = inputStream.read(buffer))) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @return the demo page with its data block repeated count times under different keys before the end of body
+     */
+    static String withBlocks(String page, int count) {
+        int blockStart = page.indexOf("<!--sonicdiff-data1-->");
+        String blockEndTag = "<!--sonicdiff-data1-end-->";
+        String block = page.substring(blockStart, page.indexOf(blockEndTag) + blockEndTag.length());
+        StringBuilder blocks = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            blocks.append("<div>").append(block.replace("data1", "item" + i)).append("</div>\n");
+        }
+        int bodyEnd = page.lastIndexOf("</body>");
+        return page.substring(0, bodyEnd) + blocks + page.substring(bodyEnd);
+    }
+
+    private static void assertSameSplit(String html) throws Exception {
+        StringBuilder expectedTemplate = new StringBuilder();
+        Map<String, String> expectedData = new LinkedHashMap<String, String>();
+        RegexTemplateSplitter.split(html, expectedTemplate, expectedData);
+
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        SonicHtmlSplitter.split(html, template, data);
+
+        assertEquals(expectedTemplate.toString(), template.toString());
+        JSONObject dataJson = new JSONObject(data.toString());
+        assertEquals(expectedData.size(), dataJson.length());
+        Iterator<String> keys = dataJson.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            assertEquals(expectedData.get(key), dataJson.getString(key));
+        }
+    }
+
+    @Test
+    public void demoPage() throws Exception {
+        String page = readDemoPage();
+        assertSameSplit(page);
+        assertSameSplit(withBlocks(page, 1));
+        assertSameSplit(withBlocks(page, 250));
+    }
+
+    @Test
+    public void sameTemplateAsServer() throws Exception {
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        SonicHtmlSplitter.split(readResource(CLIENT_TEMPLATE_PAGE), template, data);
+        assertEquals(readResource(CLIENT_TEMPLATE), template.toString());
+        JSONObject dataJson = new JSONObject(data.toString());
+        assertEquals("<!--sonicdiffx-->not a block<!--sonicdiff-x-end-->", dataJson.getString("{null}"));
+        assertEquals("<title>声速 demo</title>", dataJson.getString("{title}"));
+    }
+
+    @Test
+    public void pageWithoutBlock() throws Exception {
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        SonicHtmlSplitter.split("<html><head><title>SONIC</title></head></html>", template, data);
+        assertEquals("", template.toString());
+        assertEquals("{}", data.toString());
+    }
+
+    @Test
+    public void unicodeKeys() throws Exception {
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        SonicHtmlSplitter.split("<p><!--sonicdiff-数据_1-->a<!--sonicdiff-数据_1-end--></p>", template, data);
+        assertEquals("<p>{数据_1}</p>", template.toString());
+        assertEquals("<!--sonicdiff-数据_1-->a<!--sonicdiff-数据_1-end-->", new JSONObject(data.toString()).getString("{数据_1}"));
+    }
+
+    /**
+     * a key holding a supplementary char is not a key, unlike with the regular expression
+     */
+    @Test
+    public void supplementaryCharsAreNotKeys() throws Exception {
+        String html = "<p><!--sonicdiff-\ud840\udc00-->a<!--sonicdiff-\ud840\udc00-end--></p>";
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        SonicHtmlSplitter.split(html, template, data);
+        assertEquals("", template.toString());
+        assertEquals("{}", data.toString());
+    }
+
+    @Test
+    public void pieces() throws Exception {
+        Random random = new Random(24);
+        for (int i = 0; i < 20000; ++i) {
+            StringBuilder html = new StringBuilder();
+            for (int j = random.nextInt(30); j > 0; --j) {
+                html.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertSameSplit(html.toString());
+        }
+    }
+}
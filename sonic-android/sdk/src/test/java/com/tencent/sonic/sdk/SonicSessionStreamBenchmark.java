@@ -0,0 +1,129 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the time to read a whole page from {@link SonicSessionStream} into a buffer one byte at a time, as
+ * <code>read(byte[], int, int)</code> used to do, and in bulk, with a quarter of the page already in memory
+ * and the rest from the network stream.
+ * <p>
+ * Not a test, run its <code>main</code> from the IDE with the unit test classpath of the sdk module.
+ */
+public class SonicSessionStreamBenchmark {
+
+    private static final int[] PAGE_SIZES = {16 * 1024, 256 * 1024, 1024 * 1024};
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final long MIN_DURATION_NS = 2000L * 1000 * 1000;
+
+    /**
+     * Sums of the bytes read, so the reads are not optimized away
+     */
+    private static volatile long sink;
+
+    private interface Read {
+        int run(SonicSessionStream stream, byte[] buffer) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Read perByte = new Read() {
+            @Override
+            public int run(SonicSessionStream stream, byte[] buffer) throws Exception {
+                int count = 0;
+                int c;
+                while (count < buffer.length && (c = stream.read()) != -1) {
+                    buffer[count++] = (byte) c;
+                }
+                return count == 0 ? -1 : count;
+            }
+        };
+        Read bulk = new Read() {
+            @Override
+            public int run(SonicSessionStream stream, byte[] buffer) throws Exception {
+                return stream.read(buffer, 0, buffer.length);
+            }
+        };
+
+        System.out.println("page bytes\tper byte(ms)\tbulk(ms)");
+        for (int pageSize : PAGE_SIZES) {
+            byte[] page = new byte[pageSize];
+            new Random(21).nextBytes(page);
+            if (!Arrays.equals(page, readPage(page, perByte)) || !Arrays.equals(page, readPage(page, bulk))) {
+                throw new IllegalStateException("page is not read back");
+            }
+
+            // twice, the first round only warms up
+            double perByteTime = 0;
+            double bulkTime = 0;
+            for (int round = 0; round < 2; ++round) {
+                perByteTime = time(page, perByte);
+                bulkTime = time(page, bulk);
+            }
+            System.out.println(pageSize + "\t" + String.format("%.3f\t%.3f", perByteTime / 1000000, bulkTime / 1000000));
+        }
+    }
+
+    /**
+     * @return the page as it was read, after checking that the stream captured it whole
+     */
+    private static byte[] readPage(byte[] page, Read read) throws Exception {
+        SonicSegmentedBuffer memory = new SonicSegmentedBuffer();
+        SonicSessionStream stream = createStream(page, memory);
+        byte[] result = new byte[page.length];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        int count;
+        while ((count = read.run(stream, buffer)) != -1) {
+            System.arraycopy(buffer, 0, result, length, count);
+            length += count;
+        }
+        if (length != page.length || !Arrays.equals(page, memory.toByteArray())) {
+            throw new IllegalStateException("page is not captured");
+        }
+        return result;
+    }
+
+    private static SonicSessionStream createStream(byte[] page, SonicSegmentedBuffer memory) {
+        int memoryLength = page.length / 4;
+        memory.write(page, 0, memoryLength);
+        BufferedInputStream network = new BufferedInputStream(new ByteArrayInputStream(page, memoryLength, page.length - memoryLength));
+        return new SonicSessionStream(null, memory, network);
+    }
+
+    /**
+     * @return average time to read the whole page in nanoseconds
+     */
+    private static double time(byte[] page, Read read) throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long start = System.nanoTime();
+        long count = 0;
+        long consumed = 0;
+        do {
+            SonicSessionStream stream = createStream(page, new SonicSegmentedBuffer());
+            int length;
+            while ((length = read.run(stream, buffer)) != -1) {
+                consumed += buffer[length - 1];
+            }
+            ++count;
+        } while (System.nanoTime() - start < MIN_DURATION_NS);
+        sink += consumed;
+        return (double) (System.nanoTime() - start) / count;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SonicTemplateIndexTest {
+
+    private static final String[] KEYS = {"{a}", "{b}", "{title}", "{c}", "{null}", "x}y", "{z", ""};
+
+    private static final String[] PIECES = {"{a}", "{b}", "{title}", "{null}", "{", "}", "{}", "x}y", "{z", "a", "b", "<div>", "声速", "\n"};
+
+    /**
+     * Html built as <code>SonicUtils.buildHtml</code> did before the template index
+     */
+    static String replaceKeys(String templateString, JSONObject dataJson) {
+        StringBuilder htmlStringBuilder = new StringBuilder(templateString);
+        Iterator<?> iterator = dataJson.keys();
+        while (iterator.hasNext()) {
+            String key = iterator.next().toString();
+            int index = htmlStringBuilder.indexOf(key);
+            if (-1 != index) {
+                htmlStringBuilder.replace(index, index + key.length(), dataJson.optString(key));
+            }
+        }
+        return htmlStringBuilder.toString();
+    }
+
+    /**
+     * @return the demo page split with count blocks, as template and data
+     */
+    static String[] splitDemoPage(int count) throws Exception {
+        String html = SeparateTemplateAndDataTest.withBlocks(SeparateTemplateAndDataTest.readDemoPage(), count);
+        StringBuilder template = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        SonicHtmlSplitter.split(html, template, data);
+        return new String[]{html, template.toString(), data.toString()};
+    }
+
+    @Test
+    public void demoPage() throws Exception {
+        String[] page = splitDemoPage(250);
+        JSONObject dataJson = new JSONObject(page[2]);
+        SonicTemplateIndex index = SonicTemplateIndex.create(page[1], dataJson.keys());
+        assertNotNull(index);
+        assertEquals(page[0], index.buildHtml(page[1], dataJson, page[2].length()));
+
+        SonicTemplateIndex savedIndex = SonicTemplateIndex.parse(index.toString());
+        assertNotNull(savedIndex);
+        assertTrue(savedIndex.matches(page[1]));
+        assertTrue(savedIndex.covers(dataJson));
+        assertEquals(page[0], savedIndex.buildHtml(page[1], dataJson, page[2].length()));
+    }
+
+    @Test
+    public void otherTemplate() throws Exception {
+        JSONObject dataJson = new JSONObject("{\"{a}\":\"1\",\"{b}\":\"2\"}");
+        SonicTemplateIndex index = SonicTemplateIndex.parse(SonicTemplateIndex.create("<p>{a}</p><p>{b}</p>", dataJson.keys()).toString());
+        assertNotNull(index);
+        assertTrue(index.matches("<p>{a}</p><p>{b}</p>"));
+        assertFalse(index.matches("<p>{b}</p><p>{a}</p>"));
+        assertFalse(index.matches("<p>{a}</p><p>{b}</p>\n"));
+        assertFalse(index.covers(new JSONObject("{\"{c}\":\"3\"}")));
+        assertNull(SonicTemplateIndex.parse("12\n0,3,{a}"));
+        assertNull(SonicTemplateIndex.parse("12\n0,x,{a}\n"));
+    }
+
+    @Test
+    public void overlappedKeys() throws Exception {
+        JSONObject dataJson = new JSONObject("{\"{a}\":\"1\",\"a}\":\"2\"}");
+        assertNull(SonicTemplateIndex.create("<p>{a}</p>", dataJson.keys()));
+    }
+
+    @Test
+    public void pieces() throws Exception {
+        Random random = new Random(25);
+        for (int i = 0; i < 20000; ++i) {
+            StringBuilder template = new StringBuilder();
+            for (int j = random.nextInt(20); j > 0; --j) {
+                template.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            JSONObject dataJson = new JSONObject();
+            for (String key : KEYS) {
+                if (random.nextBoolean()) {
+                    dataJson.put(key, "<p>" + random.nextInt(1000) + "</p>");
+                }
+            }
+            SonicTemplateIndex index = SonicTemplateIndex.create(template.toString(), dataJson.keys());
+            if (null != index) {
+                String expected = replaceKeys(template.toString(), dataJson);
+                assertEquals(expected, index.buildHtml(template.toString(), dataJson, 0));
+                assertEquals(expected, SonicTemplateIndex.parse(index.toString()).buildHtml(template.toString(), dataJson, 0));
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+<!DOCTYPE html>
+<html>
+<head>
+<meta charset="utf-8">
+{title}
+<link rel="stylesheet" href="index.css">
+</head>
+<body>
+<svg><title>icon</title></svg>
+{null}
+<div id="user">{user}</div>
+<ul>
+{数据_1}
+</ul>
+{null}
+{empty}
+<!--sonicdiff-a-b-->not a key<!--sonicdiff-a-b-end-->
+{TITLE}
+<p>{title} stays text &lt;title&gt;</p>
+</body>
+</html>
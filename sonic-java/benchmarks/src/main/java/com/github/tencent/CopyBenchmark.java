@@ -0,0 +1,99 @@
+package com.github.tencent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The copy of a response, written in the 8KB chunks of a servlet response buffer.
+ * <p>
+ * <code>byteArray</code> is the growing array the copy was kept in before, <code>pooledSlabs</code> is
+ * {@link SonicChunkedBuffer} given back to its pool after the response as the filter does, and
+ * <code>unpooledSlabs</code> never gives its slabs back, as when the pool is empty.
+ * <p>
+ * Slabs released by one response are taken again by the next one, so the pool only allocates when
+ * more copies are made at once than its idle slabs cover. <code>pooledSlabs</code> copies pages in bursts of
+ * <code>burst</code> and releases them together once the burst is complete, as when that many requests
+ * come in at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmark {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"10240", "204800", "2097152"})
+    public int pageSize;
+
+    private byte[] page;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        page = SyntheticPages.page(pageSize, 50, 0).getBytes("UTF-8");
+    }
+
+    private void writePage(OutputStream copy) throws IOException {
+        for (int off = 0; off < page.length; off += CHUNK_SIZE) {
+            copy.write(page, off, Math.min(CHUNK_SIZE, page.length - off));
+        }
+    }
+
+    @Benchmark
+    public int byteArray() throws Exception {
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        writePage(copy);
+        return copy.size();
+    }
+
+    @State(Scope.Thread)
+    public static class Responses {
+
+        /**
+         * pages copied before any of them is released
+         */
+        @Param({"1", "16", "64"})
+        public int burst;
+
+        final Queue<SonicChunkedBuffer> copies = new ArrayDeque<SonicChunkedBuffer>();
+    }
+
+    @Benchmark
+    public int pooledSlabs(Responses responses) throws Exception {
+        SonicChunkedBuffer copy = new SonicChunkedBuffer();
+        writePage(copy);
+        responses.copies.add(copy);
+        if (responses.copies.size() == responses.burst) {
+            while (!responses.copies.isEmpty()) {
+                responses.copies.remove().release();
+            }
+        }
+        return copy.size();
+    }
+
+    @Benchmark
+    public int unpooledSlabs() throws Exception {
+        SonicChunkedBuffer copy = new SonicChunkedBuffer();
+        writePage(copy);
+        return copy.size();
+    }
+}
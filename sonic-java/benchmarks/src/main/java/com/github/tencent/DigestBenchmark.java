@@ -0,0 +1,103 @@
+package com.github.tencent;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SonicUtil#encrypt(String, String)} and {@link SonicUtil#hex(byte[])} against the code they replaced,
+ * a MessageDigest looked up on every call and a hex built with <code>Integer.toHexString</code>. The etag of a
+ * page is also compared with the slabs of the copy hashed as they are against the page decoded and encoded again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+
+    /**
+     * the etag and template-tag of small pages, the keys of the store and the data blocks are shorter still
+     */
+    @Param({"64", "10240"})
+    public int textSize;
+
+    private String text;
+
+    private byte[] digest;
+
+    private SonicChunkedBuffer page;
+
+    @Setup
+    public void setUp() {
+        text = SyntheticPages.page(2 * textSize, 0, 0).substring(0, textSize);
+        digest = new byte[20];
+        for (int i = 0; i < digest.length; ++i) {
+            digest[i] = (byte) (i * 37);
+        }
+        page = new SonicChunkedBuffer();
+        byte[] bytes = text.getBytes(Charset.forName("UTF-8"));
+        page.write(bytes, 0, bytes.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        page.release();
+    }
+
+    private static String oldHex(byte[] arr) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < arr.length; ++i) {
+            sb.append(Integer.toHexString((arr[i] & 0xFF) | 0x100).substring(1, 3));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String oldEncrypt() throws Exception {
+        MessageDigest m = MessageDigest.getInstance("sha-1");
+        m.update(text.getBytes("UTF8"));
+        return oldHex(m.digest());
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return SonicUtil.encrypt(text, "sha-1");
+    }
+
+    @Benchmark
+    public String oldEncryptPage() throws Exception {
+        MessageDigest m = MessageDigest.getInstance("sha-1");
+        m.update(page.toString(Charset.forName("UTF-8")).getBytes("UTF8"));
+        return oldHex(m.digest());
+    }
+
+    @Benchmark
+    public String encryptPage() {
+        return SonicUtil.encrypt(page, "sha-1");
+    }
+
+    @Benchmark
+    public String oldHex() {
+        return oldHex(digest);
+    }
+
+    @Benchmark
+    public String hex() {
+        return SonicUtil.hex(digest);
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.tencent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * The UTF-8 json of a data response by {@link SonicJsonWriter} and by Gson, as SonicFilter wrote it before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private static final Gson GSON = new Gson();
+
+    @Param({"5", "50", "500"})
+    public int blocks;
+
+    private Map<String, String> data;
+
+    private String templateTag;
+
+    private String htmlSha1;
+
+    @Setup
+    public void setUp() {
+        data = new LinkedHashMap<String, String>();
+        data.put("{title}", "<title>声速 \"synthetic\" page</title>");
+        for (int block = 0; block < blocks; ++block) {
+            data.put("{b" + block + "}", "<!--sonicdiff-b" + block + "--><p class=\"item\">data " + block
+                    + " 声速</p>\n<!--sonicdiff-b" + block + "-end-->");
+        }
+        templateTag = SonicUtil.encrypt("template", "sha-1");
+        htmlSha1 = SonicUtil.encrypt("html", "sha-1");
+    }
+
+    @Benchmark
+    public byte[] gson() throws Exception {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("data", data);
+        result.put("template-tag", templateTag);
+        result.put("html-sha1", htmlSha1);
+        result.put("diff", "");
+        return GSON.toJson(result).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public byte[] sonicJsonWriter() {
+        return SonicJsonWriter.write(data, templateTag, htmlSha1, "");
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.tencent;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SonicFilter#doFilter} end to end, the chain writes a synthetic page and the response is kept in memory.
+ * <p>
+ * <code>firstLoad</code> is a sonic request without template-tag, which gets the whole page,
+ * <code>dataUpdate</code> sends the template-tag of the page and gets its data only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SonicFilterBenchmark {
+
+    private static final String URI = "/synthetic";
+
+    @Param({"10240", "204800", "2097152"})
+    public int pageSize;
+
+    @Param({"0", "50", "500"})
+    public int blocks;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private SonicFilter filter;
+
+    private ServletContext context;
+
+    private FilterChain chain;
+
+    private String templateTag;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        filter = Fakes.filter(SonicFilter.INIT_PARAM_STREAMING, String.valueOf(streaming));
+        context = Fakes.servletContext();
+        chain = Fakes.page(SyntheticPages.page(pageSize, blocks, 0));
+        templateTag = request(null).getHeader("template-tag");
+        if (!"false".equals(request(templateTag).getHeader("template-change"))) {
+            throw new IllegalStateException("template-tag " + templateTag + " not accepted");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private FakeHttpServletResponse request(String templateTag) throws Exception {
+        FakeHttpServletRequest request = FakeHttpServletRequest.sonic(URI, context);
+        if (templateTag != null) {
+            request.header("template-tag", templateTag);
+        }
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    @Benchmark
+    public FakeHttpServletResponse firstLoad() throws Exception {
+        return request(null);
+    }
+
+    @Benchmark
+    public FakeHttpServletResponse dataUpdate() throws Exception {
+        return request(templateTag);
+    }
+}
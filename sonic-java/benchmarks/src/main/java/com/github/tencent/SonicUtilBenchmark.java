@@ -0,0 +1,98 @@
+package com.github.tencent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * The steps of a sonic response one by one: hashing the page, the hex of a digest, replacing the sonicdiff
+ * blocks and the json of the data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SonicUtilBenchmark {
+
+    private static final Pattern BLOCK_PATTERN = Pattern.compile(
+            "<!--sonicdiff-?(\\w*)-->[\\s\\S]+?<!--sonicdiff-?\\w*-end-->", Pattern.CASE_INSENSITIVE);
+
+    private static final Gson GSON = new Gson();
+
+    @Param({"10240", "204800"})
+    public int pageSize;
+
+    @Param({"50"})
+    public int blocks;
+
+    private String page;
+
+    private byte[] digest;
+
+    private Map<String, Object> result;
+
+    @Setup
+    public void setUp() {
+        page = SyntheticPages.page(pageSize, blocks, 0);
+        digest = new byte[20];
+        for (int i = 0; i < digest.length; ++i) {
+            digest[i] = (byte) (i * 37);
+        }
+        Map<String, String> data = new HashMap<String, String>();
+        replace(data);
+        result = new HashMap<String, Object>();
+        result.put("data", data);
+        result.put("template-tag", SonicUtil.encrypt(page, "sha-1"));
+        result.put("html-sha1", SonicUtil.encrypt(page, "sha-1"));
+        result.put("diff", "");
+    }
+
+    private String replace(final Map<String, String> data) {
+        return SonicUtil.replaceAllCallBack(page, BLOCK_PATTERN, new AbstractReplaceCallBack() {
+            @Override
+            public String doReplace(String text, int index, Matcher matcher) {
+                String key = "{" + matcher.group(1) + "}";
+                data.put(key, matcher.group(0));
+                return key;
+            }
+        });
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return SonicUtil.encrypt(page, "sha-1");
+    }
+
+    @Benchmark
+    public String hex() {
+        return SonicUtil.hex(digest);
+    }
+
+    @Benchmark
+    public String replaceAllCallBack() {
+        return replace(new HashMap<String, String>());
+    }
+
+    @Benchmark
+    public String gsonDataMap() {
+        return GSON.toJson(result);
+    }
+}
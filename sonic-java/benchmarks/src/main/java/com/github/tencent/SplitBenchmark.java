@@ -0,0 +1,87 @@
+package com.github.tencent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Template and data of a page three ways, with the same results: the regular expressions SonicFilter ran
+ * before {@link TemplateReplace}, TemplateReplace, and {@link SonicStreamScanner} over the UTF-8 bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SplitBenchmark {
+
+    private static final String TITLE_REGEX = "<title(.*?)<\\/title>";
+
+    private static final Pattern BLOCK_PATTERN = Pattern.compile(
+            "<!--sonicdiff-?(\\w*)-->[\\s\\S]+?<!--sonicdiff-?\\w*-end-->", Pattern.CASE_INSENSITIVE);
+
+    @Param({"10240", "204800"})
+    public int pageSize;
+
+    @Param({"50"})
+    public int blocks;
+
+    private String page;
+
+    private byte[] pageBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        page = SyntheticPages.page(pageSize, blocks, 0);
+        pageBytes = page.getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public String regex() {
+        final Map<String, String> data = new HashMap<String, String>();
+        data.put("{title}", SonicUtil.pregMatch(page, TITLE_REGEX));
+        String template = page.replaceAll(TITLE_REGEX, "{title}");
+        template = SonicUtil.replaceAllCallBack(template, BLOCK_PATTERN, new AbstractReplaceCallBack() {
+            @Override
+            public String doReplace(String text, int index, Matcher matcher) {
+                String key = "{" + matcher.group(1) + "}";
+                data.put(key, matcher.group(0));
+                return key;
+            }
+        });
+        return SonicUtil.encrypt(template, "sha-1");
+    }
+
+    @Benchmark
+    public String templateReplace() {
+        TemplateReplace templateReplace = new TemplateReplace();
+        templateReplace.scan(page, SonicPatterns.DEFAULT);
+        Map<String, String> data = new HashMap<String, String>(templateReplace.getDiffData());
+        data.put("{title}", templateReplace.getTitle());
+        return SonicUtil.encrypt(templateReplace.buildTemplate(), "sha-1");
+    }
+
+    @Benchmark
+    public String streamScanner() throws Exception {
+        SonicStreamScanner scanner = new SonicStreamScanner(SonicPatterns.DEFAULT);
+        scanner.write(pageBytes, 0, pageBytes.length);
+        scanner.finish();
+        scanner.getDataMap();
+        return scanner.getTemplateSha1();
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.tencent;
+
+/**
+ * Pages of a given size with a given number of sonicdiff blocks, spread evenly between static markup.
+ */
+final class SyntheticPages {
+
+    private static final String STATIC_LINE = "<div class=\"item\"><a href=\"/list?id=1024\">static markup</a></div>\n";
+
+    private SyntheticPages() {
+    }
+
+    /**
+     * @param size size of the page in chars, a page with many blocks may be larger
+     * @param blocks number of sonicdiff blocks
+     * @param variant changes the data of the blocks but not the template
+     */
+    static String page(int size, int blocks, int variant) {
+        StringBuilder page = new StringBuilder(size + 256);
+        page.append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>synthetic ")
+                .append(variant).append("</title></head><body>\n");
+        int staticSize = Math.max(0, size - page.length() - blocks * 80 - 16) / (blocks + 1);
+        appendStatic(page, staticSize);
+        for (int block = 0; block < blocks; ++block) {
+            page.append("<!--sonicdiff-b").append(block).append("-->");
+            page.append("<p>data ").append(block).append(" v").append(variant).append("</p>");
+            page.append("<!--sonicdiff-b").append(block).append("-end-->\n");
+            appendStatic(page, staticSize);
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+
+    private static void appendStatic(StringBuilder page, int size) {
+        for (int end = page.length() + size; page.length() < end; ) {
+            page.append(STATIC_LINE, 0, Math.min(STATIC_LINE.length(), end - page.length()));
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays sonic traffic against a page served through SonicFilter, such as the page of
+ * {@link SonicLoadTestServer} or the sample webapp, and reports
+ * throughput, latency percentiles and bytes on the wire per scenario.
+ * <p>
+ * Each request acts as an Android client sending the headers of <code>SonicSessionConnection</code>:
+ * <ul>
+ * <li>first: a client without cache, only <code>accept-diff</code></li>
+ * <li>notModified: <code>If-None-Match</code> and <code>template-tag</code> of the current page, 304 expected</li>
+ * <li>dataUpdate: a stale etag and the current <code>template-tag</code>, data expected</li>
+ * <li>templateChange: a stale etag and a stale <code>template-tag</code>, the whole page expected</li>
+ * </ul>
+ * The current etag and template-tag are learnt from the responses, so a page changing during the run keeps
+ * being answered the expected way.
+ * <pre>
+ * javac SonicLoadTest.java
+ * java SonicLoadTest http://localhost:8080/sonic/index.jsp -threads 32 -seconds 60 -gzip \
+ *     -mix first=5,notModified=60,dataUpdate=30,templateChange=5
+ * </pre>
+ */
+public class SonicLoadTest {
+
+    private static final String[] SCENARIOS = {"first", "notModified", "dataUpdate", "templateChange"};
+
+    private static final int FIRST = 0;
+
+    private static final int NOT_MODIFIED = 1;
+
+    private static final int DATA_UPDATE = 2;
+
+    private static final int TEMPLATE_CHANGE = 3;
+
+    private static final String STALE = "0000000000000000000000000000000000000000";
+
+    private final URL url;
+
+    private final boolean gzip;
+
+    /**
+     * etag and template-tag of the current page
+     */
+    private final AtomicReference<String[]> current = new AtomicReference<String[]>();
+
+    private SonicLoadTest(URL url, boolean gzip) {
+        this.url = url;
+        this.gzip = gzip;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: SonicLoadTest url [-threads n] [-seconds n] [-warmup seconds] [-gzip]"
+                    + " [-mix first=5,notModified=60,dataUpdate=30,templateChange=5]");
+            System.exit(1);
+        }
+        int threads = 16;
+        int seconds = 30;
+        int warmup = 5;
+        boolean gzip = false;
+        int[] weights = {5, 60, 30, 5};
+        for (int i = 1; i < args.length; ++i) {
+            if ("-threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-seconds".equals(args[i])) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if ("-warmup".equals(args[i])) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("-gzip".equals(args[i])) {
+                gzip = true;
+            } else if ("-mix".equals(args[i])) {
+                weights = parseMix(args[++i]);
+            } else {
+                throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        SonicLoadTest test = new SonicLoadTest(new URL(args[0]), gzip);
+        Result first = test.send(FIRST);
+        if (first.status != HttpURLConnection.HTTP_OK || first.etag == null || first.templateTag == null) {
+            System.err.println("not a sonic response: status " + first.status + ", etag " + first.etag
+                    + ", template-tag " + first.templateTag);
+            System.exit(1);
+        }
+        if (warmup > 0) {
+            test.run(threads, warmup, weights);
+        }
+        long startNanos = System.nanoTime();
+        Stats[] stats = test.run(threads, seconds, weights);
+        report(stats, (System.nanoTime() - startNanos) / 1e9, threads);
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[SCENARIOS.length];
+        for (String item : mix.split(",")) {
+            String[] pair = item.trim().split("=");
+            int index = Arrays.asList(SCENARIOS).indexOf(pair[0].trim());
+            if (index < 0 || pair.length != 2) {
+                throw new IllegalArgumentException("invalid mix: " + item);
+            }
+            weights[index] = Integer.parseInt(pair[1].trim());
+        }
+        return weights;
+    }
+
+    /**
+     * @return stats of each scenario, merged from every thread
+     */
+    private Stats[] run(int threads, int seconds, final int[] weights) throws InterruptedException {
+        final long endNanos = System.nanoTime() + seconds * 1000000000L;
+        final List<Stats[]> perThread = new ArrayList<Stats[]>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        final int totalWeight = total;
+        for (int t = 0; t < threads; ++t) {
+            final Stats[] stats = newStats();
+            perThread.add(stats);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        while (System.nanoTime() < endNanos) {
+                            int scenario = pick(weights, random.nextInt(totalWeight));
+                            long start = System.nanoTime();
+                            try {
+                                Result result = send(scenario);
+                                stats[scenario].add(System.nanoTime() - start, result.wireBytes,
+                                        isExpected(scenario, result));
+                            } catch (IOException e) {
+                                stats[scenario].errors++;
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "SonicLoadTest-" + t);
+            thread.start();
+        }
+        done.await();
+        Stats[] merged = newStats();
+        for (Stats[] stats : perThread) {
+            for (int i = 0; i < merged.length; ++i) {
+                merged[i].merge(stats[i]);
+            }
+        }
+        return merged;
+    }
+
+    private static int pick(int[] weights, int value) {
+        for (int i = 0; i < weights.length; ++i) {
+            value -= weights[i];
+            if (value < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private static boolean isExpected(int scenario, Result result) {
+        switch (scenario) {
+            case NOT_MODIFIED:
+                return result.status == HttpURLConnection.HTTP_NOT_MODIFIED;
+            case DATA_UPDATE:
+                return result.status == HttpURLConnection.HTTP_OK && "false".equals(result.templateChange);
+            default:
+                return result.status == HttpURLConnection.HTTP_OK && "true".equals(result.templateChange);
+        }
+    }
+
+    private Result send(int scenario) throws IOException {
+        String[] page = current.get();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty("accept-diff", "true");
+        if (scenario != FIRST && page != null) {
+            connection.setRequestProperty("If-None-Match", scenario == NOT_MODIFIED ? page[0] : STALE);
+            connection.setRequestProperty("template-tag", scenario == TEMPLATE_CHANGE ? STALE : page[1]);
+        }
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        connection.setRequestProperty("Accept-Language", "zh-CN,zh;");
+        connection.setRequestProperty("sonic-sdk-version", "Sonic/loadtest");
+        Result result = new Result();
+        result.status = connection.getResponseCode();
+        // HttpURLConnection does not decode gzip, so the bytes read are the bytes on the wire
+        InputStream in = result.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        long bodyBytes = 0;
+        if (in != null) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bodyBytes += n;
+            }
+            in.close();
+        }
+        result.wireBytes = bodyBytes + headerBytes(connection.getHeaderFields());
+        result.etag = connection.getHeaderField("Etag");
+        result.templateTag = connection.getHeaderField("template-tag");
+        result.templateChange = connection.getHeaderField("template-change");
+        if (result.status == HttpURLConnection.HTTP_OK && result.etag != null && result.templateTag != null) {
+            current.set(new String[]{result.etag, result.templateTag});
+        }
+        return result;
+    }
+
+    /**
+     * @return bytes of the status line and the response headers, as sent by HTTP/1.1
+     */
+    private static long headerBytes(Map<String, List<String>> headers) {
+        long bytes = 2;
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                // the status line has no name
+                bytes += (entry.getKey() == null ? 0 : entry.getKey().length() + 2) + value.length() + 2;
+            }
+        }
+        return bytes;
+    }
+
+    private static Stats[] newStats() {
+        Stats[] stats = new Stats[SCENARIOS.length];
+        for (int i = 0; i < stats.length; ++i) {
+            stats[i] = new Stats();
+        }
+        return stats;
+    }
+
+    private static void report(Stats[] stats, double seconds, int threads) {
+        System.out.println(String.format(Locale.US, "%d threads, %.1f s", threads, seconds));
+        System.out.println(String.format(Locale.US, "%-15s %9s %9s %8s %8s %8s %8s %11s %9s %7s",
+                "scenario", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "bytes/req", "MB",
+                "bad"));
+        Stats all = new Stats();
+        for (int i = 0; i < stats.length; ++i) {
+            print(SCENARIOS[i], stats[i], seconds);
+            all.merge(stats[i]);
+        }
+        print("total", all, seconds);
+    }
+
+    private static void print(String name, Stats stats, double seconds) {
+        if (stats.count == 0 && stats.errors == 0) {
+            return;
+        }
+        long[] latencies = Arrays.copyOf(stats.latencies, stats.count);
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US, "%-15s %9d %9.1f %8.2f %8.2f %8.2f %8.2f %11d %9.2f %7d",
+                name, stats.count, stats.count / seconds, percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6,
+                stats.count == 0 ? 0 : stats.wireBytes / stats.count, stats.wireBytes / 1e6,
+                stats.errors + stats.unexpected));
+    }
+
+    /**
+     * @return the percentile in milliseconds of sorted latencies in nanoseconds
+     */
+    private static double percentile(long[] latencies, int percent) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * latencies.length) - 1;
+        return latencies[Math.max(0, index)] / 1e6;
+    }
+
+    private static class Result {
+
+        int status;
+
+        long wireBytes;
+
+        String etag;
+
+        String templateTag;
+
+        String templateChange;
+    }
+
+    /**
+     * stats of one scenario, owned by one thread until merged
+     */
+    private static class Stats {
+
+        long[] latencies = new long[1024];
+
+        int count;
+
+        long wireBytes;
+
+        /**
+         * IOExceptions
+         */
+        int errors;
+
+        /**
+         * responses other than expected, such as a 200 for notModified while the page keeps changing
+         */
+        int unexpected;
+
+        void add(long latencyNanos, long bytes, boolean expected) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            wireBytes += bytes;
+            if (!expected) {
+                unexpected++;
+            }
+        }
+
+        void merge(Stats other) {
+            for (int i = 0; i < other.count; ++i) {
+                add(other.latencies[i], 0, true);
+            }
+            wireBytes += other.wireBytes;
+            errors += other.errors;
+            unexpected += other.unexpected;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import com.github.tencent.SonicFilter;
+
+/**
+ * Serves a synthetic page through SonicFilter in an embedded Jetty, so {@link SonicLoadTest} runs against
+ * the same server, filter and page wherever the repository is checked out.
+ * <p>
+ * The page is <code>pageBytes</code> long with <code>blocks</code> sonicdiff blocks spread between static
+ * markup, and does not change while the server runs. Init-params of SonicFilter are given with
+ * <code>-init name=value</code>. The arguments after <code>--</code> run SonicLoadTest against the page in the
+ * same JVM, then the server stops:
+ * <pre>
+ * mvn -B package
+ * java -jar target/loadtest.jar -blocks 50 -pageBytes 20480 -init streaming=true -- -threads 32 -seconds 60
+ * </pre>
+ * Without <code>--</code> the server runs until it is killed, at http://localhost:8080/sonic/index.html by default.
+ */
+public class SonicLoadTestServer {
+
+    private static final String STATIC_LINE = "<div class=\"item\"><a href=\"/list?id=1024\">static markup</a></div>\n";
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        int pageBytes = 20480;
+        int blocks = 50;
+        Map<String, String> initParams = new HashMap<String, String>();
+        String[] loadTestArgs = null;
+        for (int i = 0; i < args.length; ++i) {
+            if ("-port".equals(args[i])) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-pageBytes".equals(args[i])) {
+                pageBytes = Integer.parseInt(args[++i]);
+            } else if ("-blocks".equals(args[i])) {
+                blocks = Integer.parseInt(args[++i]);
+            } else if ("-init".equals(args[i])) {
+                String[] pair = args[++i].split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("invalid init-param: " + args[i]);
+                }
+                initParams.put(pair[0].trim(), pair[1].trim());
+            } else if ("--".equals(args[i])) {
+                loadTestArgs = Arrays.copyOfRange(args, i + 1, args.length);
+                break;
+            } else {
+                System.err.println("usage: SonicLoadTestServer [-port n] [-pageBytes n] [-blocks n]"
+                        + " [-init name=value]... [-- SonicLoadTest options]");
+                System.exit(1);
+            }
+        }
+
+        Server server = start(port, page(pageBytes, blocks), initParams);
+        String url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                + "/sonic/index.html";
+        System.out.println("serving " + pageBytes + " bytes with " + blocks + " blocks at " + url
+                + ", init-params " + initParams);
+        if (loadTestArgs == null) {
+            server.join();
+            return;
+        }
+        try {
+            List<String> testArgs = new ArrayList<String>();
+            testArgs.add(url);
+            testArgs.addAll(Arrays.asList(loadTestArgs));
+            SonicLoadTest.main(testArgs.toArray(new String[testArgs.size()]));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Server start(int port, String page, Map<String, String> initParams) throws Exception {
+        Server server = new Server(port);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/sonic");
+        FilterHolder filter = new FilterHolder(SonicFilter.class);
+        filter.setInitParameters(initParams);
+        filter.setAsyncSupported(true);
+        context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+        ServletHolder servlet = new ServletHolder(new PageServlet(page.getBytes("UTF-8")));
+        servlet.setAsyncSupported(true);
+        context.addServlet(servlet, "/index.html");
+        server.setHandler(context);
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return a page of about size chars with the sonicdiff blocks spread evenly between static markup
+     */
+    static String page(int size, int blocks) {
+        StringBuilder page = new StringBuilder(size + 256);
+        page.append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>sonic load test</title></head><body>\n");
+        int staticSize = Math.max(0, size - page.length() - blocks * 80 - 16) / (blocks + 1);
+        appendStatic(page, staticSize);
+        for (int block = 0; block < blocks; ++block) {
+            page.append("<!--sonicdiff-b").append(block).append("-->");
+            page.append("<p>data ").append(block).append("</p>");
+            page.append("<!--sonicdiff-b").append(block).append("-end-->\n");
+            appendStatic(page, staticSize);
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+
+    private static void appendStatic(StringBuilder page, int size) {
+        for (int end = page.length() + size; page.length() < end; ) {
+            page.append(STATIC_LINE, 0, Math.min(STATIC_LINE.length(), end - page.length()));
+        }
+    }
+
+    private static class PageServlet extends HttpServlet {
+
+        private final byte[] page;
+
+        PageServlet(byte[] page) {
+            this.page = page;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentType("text/html;charset=utf-8");
+            response.getOutputStream().write(page);
+        }
+    }
+}
@@ -1,42 +1,188 @@
 package com.github.tencent;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
+/**
+ * Keeps a copy of the text written to the response instead of sending it. Other content types are
+ * not copied: they are decided on the first write, and from then the bytes go straight to the real
+ * output stream. So does text larger than the max copy size, which is sent as it is with
+ * <code>Cache-Offline: http</code>.
+ */
 public class HttpServletResponseCopier extends HttpServletResponseWrapper {
     private PrintWriter writer;
     private ServletOutputStreamCopier copier;
+    private OutputStream tee;
+    private int maxCopySize;
+
+    /**
+     * the request of the response, null if unknown
+     */
+    private ServletRequest request;
+
+    /**
+     * true once {@link #passThrough()} is called, the response is not copied any more
+     */
+    private volatile boolean passThrough = false;
 
     public HttpServletResponseCopier(HttpServletResponse response) throws IOException {
+        this(response, null);
+    }
+
+    /**
+     * @param response
+     * @param tee receives every byte written to the response besides the copy, may be null
+     * @throws IOException
+     */
+    public HttpServletResponseCopier(HttpServletResponse response, OutputStream tee) throws IOException {
+        this(response, tee, 0);
+    }
+
+    /**
+     * @param response
+     * @param tee receives every byte written to the response besides the copy, may be null
+     * @param maxCopySize max number of bytes copied, 0 for no limit
+     * @throws IOException
+     */
+    public HttpServletResponseCopier(HttpServletResponse response, OutputStream tee, int maxCopySize)
+            throws IOException {
+        this(null, response, tee, maxCopySize);
+    }
+
+    /**
+     * @param request the request of the response, a WriteListener set by its servlet is first called on the
+     *                thread of its async context. May be null
+     * @param response
+     * @param tee receives every byte written to the response besides the copy, may be null
+     * @param maxCopySize max number of bytes copied, 0 for no limit
+     * @throws IOException
+     */
+    public HttpServletResponseCopier(ServletRequest request, HttpServletResponse response, OutputStream tee,
+                                     int maxCopySize) throws IOException {
         super(response);
+        this.request = request;
+        this.tee = tee;
+        this.maxCopySize = maxCopySize;
     }
 
     @Override
-    public ServletOutputStream getOutputStream() throws IOException {
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
         if (writer != null) {
             throw new IllegalStateException("getWriter() has already been called on this response.");
         }
-        copier = new ServletOutputStreamCopier();
+        if (copier == null && passThrough) {
+            return getResponse().getOutputStream();
+        }
+        if (copier == null) {
+            copier = createCopier();
+        }
         return copier;
     }
 
     @Override
-    public PrintWriter getWriter() throws IOException {
-        if (copier != null) {
+    public synchronized PrintWriter getWriter() throws IOException {
+        if (copier != null && writer == null) {
             throw new IllegalStateException("getOutputStream() has already been called on this response.");
         }
+        if (writer == null && passThrough) {
+            return getResponse().getWriter();
+        }
         if (writer == null) {
-            copier = new ServletOutputStreamCopier();
-            writer = new PrintWriter(new OutputStreamWriter(copier, getResponse().getCharacterEncoding()), true);
+            copier = createCopier();
+            writer = new PrintWriter(new OutputStreamWriter(copier, getResponse().getCharacterEncoding()), true) {
+                @Override
+                public void write(int c) {
+                    super.write(c);
+                    flushIfPassThrough();
+                }
+
+                @Override
+                public void write(char[] buf, int off, int len) {
+                    super.write(buf, off, len);
+                    flushIfPassThrough();
+                }
+
+                @Override
+                public void write(String s, int off, int len) {
+                    super.write(s, off, len);
+                    flushIfPassThrough();
+                }
+
+                /**
+                 * once the response passes through, nothing is left in the encoder for the container to miss
+                 * when the async request completes
+                 */
+                private void flushIfPassThrough() {
+                    if (passThrough) {
+                        flush();
+                    }
+                }
+            };
         }
         return writer;
     }
 
+    private ServletOutputStreamCopier createCopier() {
+        return new ServletOutputStreamCopier(tee, maxCopySize) {
+            @Override
+            ServletOutputStream getPassThrough() throws IOException {
+                return isText(getContentType()) ? null : getResponse().getOutputStream();
+            }
+
+            @Override
+            ServletOutputStream getOverflow() throws IOException {
+                // the page is too large to be split, the client loads it the plain way for a while
+                ((HttpServletResponse) getResponse()).setHeader("Cache-Offline", "http");
+                return getResponse().getOutputStream();
+            }
+
+            @Override
+            AsyncContext getAsyncContext() {
+                return request != null && request.isAsyncStarted() ? request.getAsyncContext() : null;
+            }
+        };
+    }
+
+    /**
+     * @param contentType
+     * @return true if responses of the content type are copied, the other ones pass through
+     */
+    static boolean isText(String contentType) {
+        return contentType != null && contentType.contains("text");
+    }
+
+    /**
+     * Send what was written so far and everything written later to the real response, with
+     * <code>Cache-Offline: http</code>. For a page which may still be written on another thread once the
+     * filter chain returned, as it is when the request went async.
+     * @throws IOException
+     */
+    synchronized void passThrough() throws IOException {
+        passThrough = true;
+        ((HttpServletResponse) getResponse()).setHeader("Cache-Offline", "http");
+        if (writer != null) {
+            writer.flush();
+        }
+        if (copier != null) {
+            copier.passThrough(getResponse().getOutputStream());
+        }
+    }
+
+    /**
+     * @return true if the response has been written to the real output stream instead of the copy
+     */
+    public synchronized boolean isPassThrough() {
+        return passThrough || (copier != null && copier.isPassThrough());
+    }
+
     @Override
     public void flushBuffer() throws IOException {
         if (writer != null) {
@@ -53,4 +199,30 @@ public class HttpServletResponseCopier extends HttpServletResponseWrapper {
             return new byte[0];
         }
     }
+
+    public int getCopySize() {
+        return copier != null ? copier.getCopySize() : 0;
+    }
+
+    /**
+     * @return the buffer holding the copy, not a duplicate
+     */
+    SonicChunkedBuffer getCopyBuffer() {
+        return copier != null ? copier.getCopyBuffer() : new SonicChunkedBuffer();
+    }
+
+    /**
+     * recycle the memory of the copy once it is not needed any more
+     */
+    void release() {
+        if (copier != null) {
+            copier.release();
+        }
+    }
+
+    public void writeCopyTo(OutputStream out) throws IOException {
+        if (copier != null) {
+            copier.writeCopyTo(out);
+        }
+    }
 }
@@ -1,36 +1,274 @@
 package com.github.tencent;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 
+/**
+ * Copies the bytes written instead of sending them. Writes are synchronized: a page whose request went async
+ * may still be written on another thread when the copy is switched to pass through, see
+ * {@link #passThrough(ServletOutputStream)}.
+ */
 public class ServletOutputStreamCopier extends ServletOutputStream {
 
-    private ByteArrayOutputStream copy;
+    private SonicChunkedBuffer copy;
+
+    private OutputStream tee;
+
+    private boolean started = false;
+
+    /**
+     * receives the bytes instead of the copy, null while copying
+     */
+    private ServletOutputStream passThrough;
+
+    /**
+     * max number of bytes copied, 0 for no limit
+     */
+    private int maxCopySize;
+
+    /**
+     * set on the copy, given to the pass through stream if the copy switches to it later
+     */
+    private WriteListener writeListener;
+
+    /**
+     * true until the first call of writeListener returns. The pass through stream only gets the listener
+     * afterwards, so the listener is never called twice at once
+     */
+    private boolean firstCallPending = false;
 
     public ServletOutputStreamCopier() {
-        this.copy = new ByteArrayOutputStream();
+        this(null);
+    }
+
+    /**
+     * @param tee receives every byte written besides the copy, may be null
+     */
+    public ServletOutputStreamCopier(OutputStream tee) {
+        this(tee, 0);
+    }
+
+    /**
+     * @param tee receives every byte written besides the copy, may be null
+     * @param maxCopySize max number of bytes copied, 0 for no limit. Once more bytes are written the copy
+     *                    is flushed to {@link #getOverflow()} and the following bytes pass through
+     */
+    public ServletOutputStreamCopier(OutputStream tee, int maxCopySize) {
+        this.copy = new SonicChunkedBuffer();
+        this.tee = tee;
+        this.maxCopySize = maxCopySize;
     }
 
     @Override
-    public void write(int b) throws IOException {
+    public synchronized void write(int b) throws IOException {
+        if (!started) {
+            start();
+        }
+        if (passThrough != null || overflow(1)) {
+            passThrough.write(b);
+            return;
+        }
         copy.write(b);
+        if (tee != null) {
+            tee.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (!started) {
+            start();
+        }
+        if (passThrough != null || overflow(len)) {
+            passThrough.write(b, off, len);
+            return;
+        }
+        copy.write(b, off, len);
+        if (tee != null) {
+            tee.write(b, off, len);
+        }
+    }
+
+    private void start() throws IOException {
+        started = true;
+        passThrough = getPassThrough();
+    }
+
+    /**
+     * called before the first byte is written
+     * @return the stream receiving the bytes instead of the copy, null to copy them
+     * @throws IOException
+     */
+    ServletOutputStream getPassThrough() throws IOException {
+        return null;
+    }
+
+    /**
+     * switch to pass through if len more bytes do not fit in the copy
+     * @return true if the bytes pass through from now on
+     */
+    private boolean overflow(int len) throws IOException {
+        if (maxCopySize <= 0 || copy.size() + len <= maxCopySize) {
+            return false;
+        }
+        ServletOutputStream out = getOverflow();
+        if (out == null) {
+            maxCopySize = 0;
+            return false;
+        }
+        copy.writeTo(out);
+        copy.release();
+        tee = null;
+        passThrough = out;
+        return true;
+    }
+
+    /**
+     * called once when the copy would grow past maxCopySize
+     * @return the stream receiving the copy so far and the following bytes, null to keep copying
+     * @throws IOException
+     */
+    ServletOutputStream getOverflow() throws IOException {
+        return null;
+    }
+
+    /**
+     * @return the async context on whose thread the WriteListener is first called, null to call it from
+     * {@link #setWriteListener(WriteListener)}
+     */
+    AsyncContext getAsyncContext() {
+        return null;
+    }
+
+    /**
+     * write the copy so far to out and send the following bytes there too, nothing is copied any more.
+     * Does nothing if the bytes already pass through.
+     * @param out
+     * @throws IOException
+     */
+    synchronized void passThrough(ServletOutputStream out) throws IOException {
+        started = true;
+        if (passThrough != null) {
+            return;
+        }
+        copy.writeTo(out);
+        copy.release();
+        tee = null;
+        passThrough = out;
+        if (writeListener != null && !firstCallPending) {
+            // the copy was always ready, from now on the listener waits for out
+            out.setWriteListener(writeListener);
+        }
+    }
+
+    /**
+     * @return true if the bytes went to the pass through stream instead of the copy
+     */
+    public synchronized boolean isPassThrough() {
+        return passThrough != null;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (passThrough != null) {
+            passThrough.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (passThrough != null) {
+            passThrough.close();
+        }
     }
 
     public byte[] getCopy() {
         return copy.toByteArray();
     }
 
+    public int getCopySize() {
+        return copy.size();
+    }
+
+    /**
+     * @return the buffer holding the copy, not a duplicate
+     */
+    SonicChunkedBuffer getCopyBuffer() {
+        return copy;
+    }
+
+    /**
+     * recycle the memory of the copy, it is empty afterwards
+     */
+    void release() {
+        copy.release();
+    }
+
+    /**
+     * write the copy to out without duplicating the buffer
+     * @param out
+     * @throws IOException
+     */
+    public void writeCopyTo(OutputStream out) throws IOException {
+        copy.writeTo(out);
+    }
+
+    /**
+     * the copy is kept in memory, so writing never blocks unless the bytes pass through
+     */
     @Override
-    public boolean isReady() {
-        return this.isReady();
+    public synchronized boolean isReady() {
+        return passThrough == null || passThrough.isReady();
     }
 
+    /**
+     * the copy is always ready, so the listener is called once through the container, as a container calls
+     * it once setWriteListener has returned
+     */
     @Override
-    public void setWriteListener(WriteListener writeListener) {
-        this.setWriteListener(writeListener);
+    public void setWriteListener(final WriteListener writeListener) {
+        synchronized (this) {
+            if (passThrough != null) {
+                passThrough.setWriteListener(writeListener);
+                return;
+            }
+            this.writeListener = writeListener;
+            firstCallPending = true;
+        }
+        Runnable firstCall = new Runnable() {
+            @Override
+            public void run() {
+                ServletOutputStream out;
+                synchronized (ServletOutputStreamCopier.this) {
+                    out = passThrough;
+                }
+                if (out == null) {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
+                synchronized (ServletOutputStreamCopier.this) {
+                    firstCallPending = false;
+                    out = passThrough;
+                }
+                // switched to pass through in the meantime, the listener waits for out from now on
+                if (out != null) {
+                    out.setWriteListener(writeListener);
+                }
+            }
+        };
+        AsyncContext asyncContext = getAsyncContext();
+        if (asyncContext != null) {
+            asyncContext.start(firstCall);
+        } else {
+            firstCall.run();
+        }
     }
 
 }
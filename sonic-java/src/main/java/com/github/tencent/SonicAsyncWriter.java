@@ -0,0 +1,74 @@
+package com.github.tencent;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Writes a response body in chunks whenever the container can take more, then completes the
+ * async request once the container has taken the last chunk. No thread waits on a slow client meanwhile.
+ */
+class SonicAsyncWriter implements WriteListener {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream out;
+
+    private final byte[] body;
+
+    private final int length;
+
+    private final SonicGzipBuffer recycled;
+
+    private int offset = 0;
+
+    private boolean done = false;
+
+    /**
+     * @param recycled released once the body is sent, may be null
+     */
+    SonicAsyncWriter(AsyncContext asyncContext, ServletOutputStream out, byte[] body, int length,
+                     SonicGzipBuffer recycled) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.body = body;
+        this.length = length;
+        this.recycled = recycled;
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        // called again by the container once it can take more, until then the last write may still be pending
+        while (out.isReady()) {
+            if (offset == length) {
+                done();
+                return;
+            }
+            int size = Math.min(CHUNK_SIZE, length - offset);
+            out.write(body, offset, size);
+            offset += size;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        asyncContext.getRequest().getServletContext().log("SonicFilter failed to write response", t);
+        done();
+    }
+
+    private void done() {
+        // the container may report an error after the last write
+        if (done) {
+            return;
+        }
+        done = true;
+        if (recycled != null) {
+            recycled.release();
+        }
+        asyncContext.complete();
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.tencent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps written bytes in fixed size slabs instead of one growing array, so nothing is copied when
+ * it grows and the slabs can be hashed, decoded or sent without joining them.
+ * <p>
+ * Slabs are recycled across requests, call {@link #release()} once the bytes are not needed any more.
+ */
+class SonicChunkedBuffer extends OutputStream {
+
+    static final int SLAB_SIZE = 16 * 1024;
+
+    /**
+     * 4MB of idle slabs at most. A copy gets its slabs back from the pool without allocating as long as the
+     * pages being copied at once fit in the slabs released before: a burst of 256 pages up to 16KB, or of 19
+     * pages of 200KB. Larger bursts allocate the slabs they lack, see CopyBenchmark of the benchmarks module
+     */
+    private static final int MAX_POOL_SIZE = 256;
+
+    private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+
+    private static final AtomicInteger poolSize = new AtomicInteger();
+
+    private final List<byte[]> slabs = new ArrayList<byte[]>();
+
+    /**
+     * the last slab, null if there is no slab yet
+     */
+    private byte[] current;
+
+    /**
+     * bytes used in the last slab
+     */
+    private int position = SLAB_SIZE;
+
+    private int count = 0;
+
+    private static byte[] obtainSlab() {
+        byte[] slab = pool.poll();
+        if (slab == null) {
+            return new byte[SLAB_SIZE];
+        }
+        poolSize.decrementAndGet();
+        return slab;
+    }
+
+    private static void releaseSlab(byte[] slab) {
+        if (poolSize.incrementAndGet() > MAX_POOL_SIZE) {
+            poolSize.decrementAndGet();
+            return;
+        }
+        pool.offer(slab);
+    }
+
+    private void nextSlab() {
+        current = obtainSlab();
+        slabs.add(current);
+        position = 0;
+    }
+
+    @Override
+    public void write(int b) {
+        if (position == SLAB_SIZE) {
+            nextSlab();
+        }
+        current[position++] = (byte) b;
+        ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (position == SLAB_SIZE) {
+                nextSlab();
+            }
+            int n = Math.min(len, SLAB_SIZE - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            count += n;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int lengthOf(int index) {
+        return index == slabs.size() - 1 ? position : SLAB_SIZE;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < slabs.size(); ++i) {
+            out.write(slabs.get(i), 0, lengthOf(i));
+        }
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < slabs.size(); ++i) {
+            System.arraycopy(slabs.get(i), 0, bytes, i * SLAB_SIZE, lengthOf(i));
+        }
+        return bytes;
+    }
+
+    void update(MessageDigest digest) {
+        for (int i = 0; i < slabs.size(); ++i) {
+            digest.update(slabs.get(i), 0, lengthOf(i));
+        }
+    }
+
+    /**
+     * @return true if no byte is above 0x20, see {@link SonicUtil#encrypt(byte[], String)}
+     */
+    boolean isBlank() {
+        for (int i = 0; i < slabs.size(); ++i) {
+            byte[] slab = slabs.get(i);
+            for (int j = 0, length = lengthOf(i); j < length; ++j) {
+                if ((slab[j] & 0xFF) > ' ') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * decode the bytes slab by slab, the result is the same as new String(toByteArray(), charset)
+     * @param charset
+     * @return
+     */
+    String toString(Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer out = CharBuffer.allocate((int) (count * (double) decoder.maxCharsPerByte()) + 1);
+        // a char may be split between two slabs, the bytes left undecoded are carried over to the next one
+        ByteBuffer in = ByteBuffer.allocate(Math.min(count, SLAB_SIZE) + 16);
+        for (int i = 0; i < slabs.size(); ++i) {
+            in.put(slabs.get(i), 0, lengthOf(i));
+            in.flip();
+            decoder.decode(in, out, false);
+            in.compact();
+        }
+        in.flip();
+        decoder.decode(in, out, true);
+        decoder.flush(out);
+        out.flip();
+        return out.toString();
+    }
+
+    /**
+     * give the slabs back to the pool, the buffer is empty afterwards
+     */
+    void release() {
+        for (int i = 0; i < slabs.size(); ++i) {
+            releaseSlab(slabs.get(i));
+        }
+        slabs.clear();
+        current = null;
+        position = SLAB_SIZE;
+        count = 0;
+    }
+}
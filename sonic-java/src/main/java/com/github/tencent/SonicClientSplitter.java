@@ -0,0 +1,315 @@
+package com.github.tencent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits a page into the template and data the Android SDK keeps for it, a port of its
+ * <code>SonicHtmlSplitter</code>. A template diff is applied to the template file of the client, so the
+ * templates it is computed from have to be the same to the byte:
+ * <ul>
+ * <li>a block is <code>&lt;!--sonicdiff-key--&gt;</code>, at least one char and the first
+ * <code>&lt;!--sonicdiff-key-end--&gt;</code>. A block without key is <code>{null}</code>,
+ * not <code>{}</code> as in {@link TemplateReplace}</li>
+ * <li>only the first exact <code>&lt;title&gt;</code> left in the template after the blocks is
+ * replaced with <code>{title}</code>, case sensitively and without attributes</li>
+ * <li>a page without block has an empty template and no data</li>
+ * </ul>
+ * <code>SonicClientSplitterTest</code> and <code>SeparateTemplateAndDataTest</code> of the Android SDK check
+ * both splitters against the same files.
+ */
+class SonicClientSplitter {
+
+    private static final String TAG_PREFIX = "<!--sonicdiff";
+
+    private static final String KEY_PREFIX = "<!--sonicdiff-";
+
+    private static final String TAG_END = "-->";
+
+    private static final String BLOCK_END = "-end-->";
+
+    private static final String TITLE_OPEN = "<title>";
+
+    private static final String TITLE_CLOSE = "</title>";
+
+    private static final String TITLE_KEY = "{title}";
+
+    /**
+     * a tag being matched, from its '<'
+     */
+    private final StringBuilder tag = new StringBuilder(64);
+
+    /**
+     * the block being read from its beginning tag, null out of blocks
+     */
+    private StringBuilder block;
+
+    private int blockTagLength;
+
+    private int blockCount;
+
+    private final StringBuilder template;
+
+    private final Map<String, String> data = new LinkedHashMap<String, String>();
+
+    /**
+     * chars of the template matching the beginning of TITLE_OPEN, or of TITLE_CLOSE once title is not null
+     */
+    private int titleMatched;
+
+    /**
+     * the title being read, from its open tag
+     */
+    private StringBuilder title;
+
+    /**
+     * length of the template when the title starts
+     */
+    private int titleStart;
+
+    /**
+     * the whole title once it has been read
+     */
+    private String titleData;
+
+    private SonicClientSplitter(int length) {
+        template = new StringBuilder(length);
+    }
+
+    /**
+     * @param html
+     * @return the template and data of html as the Android SDK splits it
+     */
+    static SonicClientSplitter split(String html) {
+        SonicClientSplitter splitter = new SonicClientSplitter(html.length());
+        for (int i = 0, length = html.length(); i < length; ++i) {
+            splitter.scan(html.charAt(i));
+        }
+        splitter.finish();
+        return splitter;
+    }
+
+    /**
+     * @return the template, empty if the page has no block
+     */
+    String getTemplate() {
+        return blockCount > 0 ? template.toString() : "";
+    }
+
+    /**
+     * @return the data by key in page order, with <code>{title}</code> last, empty if the page has no block
+     */
+    Map<String, String> getData() {
+        return blockCount > 0 ? data : new LinkedHashMap<String, String>();
+    }
+
+    private void finish() {
+        // neither an unfinished tag nor an unfinished block can be matched any more
+        if (block != null) {
+            block.append(tag);
+            appendTemplate(block);
+            block = null;
+        } else {
+            appendTemplate(tag);
+        }
+        tag.setLength(0);
+
+        if (title != null) {
+            int end = 0;
+            if (titleStart < TITLE_OPEN.length()) {
+                // the client ends a title without its close tag where its open tag would end from the
+                // beginning of the template
+                end = TITLE_OPEN.length() - titleStart;
+                titleData = title.substring(0, end);
+                template.append(TITLE_KEY);
+            }
+            template.append(title, end, title.length());
+            title = null;
+        } else if (titleData == null) {
+            template.append(TITLE_OPEN, 0, titleMatched);
+        }
+
+        if (blockCount > 0 && titleData != null) {
+            data.put(TITLE_KEY, titleData);
+        }
+    }
+
+    private void scan(char c) {
+        if (block == null) {
+            scanText(c);
+        } else {
+            scanBlock(c);
+        }
+    }
+
+    private void scanText(char c) {
+        int matched = tag.length();
+        if (matched == 0) {
+            if (c == '<') {
+                tag.append(c);
+            } else {
+                appendTemplate(c);
+            }
+        } else if (matched < TAG_PREFIX.length() ? c == TAG_PREFIX.charAt(matched) : isTagChar(c)) {
+            tag.append(c);
+        } else if (matched >= TAG_PREFIX.length() && c == '>') {
+            tag.append(c);
+            if (isTag(tag, TAG_END)) {
+                block = new StringBuilder(tag.length() + 256).append(tag);
+                blockTagLength = tag.length();
+            } else {
+                appendTemplate(tag);
+            }
+            tag.setLength(0);
+        } else {
+            appendTemplate(tag);
+            tag.setLength(0);
+            scanText(c);
+        }
+    }
+
+    private void scanBlock(char c) {
+        int matched = tag.length();
+        if (matched == 0) {
+            // data of a block has at least one char, so its end tag can not follow its beginning tag
+            if (c == '<' && block.length() > blockTagLength) {
+                tag.append(c);
+            } else {
+                block.append(c);
+            }
+        } else if (matched < TAG_PREFIX.length() ? c == TAG_PREFIX.charAt(matched) : isTagChar(c)) {
+            tag.append(c);
+        } else if (matched >= TAG_PREFIX.length() && c == '>') {
+            tag.append(c);
+            block.append(tag);
+            boolean blockEnd = isTag(tag, BLOCK_END);
+            tag.setLength(0);
+            if (blockEnd) {
+                endBlock();
+            }
+        } else {
+            block.append(tag);
+            tag.setLength(0);
+            scanBlock(c);
+        }
+    }
+
+    /**
+     * @return true for '-' and the chars of <code>\w</code> in the Unicode aware regular expressions of Android
+     */
+    private static boolean isTagChar(char c) {
+        if (c < 0x80) {
+            return c == '-' || c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+        switch (Character.getType(c)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+            case Character.LETTER_NUMBER:
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+            default:
+                // zero width non-joiner and joiner
+                return c == '\u200c' || c == '\u200d';
+        }
+    }
+
+    /**
+     * @return true if text is TAG_PREFIX, an optional '-', a key without '-' and suffix
+     */
+    private static boolean isTag(CharSequence text, String suffix) {
+        int keyEnd = text.length() - suffix.length();
+        if (keyEnd < TAG_PREFIX.length()) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); ++i) {
+            if (text.charAt(keyEnd + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        int keyStart = TAG_PREFIX.length();
+        if (keyStart < keyEnd && text.charAt(keyStart) == '-') {
+            ++keyStart;
+        }
+        for (int i = keyStart; i < keyEnd; ++i) {
+            if (text.charAt(i) == '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the key between KEY_PREFIX and the first TAG_END of the beginning tag, "null" if the tag does not
+     * start with KEY_PREFIX or the key is empty
+     */
+    private static String getKey(CharSequence text, int tagEnd) {
+        int keyStart = KEY_PREFIX.length();
+        if (text.charAt(keyStart - 1) != '-') {
+            return "null";
+        }
+        for (int i = keyStart - 1; i + TAG_END.length() <= tagEnd; ++i) {
+            if (text.charAt(i) == '-' && text.charAt(i + 1) == '-' && text.charAt(i + 2) == '>') {
+                return keyStart < i ? text.subSequence(keyStart, i).toString() : "null";
+            }
+        }
+        return "null";
+    }
+
+    private void endBlock() {
+        String key = "{" + getKey(block, blockTagLength) + "}";
+        data.put(key, block.toString());
+        block = null;
+        ++blockCount;
+        appendTemplate(key);
+    }
+
+    private void appendTemplate(CharSequence text) {
+        for (int i = 0, length = text.length(); i < length; ++i) {
+            appendTemplate(text.charAt(i));
+        }
+    }
+
+    /**
+     * the template goes through here, where its first title is replaced with TITLE_KEY
+     */
+    private void appendTemplate(char c) {
+        if (titleData != null) {
+            template.append(c);
+        } else if (title == null) {
+            if (c == TITLE_OPEN.charAt(titleMatched)) {
+                if (++titleMatched == TITLE_OPEN.length()) {
+                    title = new StringBuilder(TITLE_OPEN);
+                    titleStart = template.length();
+                    titleMatched = 0;
+                }
+            } else {
+                template.append(TITLE_OPEN, 0, titleMatched);
+                titleMatched = 0;
+                if (c == '<') {
+                    titleMatched = 1;
+                } else {
+                    template.append(c);
+                }
+            }
+        } else {
+            title.append(c);
+            if (c == TITLE_CLOSE.charAt(titleMatched)) {
+                if (++titleMatched == TITLE_CLOSE.length()) {
+                    titleData = title.toString();
+                    title = null;
+                    titleMatched = 0;
+                    template.append(TITLE_KEY);
+                }
+            } else {
+                titleMatched = c == '<' ? 1 : 0;
+            }
+        }
+    }
+}
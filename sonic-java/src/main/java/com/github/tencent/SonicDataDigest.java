@@ -0,0 +1,128 @@
+package com.github.tencent;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lets a client tell {@link SonicFilter} which data blocks it already has, so only the changed
+ * blocks are sent when the template is not changed.
+ * <p>
+ * The client sends the <code>data-digest</code> request header, a comma separated list of
+ * <code>key:digest</code> pairs such as <code>{title}:3f786850a1b2c3d4,{auto0}:89e6c98d5e6f7a8b</code>,
+ * where the digest is the sha1 of the UTF-8 block in hex, or a prefix of at least
+ * {@link #MIN_DIGEST_LENGTH} chars of it to keep the header short. The data of the response then
+ * holds only the blocks whose digest differs, and the <code>data-diff: true</code> response header
+ * tells the client to merge them with its local data.
+ * <p>
+ * A block is sent whenever its digest is in doubt: pairs without a key, digests which are too short,
+ * too long or not hex, and keys given more than once are all taken as absent.
+ */
+public class SonicDataDigest {
+
+    /**
+     * request header carrying the digests of the data blocks the client has
+     */
+    public static final String REQUEST_HEADER = "data-digest";
+
+    /**
+     * response header set to "true" when the data holds changed blocks only
+     */
+    public static final String RESPONSE_HEADER = "data-diff";
+
+    /**
+     * 64 bits of sha1, a shorter prefix would let a changed block pass for the one the client has
+     */
+    public static final int MIN_DIGEST_LENGTH = 16;
+
+    private static final int SHA1_HEX_LENGTH = 40;
+
+    private final Map<String, String> digests;
+
+    private SonicDataDigest(Map<String, String> digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * @param header value of the data-digest request header
+     * @return null if the header is absent or carries no digest
+     */
+    public static SonicDataDigest parse(String header) {
+        if (header == null) {
+            return null;
+        }
+        Map<String, String> digests = new HashMap<String, String>();
+        Set<String> duplicateKeys = new HashSet<String>();
+        for (String pair : header.split(",")) {
+            // keys may hold ':', digests never do
+            int index = pair.lastIndexOf(':');
+            String key = index < 0 ? "" : pair.substring(0, index).trim();
+            if (key.length() == 0) {
+                continue;
+            }
+            String digest = pair.substring(index + 1).trim().toLowerCase();
+            if (!isDigest(digest) || digests.put(key, digest) != null) {
+                duplicateKeys.add(key);
+            }
+        }
+        digests.keySet().removeAll(duplicateKeys);
+        return digests.isEmpty() ? null : new SonicDataDigest(digests);
+    }
+
+    /**
+     * @return true if digest can be the sha1 of a block or a prefix of it long enough to be trusted
+     */
+    private static boolean isDigest(String digest) {
+        if (digest.length() < MIN_DIGEST_LENGTH || digest.length() > SHA1_HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < digest.length(); ++i) {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the digest sent for the block of key in lower case, null if there is none
+     */
+    String getDigest(String key) {
+        return digests.get(key);
+    }
+
+    /**
+     * @param value a data block
+     * @return sha1 of the UTF-8 block in lower case hex
+     */
+    public static String digest(String value) {
+        try {
+            MessageDigest m = SonicUtil.getDigest("sha-1");
+            return SonicUtil.hex(m.digest(value.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param data data blocks of the page
+     * @return blocks which the client does not have
+     */
+    public Map<String, String> getChangedData(Map<String, String> data) {
+        Map<String, String> changedData = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            String clientDigest = digests.get(entry.getKey());
+            if (clientDigest == null || !digest(entry.getValue()).startsWith(clientDigest)) {
+                changedData.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changedData;
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.tencent;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.servlet.ServletContext;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Remembers the last response of recent pages for a short time, so {@link SonicFilter} can answer
+ * 304 or the data of a page without running the servlet again.
+ * <p>
+ * Entries are kept per sonic session key (the request uri with its query string) and user bucket
+ * (the value of a configured cookie) and template variant (see {@link SonicTemplateVariant}), and expire after a fixed time to live. Pages that change
+ * within that time must be invalidated by the application, the registry of a filter can be found
+ * by {@link #get(ServletContext)}.
+ * <p>
+ * Entries live in a {@link SonicStore}, so an invalidation made on one node is seen by every node
+ * sharing the store. Invalidating a session key moves it to a new generation instead of looking
+ * for the entries of every bucket.
+ */
+public class SonicEtagRegistry {
+
+    /**
+     * name of the ServletContext attribute holding the registry of {@link SonicFilter}
+     */
+    public static final String CONTEXT_ATTRIBUTE = SonicEtagRegistry.class.getName();
+
+    private static final String ENTRY_KEY_PREFIX = "sonic-etag:";
+
+    private static final String GENERATION_KEY_PREFIX = "sonic-etag-generation:";
+
+    private static final char KEY_SEPARATOR = '\n';
+
+    private static final Gson GSON = new Gson();
+
+    private final long ttlMillis;
+
+    private final SonicStore store;
+
+    /**
+     * @param ttlMillis how long a response is reused
+     * @param maxSize max number of responses kept, the least recently used one is dropped first
+     */
+    public SonicEtagRegistry(long ttlMillis, int maxSize) {
+        this(ttlMillis, new SonicMemoryStore(maxSize));
+    }
+
+    /**
+     * @param ttlMillis how long a response is reused
+     * @param store where responses are kept
+     */
+    public SonicEtagRegistry(long ttlMillis, SonicStore store) {
+        this.ttlMillis = ttlMillis;
+        this.store = store;
+    }
+
+    /**
+     * get the registry installed by {@link SonicFilter}
+     * @param context
+     * @return null if the etag registry is not enabled
+     */
+    public static SonicEtagRegistry get(ServletContext context) {
+        return (SonicEtagRegistry) context.getAttribute(CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * @param sessionKey
+     * @param bucket
+     * @param variant
+     * @return the entry which has not expired yet, null if there is none
+     */
+    Entry get(String sessionKey, String bucket, String variant) {
+        byte[] bytes = store.get(toKey(sessionKey, bucket, variant));
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return GSON.fromJson(new String(bytes, "UTF-8"), Entry.class);
+        } catch (JsonParseException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * remember the response of a page
+     * @param sessionKey
+     * @param bucket
+     * @param variant
+     * @param contentType
+     * @param htmlSha1
+     * @param templateTag
+     * @param data data of the page, including {title}
+     * @param pageLength size of the page in bytes
+     */
+    void put(String sessionKey, String bucket, String variant, String contentType, String htmlSha1,
+             String templateTag, Map<String, String> data, int pageLength) {
+        Entry entry = new Entry(contentType, htmlSha1, templateTag, new HashMap<String, String>(data), pageLength);
+        try {
+            store.put(toKey(sessionKey, bucket, variant), GSON.toJson(entry).getBytes("UTF-8"), ttlMillis);
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * forget the page of every user bucket and variant
+     * @param sessionKey the request uri with its query string
+     */
+    public void invalidate(String sessionKey) {
+        try {
+            // entries of older generations expire within the ttl, so the generation does not need to live longer
+            store.put(GENERATION_KEY_PREFIX + sessionKey, UUID.randomUUID().toString().getBytes("UTF-8"), ttlMillis);
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * forget the page of one user bucket when template variants are not configured
+     * @param sessionKey the request uri with its query string
+     * @param bucket value of the bucket cookie, empty string if the cookie is not configured
+     */
+    public void invalidate(String sessionKey, String bucket) {
+        invalidate(sessionKey, bucket, "");
+    }
+
+    /**
+     * forget one variant of the page of one user bucket
+     * @param sessionKey the request uri with its query string
+     * @param bucket value of the bucket cookie, empty string if the cookie is not configured
+     * @param variant see {@link SonicTemplateVariant#getVariant(javax.servlet.http.HttpServletRequest)}, empty
+     *                string if variants are not configured
+     */
+    public void invalidate(String sessionKey, String bucket, String variant) {
+        store.remove(toKey(sessionKey, bucket, variant));
+    }
+
+    private String toKey(String sessionKey, String bucket, String variant) {
+        byte[] generation = store.get(GENERATION_KEY_PREFIX + sessionKey);
+        String prefix = ENTRY_KEY_PREFIX;
+        if (generation != null) {
+            try {
+                prefix = prefix + new String(generation, "UTF-8") + ":";
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
+        String key = prefix + sessionKey + KEY_SEPARATOR + (bucket == null ? "" : bucket);
+        return variant == null || variant.length() == 0 ? key : key + KEY_SEPARATOR + variant;
+    }
+
+    static class Entry {
+
+        final String contentType;
+
+        final String htmlSha1;
+
+        final String templateTag;
+
+        final Map<String, String> data;
+
+        final int pageLength;
+
+        Entry(String contentType, String htmlSha1, String templateTag, Map<String, String> data, int pageLength) {
+            this.contentType = contentType;
+            this.htmlSha1 = htmlSha1;
+            this.templateTag = templateTag;
+            this.data = data;
+            this.pageLength = pageLength;
+        }
+    }
+}
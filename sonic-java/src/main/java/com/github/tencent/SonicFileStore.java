@@ -0,0 +1,211 @@
+package com.github.tencent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * {@link SonicStore} keeping one file per value in a directory.
+ * <p>
+ * Nodes mounting the same directory share their templates and etags, and a restarted node finds
+ * the values of its previous run. It stands in for a shared cache where none is available.
+ * Expired files are removed when they are read and by a sweep every {@link #SWEEP_INTERVAL} puts.
+ * <p>
+ * A value is written to a temp file which is then moved over the old one, there is no forced sync:
+ * a value lost in a crash is only a miss of the cache. Files are read in one go and never mapped,
+ * a mapped file could not be replaced on Windows until the mapping is garbage collected.
+ */
+public class SonicFileStore implements SonicStore {
+
+    /**
+     * init-param name, directory of the files, required
+     */
+    public static final String INIT_PARAM_STORE_DIR = "storeDir";
+
+    private static final String SUFFIX = ".sonic";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * expire time and key length
+     */
+    private static final int HEADER_SIZE = 8 + 4;
+
+    private static final int SWEEP_INTERVAL = 1024;
+
+    /**
+     * temp files left by a crashed node are deleted after this time
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+    private File dir;
+
+    private final AtomicInteger putCount = new AtomicInteger();
+
+    public SonicFileStore() {
+    }
+
+    public SonicFileStore(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        String storeDir = config.getInitParameter(INIT_PARAM_STORE_DIR);
+        if (storeDir != null) {
+            dir = new File(storeDir.trim());
+        }
+        if (dir == null) {
+            throw new ServletException(INIT_PARAM_STORE_DIR + " is required by " + getClass().getName());
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new ServletException("can not create " + INIT_PARAM_STORE_DIR + ": " + dir);
+        }
+        sweep();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            long expireAt = buffer.getLong();
+            if (expireAt > 0 && expireAt <= System.currentTimeMillis()) {
+                file.delete();
+                return null;
+            }
+            byte[] storedKey = new byte[buffer.getInt()];
+            buffer.get(storedKey);
+            // different keys may share a file name, the stored key tells them apart
+            if (!key.equals(new String(storedKey, "UTF-8"))) {
+                return null;
+            }
+            byte[] value = new byte[buffer.remaining()];
+            buffer.get(value);
+            return value;
+        } catch (IOException e) {
+            // removed by another node or not written by this store, either way there is no value
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlMillis) {
+        File file = getFile(key);
+        File temp = null;
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0);
+            header.putInt(keyBytes.length);
+            header.flip();
+            ByteBuffer[] buffers = {header, ByteBuffer.wrap(keyBytes), ByteBuffer.wrap(value)};
+            temp = File.createTempFile(file.getName(), TEMP_SUFFIX, dir);
+            out = new FileOutputStream(temp);
+            FileChannel channel = out.getChannel();
+            long remaining = HEADER_SIZE + keyBytes.length + value.length;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+        if (!written) {
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+        // readers see either the old file or the new one, never a half written one
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (putCount.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        getFile(key).delete();
+    }
+
+    @Override
+    public void destroy() {
+        // files are kept for other nodes and the next run
+    }
+
+    /**
+     * delete expired files and temp files left by crashed nodes
+     */
+    public void sweep() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                if (file.lastModified() < now - STALE_TEMP_MILLIS) {
+                    file.delete();
+                }
+                continue;
+            }
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                long expireAt = raf.length() >= HEADER_SIZE ? raf.readLong() : 0;
+                if (expireAt > 0 && expireAt <= now) {
+                    close(raf);
+                    raf = null;
+                    file.delete();
+                }
+            } catch (IOException e) {
+                // removed by another node
+            } finally {
+                close(raf);
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(dir, SonicUtil.encrypt(key, "sha-1") + SUFFIX);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
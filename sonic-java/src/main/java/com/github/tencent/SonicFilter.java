@@ -1,11 +1,21 @@
 package com.github.tencent;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -13,144 +23,983 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import com.google.gson.*;
 
-class TemplateReplace extends AbstractReplaceCallBack {
-    public static boolean shoudSonicDiffBodyReplace = false; 
-    public static int diffIndex = 0;
-    public static String tagPrefix = "auto";
-    public static HashMap<String, String> diffTagNames = new HashMap<String, String>(); 
+public class SonicFilter implements Filter {
 
-    public String doReplace(String text, int index, Matcher matcher) {
-        StringBuilder tagBuilder = new StringBuilder();
-        String tagName;
-        shoudSonicDiffBodyReplace = true;
-        if(matcher.groupCount() == 1) {
-            tagName = matcher.group(1);
-        }
-        else {
-            StringBuilder sb = new StringBuilder();
-            sb.append(tagPrefix).append(diffIndex++);
-            tagName = sb.toString();
-        }
-        diffTagNames.put(tagName, matcher.group(0));
-        return tagBuilder.append("{").append(tagName).append("}").toString();
-    }
+    /**
+     * init-param name, set it to "true" to split template and data while the page is being written
+     */
+    public static final String INIT_PARAM_STREAMING = "streaming";
 
-    public static void reset() {
-        shoudSonicDiffBodyReplace = false;
-        diffIndex = 0;
-        diffTagNames.clear();
-    }
+    /**
+     * init-param name, max number of page templates remembered, 0 disables the template cache
+     */
+    public static final String INIT_PARAM_TEMPLATE_CACHE_SIZE = "templateCacheSize";
 
-}
+    /**
+     * init-param name, comma separated markers of data blocks besides "sonicdiff"
+     */
+    public static final String INIT_PARAM_DIFF_MARKERS = "diffMarkers";
 
-public class SonicFilter implements Filter {
+    /**
+     * init-param name, milliseconds a response is reused without running the servlet, 0 disables the etag registry
+     */
+    public static final String INIT_PARAM_ETAG_TTL = "etagTtl";
+
+    /**
+     * init-param name, cookie which separates users in the etag registry, pages are shared by all users if not set
+     */
+    public static final String INIT_PARAM_ETAG_BUCKET_COOKIE = "etagBucketCookie";
+
+    /**
+     * init-param name, class name of the {@link SonicStore} shared with other nodes, nothing is shared if not set
+     */
+    public static final String INIT_PARAM_STORE = "store";
+
+    /**
+     * init-param name, set it to "true" to split pages and write responses off the container threads
+     * for requests supporting async
+     */
+    public static final String INIT_PARAM_ASYNC = "async";
+
+    /**
+     * init-param name, number of threads splitting pages in async mode, the number of processors by default
+     */
+    public static final String INIT_PARAM_ASYNC_THREADS = "asyncThreads";
+
+    /**
+     * init-param name, set it to "true" to gzip responses for clients accepting gzip
+     */
+    public static final String INIT_PARAM_GZIP = "gzip";
+
+    /**
+     * init-param name, class name of the {@link SonicMetrics} receiving timings and outcomes, nothing is
+     * recorded if not set
+     */
+    public static final String INIT_PARAM_METRICS = "metrics";
+
+    /**
+     * init-param name, comma separated sources of the template variant of a request, such as
+     * "cookie:ab_bucket,locale", see {@link SonicTemplateVariant}. Pages have one variant if not set
+     */
+    public static final String INIT_PARAM_TEMPLATE_VARIANT = "templateVariant";
+
+    /**
+     * init-param name, number of previous templates kept per page to send template diffs, 0 disables it
+     */
+    public static final String INIT_PARAM_TEMPLATE_HISTORY = "templateHistory";
+
+    /**
+     * init-param name, policies by path prefix such as "/static/ off; /feed/ maxPageSize=262144 title=off",
+     * see {@link SonicPolicyTable}. Every page gets {@link SonicPathPolicy#DEFAULT} if not set
+     */
+    public static final String INIT_PARAM_POLICIES = "policies";
+
+    /**
+     * init-param name, min bytes of a page hashed on another thread while it is split, 0 disables it.
+     * Streaming mode already hashes the page and the template in one pass while the page is written
+     */
+    public static final String INIT_PARAM_PARALLEL_HASH = "parallelHash";
+
+    private static final int ETAG_REGISTRY_SIZE = SonicMemoryStore.DEFAULT_SIZE;
+
+    /**
+     * smaller bodies are not worth gzipping
+     */
+    private static final int GZIP_MIN_SIZE = 1024;
+
+    /**
+     * max number of pages whose previous templates are kept
+     */
+    private static final int TEMPLATE_HISTORY_SIZE = 256;
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     private FilterConfig filterConfig;
 
+    private boolean streaming = false;
+
+    private boolean gzip = false;
+
+    private SonicTemplateCache templateCache;
+
+    /**
+     * null if template diffs are disabled
+     */
+    private SonicTemplateHistory templateHistory;
+
+    private SonicPatterns patterns = SonicPatterns.DEFAULT;
+
+    /**
+     * the same markers for paths whose titles are left in the template
+     */
+    private SonicPatterns patternsWithoutTitle = SonicPatterns.DEFAULT.withoutTitle();
+
+    /**
+     * null if every page gets the default policy
+     */
+    private SonicPolicyTable policies;
+
+    private SonicStore store;
+
+    private SonicMetrics metrics = new SonicNoopMetrics();
+
+    private SonicEtagRegistry etagRegistry;
+
+    private String etagBucketCookie;
+
+    /**
+     * null if pages have one variant
+     */
+    private SonicTemplateVariant templateVariant;
+
+    /**
+     * splits pages in async mode, null if async mode is off
+     */
+    private ExecutorService asyncExecutor;
+
+    /**
+     * hashes large pages in parallel with the split, null if parallel hashing is off
+     */
+    private ExecutorService hashExecutor;
+
+    private int parallelHashMinSize;
+
+    /**
+     * idle TemplateReplace instances, each request takes its own one so no state is shared between requests
+     */
+    private final Queue<TemplateReplace> templateReplacePool = new ConcurrentLinkedQueue<TemplateReplace>();
+
     @Override
     public void destroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        if (hashExecutor != null) {
+            hashExecutor.shutdown();
+            hashExecutor = null;
+        }
+        if (etagRegistry != null) {
+            filterConfig.getServletContext().removeAttribute(SonicEtagRegistry.CONTEXT_ATTRIBUTE);
+            etagRegistry = null;
+        }
+        if (store != null) {
+            store.destroy();
+        }
+        metrics.destroy();
         this.filterConfig = null;
+        if (templateCache != null) {
+            templateCache.clear();
+        }
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException {
+        long startNanos = System.nanoTime();
 
         HttpServletRequest httpRequest = (HttpServletRequest) request;
         HttpServletResponse httpResponse = (HttpServletResponse) response;
+        // plain requests get the page as it is, so there is nothing to buffer
+        if (httpRequest.getHeader("accept-diff") == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        SonicPathPolicy policy = policies == null ? SonicPathPolicy.DEFAULT
+                : policies.get(httpRequest.getRequestURI(), httpRequest.getContextPath().length());
+        if (!policy.isEnabled()) {
+            // the client loads pages not worth splitting the plain way for a while
+            if ("true".equals(httpRequest.getHeader("accept-diff"))) {
+                httpResponse.addHeader("Cache-Offline", "http");
+            }
+            chain.doFilter(request, response);
+            return;
+        }
         Map<String,String> headerMap = SonicUtil.getAllHttpHeaders(httpRequest);
         String etag = "";
-        String htmlContent;
-        String htmlContentSha1 =""; 
         String value = headerMap.get("accept-diff");
-        if (headerMap.containsKey("accept-diff") && value.equals("true")) {
-            httpResponse.addHeader("Cache-Control", "no-cache");
+        boolean acceptDiff = headerMap.containsKey("accept-diff") && value.equals("true");
+        if (acceptDiff) {
+            httpResponse.addHeader("Cache-Control",
+                    policy.getCacheTtl() > 0 ? "max-age=" + policy.getCacheTtl() : "no-cache");
             httpResponse.addHeader("Cache-Offline", "true");
             if (headerMap.containsKey("if-none-match") || headerMap.containsKey("If-None-Match")) {
                 etag = (headerMap.get("if-none-match") != null ? headerMap.get("if-none-match")
                         : headerMap.get("If-None-Match"));
             }
         }
-        HttpServletResponseCopier responseCopier = new HttpServletResponseCopier((HttpServletResponse) response);
+        String variant = "";
+        if (templateVariant != null) {
+            variant = templateVariant.getVariant(httpRequest);
+            for (String header : templateVariant.getVaryHeaders()) {
+                httpResponse.addHeader("Vary", header);
+            }
+        }
+        Exchange exchange = new Exchange(httpRequest, httpResponse, headerMap, acceptDiff, etag,
+                gzip && acceptsGzip(httpRequest.getHeader("Accept-Encoding")), variant, startNanos);
+        exchange.policy = policy;
+        exchange.patterns = policy.isTitleExtracted() ? patterns : patternsWithoutTitle;
+        if (acceptDiff && etagRegistry != null) {
+            exchange.sessionKey = getSessionKey(httpRequest);
+            exchange.bucket = getEtagBucket(httpRequest);
+            if (replyFromEtagRegistry(exchange)) {
+                metrics.recordStage(SonicMetrics.Stage.TOTAL, System.nanoTime() - startNanos);
+                return;
+            }
+        }
+        // the streaming scanner splits template and data while the page is being written
+        SonicStreamScanner scanner = streaming ? new SonicStreamScanner(exchange.patterns) : null;
+        HttpServletResponseCopier responseCopier = new HttpServletResponseCopier(httpRequest, httpResponse, scanner,
+                policy.getMaxPageSize());
+        long renderStartNanos = System.nanoTime();
+        boolean asyncStarted = false;
         try {
             chain.doFilter(request, responseCopier);
-            responseCopier.flushBuffer();
+            asyncStarted = request.isAsyncStarted();
+            if (asyncStarted) {
+                // the page may still be written on another thread, it goes to the client as it is
+                responseCopier.passThrough();
+            } else {
+                responseCopier.flushBuffer();
+            }
         } finally {
-            String contentType = responseCopier.getContentType();
-            byte[] copy = responseCopier.getCopy();
-            //sonic only filter out text
-            if(contentType == null || !contentType.contains("text")){
-                ServletOutputStream out =  httpResponse.getOutputStream();
-                out.write(copy);
+            metrics.recordStage(SonicMetrics.Stage.RENDER, System.nanoTime() - renderStartNanos);
+            //sonic only filter out text, other content and pages over maxPageSize have been written through if any
+            if (!asyncStarted && (responseCopier.isPassThrough()
+                    || !HttpServletResponseCopier.isText(responseCopier.getContentType()))) {
+                ServletOutputStream out = httpResponse.getOutputStream();
+                responseCopier.writeCopyTo(out);
+                responseCopier.release();
                 out.close();
                 return;
             }
-            htmlContent = new String(copy, "UTF-8");
-            htmlContentSha1 = SonicUtil.encrypt(htmlContent, "sha-1");
+        }
+        if (asyncStarted) {
+            // the output is closed by whoever completes the request
+            return;
+        }
+        exchange.responseCopier = responseCopier;
+        exchange.scanner = scanner;
+        if (asyncExecutor != null && request.isAsyncSupported()) {
+            respondAsync(exchange);
+        } else {
+            respond(exchange);
+        }
+    }
+
+    /**
+     * Release the container thread: the page is split on {@link #asyncExecutor} and the response is
+     * written by a WriteListener as fast as the client reads it.
+     */
+    private void respondAsync(final Exchange exchange) throws IOException {
+        exchange.asyncContext = exchange.httpRequest.startAsync(exchange.httpRequest, exchange.httpResponse);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    respond(exchange);
+                } catch (Exception e) {
+                    exchange.httpRequest.getServletContext().log("SonicFilter failed to respond", e);
+                    if (!exchange.httpResponse.isCommitted()) {
+                        exchange.httpResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                    try {
+                        exchange.asyncContext.complete();
+                    } catch (IllegalStateException completed) {
+                        // already completed by the WriteListener
+                    }
+                }
+            }
+        };
+        try {
+            asyncExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the filter is being destroyed
+            task.run();
+        }
+    }
+
+    private void respond(Exchange exchange) throws IOException {
+        try {
+            if (exchange.scanner != null) {
+                respondStreaming(exchange);
+            } else {
+                respondDefault(exchange);
+            }
+        } finally {
+            exchange.responseCopier.release();
+        }
+        metrics.recordStage(SonicMetrics.Stage.TOTAL, System.nanoTime() - exchange.startNanos);
+    }
+
+    private void respondDefault(Exchange exchange) throws IOException {
+        HttpServletResponse httpResponse = exchange.httpResponse;
+        HttpServletResponseCopier responseCopier = exchange.responseCopier;
+        SonicChunkedBuffer page = responseCopier.getCopyBuffer();
+        int pageLength = page.size();
+        String cacheKey = getTemplateKey(exchange);
+        Map<String, String> dataMap = new HashMap<String, String>();
+        String templateMd5 = null;
+        String htmlContentSha1;
+        try {
+            // large pages are hashed on another thread while this one splits them
+            Future<String> htmlSha1Task = submitHash(page);
+            if (htmlSha1Task == null) {
+                long startNanos = System.nanoTime();
+                // hash the bytes as they are, no need to encode the page again
+                htmlContentSha1 = SonicUtil.encrypt(page, "sha-1");
+                metrics.recordStage(SonicMetrics.Stage.HASH, System.nanoTime() - startNanos);
+            } else {
+                try {
+                    templateMd5 = split(exchange, page.toString(UTF8), cacheKey, dataMap);
+                } finally {
+                    // the task reads the copy, which is released once the response is written
+                    htmlContentSha1 = awaitHash(htmlSha1Task, page);
+                }
+            }
+        } catch (IllegalStateException e) {
+            // without a sha1 there is no etag, the client gets the page the plain way
+            exchange.httpRequest.getServletContext().log("SonicFilter failed to hash the page", e);
+            httpResponse.setHeader("Cache-Offline", "http");
+            recordResponse(exchange, SonicMetrics.Outcome.TEMPLATE_CHANGE, false, pageLength, pageLength);
+            writePage(exchange, page);
+            return;
         }
         // if not modified, return 304
-        if(etag.equalsIgnoreCase(htmlContentSha1)) {
-            httpResponse.addHeader("Cache-Offline", "store");
-            httpResponse.addHeader("Content-Length", "0");
-            httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        if(exchange.etag.equalsIgnoreCase(htmlContentSha1)) {
+            recordResponse(exchange, SonicMetrics.Outcome.NOT_MODIFIED, false, pageLength, 0);
+            sendNotModified(exchange);
             return;
         }
 
         httpResponse.setHeader("Etag", htmlContentSha1);
-        String htmlTitle;
-        String clientTemplateTag ="";
-        if(headerMap.containsKey("template-tag")) {
-            clientTemplateTag = headerMap.get("template-tag");
+        String clientTemplateTag = getClientTemplateTag(exchange.headerMap);
+        if (templateMd5 == null) {
+            templateMd5 = split(exchange, page.toString(UTF8), cacheKey, dataMap);
         }
-        
-        String stringTitlePattern = "<title(.*?)<\\/title>";
-        htmlTitle = SonicUtil.pregMatch(htmlContent, stringTitlePattern);
-        String htmlTemplate= htmlContent.replaceAll(stringTitlePattern,"{title}");
-        //replace data with template
-        String stringTemplatePattern = "<!--sonicdiff-?(\\w*)-->[\\s\\S]+?<!--sonicdiff-?\\w*-end-->";
-        TemplateReplace templateReplace = new TemplateReplace();
-        Pattern pattern = Pattern.compile(stringTemplatePattern, Pattern.CASE_INSENSITIVE);
-        htmlTemplate = SonicUtil.replaceAllCallBack(htmlTemplate, pattern, templateReplace);
-
-        String templateMd5 = SonicUtil.encrypt(htmlTemplate, "sha-1");
         httpResponse.addHeader("template-tag", templateMd5);
-        Map<String, Object> result = new HashMap<String, Object>();
-        Map<String, String> dataMap = new HashMap<String, String>();
-        dataMap.put("{title}", htmlTitle);
-        for (Map.Entry<String, String> entry : TemplateReplace.diffTagNames.entrySet()) {
-            StringBuilder strKey = new StringBuilder();
-            strKey.append("{").append(entry.getKey()).append("}");
-            dataMap.put(strKey.toString(), entry.getValue());
-        }
-
-        TemplateReplace.reset();
-        result.put("data", dataMap);
-        result.put("template-tag", templateMd5);
-        result.put("html-sha1", htmlContentSha1);
-        String resultStr="";
+        if (exchange.sessionKey != null && responseCopier.getStatus() == HttpServletResponse.SC_OK) {
+            etagRegistry.put(exchange.sessionKey, exchange.bucket, exchange.variant, responseCopier.getContentType(),
+                    htmlContentSha1, templateMd5, dataMap, pageLength);
+        }
         if(templateMd5.equals(clientTemplateTag)) {
             httpResponse.addHeader("template-change", "false");
-            result.put("diff", "");
-            Gson gson = new Gson();
-            resultStr = gson.toJson(result);
+            byte[] resultBytes = buildDataResponse(httpResponse, exchange.headerMap, dataMap, templateMd5,
+                    htmlContentSha1, null);
+            recordResponse(exchange, SonicMetrics.Outcome.DATA_ONLY, false, pageLength, resultBytes.length);
+            writeBody(exchange, resultBytes, resultBytes.length);
         }
         else {
             httpResponse.addHeader("template-change", "true");
-            resultStr = htmlContent;
+            String templateDiff = getTemplateDiff(exchange, cacheKey, clientTemplateTag, templateMd5);
+            if (templateDiff != null) {
+                sendTemplateDiff(exchange, page.toString(UTF8), templateMd5, htmlContentSha1, templateDiff,
+                        pageLength);
+                return;
+            }
+            recordResponse(exchange, SonicMetrics.Outcome.TEMPLATE_CHANGE, false, pageLength, pageLength);
+            writePage(exchange, page);
+        }
+    }
+
+    /**
+     * find title and data blocks of the page, and its template-tag
+     * @param dataMap receives the title and the data blocks
+     * @return template-tag of the page
+     */
+    private String split(Exchange exchange, String htmlContent, String cacheKey, Map<String, String> dataMap) {
+        long startNanos = System.nanoTime();
+        String templateMd5 = null;
+        TemplateReplace templateReplace = obtainTemplateReplace();
+        try {
+            templateReplace.scan(htmlContent, exchange.patterns);
+            if (exchange.patterns.isTitleExtracted()) {
+                dataMap.put("{title}", templateReplace.getTitle());
+            }
+            dataMap.putAll(templateReplace.getDiffData());
+            if (templateCache != null) {
+                templateMd5 = templateCache.getTemplateTag(cacheKey, templateReplace);
+            }
+            // no need to build the template if it is the same as last time
+            if (templateMd5 == null) {
+                String htmlTemplate = templateReplace.buildTemplate();
+                templateMd5 = SonicUtil.encrypt(htmlTemplate, "sha-1");
+                if (templateCache != null) {
+                    templateCache.put(cacheKey, templateReplace, templateMd5);
+                }
+            }
+            putTemplateHistory(cacheKey, templateMd5, htmlContent);
+        } finally {
+            releaseTemplateReplace(templateReplace);
+        }
+        metrics.recordStage(SonicMetrics.Stage.SPLIT, System.nanoTime() - startNanos);
+        return templateMd5;
+    }
+
+    /**
+     * @return the task hashing the page, null if the page is to be hashed on the current thread
+     */
+    private Future<String> submitHash(final SonicChunkedBuffer page) {
+        if (hashExecutor == null || page.size() < parallelHashMinSize) {
+            return null;
+        }
+        try {
+            return hashExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return SonicUtil.encrypt(page, "sha-1");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the filter is being destroyed
+            return null;
         }
-        ServletOutputStream out = httpResponse.getOutputStream();
-        out.write(resultStr.getBytes("UTF-8"));
-        httpResponse.addHeader("Content-Length", String.valueOf(resultStr.getBytes("UTF-8").length));
-        out.close();
+    }
+
+    /**
+     * wait for the sha1 of the page, the time waited is recorded as the hash stage
+     * @return the sha1 computed by the task, or computed here if the task failed
+     * @throws IllegalStateException if the page can not be hashed here either
+     */
+    private String awaitHash(Future<String> htmlSha1Task, SonicChunkedBuffer page) {
+        long startNanos = System.nanoTime();
+        String htmlSha1 = null;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                htmlSha1 = htmlSha1Task.get();
+                break;
+            } catch (InterruptedException e) {
+                // the copy must not be released while the task reads it
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (htmlSha1 == null) {
+            htmlSha1 = SonicUtil.encrypt(page, "sha-1");
+        }
+        metrics.recordStage(SonicMetrics.Stage.HASH, System.nanoTime() - startNanos);
+        return htmlSha1;
+    }
+
+    private TemplateReplace obtainTemplateReplace() {
+        TemplateReplace templateReplace = templateReplacePool.poll();
+        return templateReplace != null ? templateReplace : new TemplateReplace();
+    }
+
+    private void releaseTemplateReplace(TemplateReplace templateReplace) {
+        templateReplace.reset();
+        templateReplacePool.offer(templateReplace);
+    }
+
+    /**
+     * @return key of the template of the page in the template cache and history, each variant keeps its own
+     */
+    private String getTemplateKey(Exchange exchange) {
+        String uri = exchange.httpRequest.getRequestURI();
+        return exchange.variant.length() == 0 ? uri : uri + "\n" + exchange.variant;
+    }
+
+    /**
+     * @return the edit script from the template of the client to the current one, null if the whole page is sent
+     */
+    private String getTemplateDiff(Exchange exchange, String templateKey, String clientTemplateTag,
+                                   String templateTag) {
+        if (templateHistory == null
+                || !"true".equalsIgnoreCase(exchange.httpRequest.getHeader(SonicTemplateDiff.REQUEST_HEADER))) {
+            return null;
+        }
+        return templateHistory.getDiff(templateKey, clientTemplateTag, templateTag);
+    }
+
+    /**
+     * remember the template of the page as the client splits it, if it is not the current one already
+     */
+    private void putTemplateHistory(String templateKey, String templateTag, String htmlContent) {
+        if (templateHistory != null && !templateHistory.isCurrent(templateKey, templateTag)) {
+            templateHistory.put(templateKey, templateTag, SonicClientSplitter.split(htmlContent).getTemplate());
+        }
+    }
+
+    /**
+     * send every data block and the changes to the template of the client, see {@link SonicTemplateDiff}.
+     * The client fills its own template, so the data is split the way it splits the page.
+     */
+    private void sendTemplateDiff(Exchange exchange, String htmlContent, String templateTag, String htmlSha1,
+                                  String templateDiff, int pageLength) throws IOException {
+        exchange.httpResponse.addHeader(SonicTemplateDiff.RESPONSE_HEADER, "true");
+        Map<String, String> data = SonicClientSplitter.split(htmlContent).getData();
+        byte[] resultBytes = buildDataResponse(exchange.httpResponse, exchange.headerMap, data, templateTag, htmlSha1,
+                templateDiff);
+        recordResponse(exchange, SonicMetrics.Outcome.TEMPLATE_DIFF, false, pageLength, resultBytes.length);
+        writeBody(exchange, resultBytes, resultBytes.length);
+    }
+
+    /**
+     * Respond with the template and data split by the streaming scanner, the page is hashed
+     * and scanned once and never decoded as a whole.
+     */
+    private void respondStreaming(Exchange exchange) throws IOException {
+        HttpServletResponse httpResponse = exchange.httpResponse;
+        HttpServletResponseCopier responseCopier = exchange.responseCopier;
+        SonicStreamScanner scanner = exchange.scanner;
+        int pageLength = responseCopier.getCopySize();
+        long startNanos = System.nanoTime();
+        scanner.finish();
+        metrics.recordStage(SonicMetrics.Stage.HASH, System.nanoTime() - startNanos);
+        String htmlContentSha1 = scanner.getHtmlSha1();
+        // if not modified, return 304
+        if (exchange.etag.equalsIgnoreCase(htmlContentSha1)) {
+            recordResponse(exchange, SonicMetrics.Outcome.NOT_MODIFIED, false, pageLength, 0);
+            sendNotModified(exchange);
+            return;
+        }
+
+        httpResponse.setHeader("Etag", htmlContentSha1);
+        String clientTemplateTag = getClientTemplateTag(exchange.headerMap);
+        String templateSha1 = scanner.getTemplateSha1();
+        httpResponse.addHeader("template-tag", templateSha1);
+        String templateKey = getTemplateKey(exchange);
+        // the scanner never decodes the page, only a new template is worth decoding it
+        if (templateHistory != null && !templateHistory.isCurrent(templateKey, templateSha1)) {
+            putTemplateHistory(templateKey, templateSha1, responseCopier.getCopyBuffer().toString(UTF8));
+        }
+        if (exchange.sessionKey != null && responseCopier.getStatus() == HttpServletResponse.SC_OK) {
+            etagRegistry.put(exchange.sessionKey, exchange.bucket, exchange.variant, responseCopier.getContentType(),
+                    htmlContentSha1, templateSha1, scanner.getDataMap(), pageLength);
+        }
+        if (templateSha1.equals(clientTemplateTag)) {
+            httpResponse.addHeader("template-change", "false");
+            byte[] resultBytes = buildDataResponse(httpResponse, exchange.headerMap, scanner.getDataMap(), templateSha1,
+                    htmlContentSha1, null);
+            recordResponse(exchange, SonicMetrics.Outcome.DATA_ONLY, false, pageLength, resultBytes.length);
+            writeBody(exchange, resultBytes, resultBytes.length);
+        } else {
+            httpResponse.addHeader("template-change", "true");
+            String templateDiff = getTemplateDiff(exchange, templateKey, clientTemplateTag, templateSha1);
+            if (templateDiff != null) {
+                sendTemplateDiff(exchange, responseCopier.getCopyBuffer().toString(UTF8), templateSha1,
+                        htmlContentSha1, templateDiff, pageLength);
+                return;
+            }
+            recordResponse(exchange, SonicMetrics.Outcome.TEMPLATE_CHANGE, false, pageLength, pageLength);
+            writePage(exchange, responseCopier.getCopyBuffer());
+        }
+    }
+
+    /**
+     * write the body, gzipped if the client accepts gzip and the body is large enough
+     */
+    private void writeBody(Exchange exchange, byte[] body, int length) throws IOException {
+        long startNanos = System.nanoTime();
+        if (useGzip(exchange, length)) {
+            SonicGzipBuffer buffer = SonicGzipBuffer.obtain();
+            buffer.write(body, 0, length);
+            sendGzipped(exchange, buffer);
+        } else {
+            exchange.httpResponse.addHeader("Content-Length", String.valueOf(length));
+            sendBody(exchange, body, length, null);
+        }
+        metrics.recordStage(SonicMetrics.Stage.WRITE, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * write the whole page from the slabs of the copy, they are joined only for a WriteListener
+     * which still needs them once the copy is released
+     */
+    private void writePage(Exchange exchange, SonicChunkedBuffer page) throws IOException {
+        long startNanos = System.nanoTime();
+        int length = page.size();
+        if (useGzip(exchange, length)) {
+            SonicGzipBuffer buffer = SonicGzipBuffer.obtain();
+            page.writeTo(buffer);
+            sendGzipped(exchange, buffer);
+        } else if (exchange.asyncContext != null) {
+            exchange.httpResponse.addHeader("Content-Length", String.valueOf(length));
+            sendBody(exchange, page.toByteArray(), length, null);
+        } else {
+            exchange.httpResponse.addHeader("Content-Length", String.valueOf(length));
+            ServletOutputStream out = exchange.httpResponse.getOutputStream();
+            page.writeTo(out);
+            out.close();
+        }
+        metrics.recordStage(SonicMetrics.Stage.WRITE, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return true if a body of length bytes is to be gzipped, Vary is added whenever gzip is enabled
+     */
+    private boolean useGzip(Exchange exchange, int length) {
+        if (gzip) {
+            exchange.httpResponse.addHeader("Vary", "Accept-Encoding");
+        }
+        return exchange.gzipBody && length >= GZIP_MIN_SIZE;
+    }
+
+    private void sendGzipped(Exchange exchange, SonicGzipBuffer buffer) throws IOException {
+        buffer.finish();
+        exchange.httpResponse.setHeader("Content-Encoding", "gzip");
+        exchange.httpResponse.addHeader("Content-Length", String.valueOf(buffer.size()));
+        sendBody(exchange, buffer.getBuffer(), buffer.size(), buffer);
+    }
+
+    private void recordResponse(Exchange exchange, SonicMetrics.Outcome outcome, boolean fromRegistry, long pageBytes,
+                                long sentBytes) {
+        if (exchange.acceptDiff) {
+            metrics.recordResponse(exchange.policy.getPrefix(), outcome, fromRegistry, pageBytes, sentBytes);
+        }
+    }
+
+    /**
+     * send the body and close the response, without blocking in async mode
+     * @param recycled released once the body is sent, may be null
+     */
+    private void sendBody(Exchange exchange, byte[] body, int length, SonicGzipBuffer recycled) throws IOException {
+        ServletOutputStream out = exchange.httpResponse.getOutputStream();
+        if (exchange.asyncContext != null) {
+            out.setWriteListener(new SonicAsyncWriter(exchange.asyncContext, out, body, length, recycled));
+            return;
+        }
+        try {
+            out.write(body, 0, length);
+            out.close();
+        } finally {
+            if (recycled != null) {
+                recycled.release();
+            }
+        }
+    }
+
+    /**
+     * @param acceptEncoding value of the Accept-Encoding request header
+     * @return true if gzip is listed and not refused by q=0
+     */
+    private boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * answer from the etag registry without running the servlet
+     * @return false if the registry can not answer this request
+     */
+    private boolean replyFromEtagRegistry(Exchange exchange) throws IOException {
+        SonicEtagRegistry.Entry entry = etagRegistry.get(exchange.sessionKey, exchange.bucket, exchange.variant);
+        if (entry == null) {
+            return false;
+        }
+        if (exchange.etag.equalsIgnoreCase(entry.htmlSha1)) {
+            recordResponse(exchange, SonicMetrics.Outcome.NOT_MODIFIED, true, entry.pageLength, 0);
+            sendNotModified(exchange);
+            return true;
+        }
+        // a new template needs the whole page, which is not kept
+        if (!entry.templateTag.equals(getClientTemplateTag(exchange.headerMap))) {
+            return false;
+        }
+        HttpServletResponse httpResponse = exchange.httpResponse;
+        byte[] resultBytes = buildDataResponse(httpResponse, exchange.headerMap, entry.data, entry.templateTag,
+                entry.htmlSha1, null);
+        recordResponse(exchange, SonicMetrics.Outcome.DATA_ONLY, true, entry.pageLength, resultBytes.length);
+        if (entry.contentType != null) {
+            httpResponse.setContentType(entry.contentType);
+        }
+        httpResponse.setHeader("Etag", entry.htmlSha1);
+        httpResponse.addHeader("template-tag", entry.templateTag);
+        httpResponse.addHeader("template-change", "false");
+        writeBody(exchange, resultBytes, resultBytes.length);
+        return true;
+    }
+
+    /**
+     * build the json sent when the template is not changed, only changed blocks are sent if the client tells
+     * the digests of its blocks
+     * @param templateDiff edit script of the template, null if the template is not changed
+     */
+    private byte[] buildDataResponse(HttpServletResponse httpResponse, Map<String, String> headerMap,
+                                     Map<String, String> data, String templateTag, String htmlSha1,
+                                     String templateDiff) throws IOException {
+        long startNanos = System.nanoTime();
+        SonicDataDigest dataDigest = SonicDataDigest.parse(headerMap.get(SonicDataDigest.REQUEST_HEADER));
+        // the page is rebuilt from every block when the template changes
+        if (dataDigest != null && templateDiff == null) {
+            data = dataDigest.getChangedData(data);
+            httpResponse.addHeader(SonicDataDigest.RESPONSE_HEADER, "true");
+        }
+        byte[] resultBytes = SonicJsonWriter.write(data, templateTag, htmlSha1,
+                templateDiff == null ? "" : templateDiff);
+        metrics.recordStage(SonicMetrics.Stage.SERIALIZE, System.nanoTime() - startNanos);
+        return resultBytes;
+    }
+
+    private String getSessionKey(HttpServletRequest httpRequest) {
+        String queryString = httpRequest.getQueryString();
+        return queryString == null ? httpRequest.getRequestURI() : httpRequest.getRequestURI() + "?" + queryString;
+    }
+
+    private String getEtagBucket(HttpServletRequest httpRequest) {
+        Cookie[] cookies = etagBucketCookie == null ? null : httpRequest.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (etagBucketCookie.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return "";
+    }
+
+    private void sendNotModified(Exchange exchange) throws IOException {
+        HttpServletResponse httpResponse = exchange.httpResponse;
+        httpResponse.addHeader("Cache-Offline", "store");
+        httpResponse.addHeader("Content-Length", "0");
+        httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        sendBody(exchange, EMPTY_BODY, 0, null);
+    }
+
+    private String getClientTemplateTag(Map<String, String> headerMap) {
+        String clientTemplateTag = "";
+        if(headerMap.containsKey("template-tag")) {
+            clientTemplateTag = headerMap.get("template-tag");
+        }
+        return clientTemplateTag;
     }
 
     @Override
     public void init(FilterConfig config) throws ServletException {
         this.filterConfig = config;
+        try {
+            this.patterns = SonicPatterns.parse(config.getInitParameter(INIT_PARAM_DIFF_MARKERS));
+            this.patternsWithoutTitle = patterns.withoutTitle();
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e);
+        }
+        try {
+            this.policies = SonicPolicyTable.parse(config.getInitParameter(INIT_PARAM_POLICIES));
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e);
+        }
+        try {
+            this.templateVariant = SonicTemplateVariant.parse(config.getInitParameter(INIT_PARAM_TEMPLATE_VARIANT));
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e);
+        }
+        this.streaming = "true".equalsIgnoreCase(config.getInitParameter(INIT_PARAM_STREAMING));
+        this.gzip = "true".equalsIgnoreCase(config.getInitParameter(INIT_PARAM_GZIP));
+        if ("true".equalsIgnoreCase(config.getInitParameter(INIT_PARAM_ASYNC))) {
+            this.asyncExecutor = createAsyncExecutor(config.getInitParameter(INIT_PARAM_ASYNC_THREADS));
+        }
+        String parallelHash = config.getInitParameter(INIT_PARAM_PARALLEL_HASH);
+        if (parallelHash != null) {
+            try {
+                this.parallelHashMinSize = Integer.parseInt(parallelHash.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("invalid " + INIT_PARAM_PARALLEL_HASH + ": " + parallelHash, e);
+            }
+            if (parallelHashMinSize > 0 && !streaming) {
+                this.hashExecutor = createExecutor("SonicFilter-hash-", Runtime.getRuntime().availableProcessors());
+            }
+        }
+        this.store = createStore(config);
+        this.metrics = createMetrics(config);
+        String templateCacheSize = config.getInitParameter(INIT_PARAM_TEMPLATE_CACHE_SIZE);
+        if (templateCacheSize != null) {
+            try {
+                int size = Integer.parseInt(templateCacheSize.trim());
+                this.templateCache = size > 0 ? new SonicTemplateCache(size, store) : null;
+            } catch (NumberFormatException e) {
+                throw new ServletException("invalid " + INIT_PARAM_TEMPLATE_CACHE_SIZE + ": " + templateCacheSize, e);
+            }
+        }
+        String templateHistoryDepth = config.getInitParameter(INIT_PARAM_TEMPLATE_HISTORY);
+        if (templateHistoryDepth != null) {
+            try {
+                int depth = Integer.parseInt(templateHistoryDepth.trim());
+                this.templateHistory = depth > 0 ? new SonicTemplateHistory(TEMPLATE_HISTORY_SIZE, depth) : null;
+            } catch (NumberFormatException e) {
+                throw new ServletException("invalid " + INIT_PARAM_TEMPLATE_HISTORY + ": " + templateHistoryDepth, e);
+            }
+        }
+        String etagTtl = config.getInitParameter(INIT_PARAM_ETAG_TTL);
+        if (etagTtl != null) {
+            try {
+                long ttl = Long.parseLong(etagTtl.trim());
+                if (ttl > 0) {
+                    this.etagRegistry = store != null ? new SonicEtagRegistry(ttl, store)
+                            : new SonicEtagRegistry(ttl, ETAG_REGISTRY_SIZE);
+                }
+            } catch (NumberFormatException e) {
+                throw new ServletException("invalid " + INIT_PARAM_ETAG_TTL + ": " + etagTtl, e);
+            }
+        }
+        if (etagRegistry != null) {
+            this.etagBucketCookie = config.getInitParameter(INIT_PARAM_ETAG_BUCKET_COOKIE);
+            config.getServletContext().setAttribute(SonicEtagRegistry.CONTEXT_ATTRIBUTE, etagRegistry);
+        }
+    }
+
+    private ExecutorService createAsyncExecutor(String asyncThreads) throws ServletException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (asyncThreads != null) {
+            try {
+                threads = Integer.parseInt(asyncThreads.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("invalid " + INIT_PARAM_ASYNC_THREADS + ": " + asyncThreads, e);
+            }
+            if (threads <= 0) {
+                throw new ServletException("invalid " + INIT_PARAM_ASYNC_THREADS + ": " + asyncThreads);
+            }
+        }
+        return createExecutor("SonicFilter-async-", threads);
+    }
+
+    private ExecutorService createExecutor(final String namePrefix, int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private SonicMetrics createMetrics(FilterConfig config) throws ServletException {
+        String className = config.getInitParameter(INIT_PARAM_METRICS);
+        if (className == null || className.trim().length() == 0) {
+            return new SonicNoopMetrics();
+        }
+        SonicMetrics sonicMetrics;
+        try {
+            sonicMetrics = Class.forName(className.trim()).asSubclass(SonicMetrics.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new ServletException("invalid " + INIT_PARAM_METRICS + ": " + className, e);
+        }
+        sonicMetrics.init(config);
+        return sonicMetrics;
+    }
+
+    private SonicStore createStore(FilterConfig config) throws ServletException {
+        String className = config.getInitParameter(INIT_PARAM_STORE);
+        if (className == null || className.trim().length() == 0) {
+            return null;
+        }
+        SonicStore sonicStore;
+        try {
+            sonicStore = Class.forName(className.trim()).asSubclass(SonicStore.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new ServletException("invalid " + INIT_PARAM_STORE + ": " + className, e);
+        }
+        sonicStore.init(config);
+        return sonicStore;
+    }
+
+    /**
+     * state of one request shared by the steps of the filter, which may run on different threads in async mode
+     */
+    private static class Exchange {
+
+        final HttpServletRequest httpRequest;
+
+        final HttpServletResponse httpResponse;
+
+        final Map<String, String> headerMap;
+
+        /**
+         * true for sonic requests, sent with accept-diff
+         */
+        final boolean acceptDiff;
+
+        /**
+         * If-None-Match of a sonic request, empty string if there is none
+         */
+        final String etag;
+
+        final boolean gzipBody;
+
+        /**
+         * template variant of the page, empty string if pages have one variant
+         */
+        final String variant;
+
+        /**
+         * System.nanoTime() when the filter got the request
+         */
+        final long startNanos;
+
+        /**
+         * key and bucket in the etag registry, null if the registry does not apply
+         */
+        String sessionKey;
+
+        String bucket;
+
+        HttpServletResponseCopier responseCopier;
+
+        /**
+         * policy of the path of the request
+         */
+        SonicPathPolicy policy;
+
+        /**
+         * patterns of the path of the request
+         */
+        SonicPatterns patterns;
+
+        /**
+         * null if streaming is off
+         */
+        SonicStreamScanner scanner;
+
+        /**
+         * null unless the response is written asynchronously
+         */
+        AsyncContext asyncContext;
+
+        Exchange(HttpServletRequest httpRequest, HttpServletResponse httpResponse, Map<String, String> headerMap,
+                 boolean acceptDiff, String etag, boolean gzipBody, String variant, long startNanos) {
+            this.httpRequest = httpRequest;
+            this.httpResponse = httpResponse;
+            this.headerMap = headerMap;
+            this.acceptDiff = acceptDiff;
+            this.etag = etag;
+            this.gzipBody = gzipBody;
+            this.variant = variant;
+            this.startNanos = startNanos;
+        }
     }
 
 }
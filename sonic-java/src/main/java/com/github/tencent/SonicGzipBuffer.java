@@ -0,0 +1,134 @@
+package com.github.tencent;
+
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips a response body into memory, so it is encoded once and its length is known before it is sent.
+ * <p>
+ * Instances keep their Deflater and buffer, take one by {@link #obtain()} and give it back by
+ * {@link #release()} when the body has been sent.
+ */
+class SonicGzipBuffer extends OutputStream {
+
+    private static final int MAX_POOL_SIZE = 32;
+
+    /**
+     * buffers grown beyond this size are not kept in the pool
+     */
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final Queue<SonicGzipBuffer> pool = new ConcurrentLinkedQueue<SonicGzipBuffer>();
+
+    private static final AtomicInteger poolSize = new AtomicInteger();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+
+    private int count = 0;
+
+    private SonicGzipBuffer() {
+        reset();
+    }
+
+    static SonicGzipBuffer obtain() {
+        SonicGzipBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return new SonicGzipBuffer();
+        }
+        poolSize.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * give the buffer back to the pool, it must not be used any more
+     */
+    void release() {
+        if (buf.length > MAX_POOLED_CAPACITY || poolSize.get() >= MAX_POOL_SIZE) {
+            deflater.end();
+            return;
+        }
+        reset();
+        poolSize.incrementAndGet();
+        pool.offer(this);
+    }
+
+    private void reset() {
+        deflater.reset();
+        crc.reset();
+        System.arraycopy(HEADER, 0, buf, 0, HEADER.length);
+        count = HEADER.length;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * write the gzip trailer, nothing can be written after it
+     */
+    void finish() {
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        ensureCapacity(8);
+        writeInt((int) crc.getValue());
+        writeInt(deflater.getTotalIn());
+    }
+
+    private void deflate() {
+        ensureCapacity(512);
+        count += deflater.deflate(buf, count, buf.length - count);
+    }
+
+    private void ensureCapacity(int free) {
+        if (buf.length - count < free) {
+            byte[] newBuf = new byte[Math.max(buf.length << 1, count + free)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+
+    private void writeInt(int value) {
+        // little endian
+        buf[count++] = (byte) value;
+        buf[count++] = (byte) (value >> 8);
+        buf[count++] = (byte) (value >> 16);
+        buf[count++] = (byte) (value >> 24);
+    }
+
+    /**
+     * @return the gzipped bytes, valid in [0, size())
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    int size() {
+        return count;
+    }
+}
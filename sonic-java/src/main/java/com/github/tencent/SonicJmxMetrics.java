@@ -0,0 +1,382 @@
+package com.github.tencent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * {@link SonicMetrics} keeping in-process histograms and counters, exposed by JMX under
+ * <code>com.github.tencent:type=SonicFilter,filter=&lt;filter name&gt;</code>:
+ * one bean per stage with its latency percentiles, and one bean per {@link SonicPolicyTable} prefix with
+ * the hit ratio, template change rate and bytes saved of the pages it matches. Pages matching no rule are
+ * recorded as {@link #DEFAULT_PATH}, so there are as many path beans as rules whatever the requests are.
+ * Recording takes a few atomic operations and allocates nothing.
+ */
+public class SonicJmxMetrics implements SonicMetrics {
+
+    /**
+     * prefixes beyond this number are recorded together as {@link #OTHER_PATH}
+     */
+    private static final int MAX_PATHS = 256;
+
+    private static final String OTHER_PATH = "*other*";
+
+    private static final String DEFAULT_PATH = "*default*";
+
+    private static final String ALL_PATHS = "*all*";
+
+    private final Histogram[] stageHistograms = new Histogram[Stage.values().length];
+
+    private final ConcurrentMap<String, PathStats> pathStats = new ConcurrentHashMap<String, PathStats>();
+
+    private final PathStats allPathStats = new PathStats();
+
+    private final PathStats otherPathStats = new PathStats();
+
+    private final PathStats defaultPathStats = new PathStats();
+
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    private MBeanServer mBeanServer;
+
+    private String objectNamePrefix;
+
+    public SonicJmxMetrics() {
+        for (int i = 0; i < stageHistograms.length; ++i) {
+            stageHistograms[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        objectNamePrefix = "com.github.tencent:type=SonicFilter,filter=" + ObjectName.quote(config.getFilterName());
+        try {
+            for (Stage stage : Stage.values()) {
+                register("stage=" + stage.name(), new StandardMBean(stageHistograms[stage.ordinal()], HistogramMBean.class));
+            }
+            register("path=" + ObjectName.quote(ALL_PATHS), new StandardMBean(allPathStats, PathStatsMBean.class));
+            register("path=" + ObjectName.quote(OTHER_PATH), new StandardMBean(otherPathStats, PathStatsMBean.class));
+            register("path=" + ObjectName.quote(DEFAULT_PATH), new StandardMBean(defaultPathStats, PathStatsMBean.class));
+        } catch (JMException e) {
+            throw new ServletException("can not register SonicFilter metrics", e);
+        }
+    }
+
+    private void register(String property, Object mBean) throws JMException {
+        ObjectName name = new ObjectName(objectNamePrefix + "," + property);
+        if (mBeanServer.isRegistered(name)) {
+            mBeanServer.unregisterMBean(name);
+        }
+        mBeanServer.registerMBean(mBean, name);
+        synchronized (registeredNames) {
+            registeredNames.add(name);
+        }
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+        stageHistograms[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void recordResponse(String path, Outcome outcome, boolean fromRegistry, long pageBytes, long sentBytes) {
+        allPathStats.record(outcome, fromRegistry, pageBytes, sentBytes);
+        getPathStats(path).record(outcome, fromRegistry, pageBytes, sentBytes);
+    }
+
+    private PathStats getPathStats(String path) {
+        if (path == null) {
+            return defaultPathStats;
+        }
+        PathStats stats = pathStats.get(path);
+        if (stats != null) {
+            return stats;
+        }
+        synchronized (pathStats) {
+            stats = pathStats.get(path);
+            if (stats == null) {
+                if (pathStats.size() >= MAX_PATHS) {
+                    return otherPathStats;
+                }
+                stats = new PathStats();
+                try {
+                    register("path=" + ObjectName.quote(path), new StandardMBean(stats, PathStatsMBean.class));
+                } catch (JMException e) {
+                    return otherPathStats;
+                }
+                pathStats.put(path, stats);
+            }
+            return stats;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (registeredNames) {
+            for (ObjectName name : registeredNames) {
+                try {
+                    mBeanServer.unregisterMBean(name);
+                } catch (JMException e) {
+                    // already unregistered
+                }
+            }
+            registeredNames.clear();
+        }
+    }
+
+    /**
+     * latency of a stage, times are in microseconds
+     */
+    public interface HistogramMBean {
+
+        long getCount();
+
+        double getMean();
+
+        long getP50();
+
+        long getP90();
+
+        long getP99();
+
+        long getMax();
+
+        void reset();
+    }
+
+    /**
+     * Log-linear histogram: every power of two is split into {@link #SUB_BUCKETS} buckets, so a
+     * percentile is off by at most a quarter of its value.
+     */
+    static class Histogram implements HistogramMBean {
+
+        private static final int SUB_BUCKET_BITS = 2;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(indexOf(nanos));
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            long currentMax = max.get();
+            while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+                currentMax = max.get();
+            }
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * @return the largest value falling into the bucket
+         */
+        static long upperBoundOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+            return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        long percentile(double percent) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public double getMean() {
+            long total = count.get();
+            return total == 0 ? 0 : sum.get() / 1000.0 / total;
+        }
+
+        @Override
+        public long getP50() {
+            return percentile(50) / 1000;
+        }
+
+        @Override
+        public long getP90() {
+            return percentile(90) / 1000;
+        }
+
+        @Override
+        public long getP99() {
+            return percentile(99) / 1000;
+        }
+
+        @Override
+        public long getMax() {
+            return max.get() / 1000;
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < buckets.length(); ++i) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+
+    /**
+     * outcomes of the sonic requests matching a policy prefix
+     */
+    public interface PathStatsMBean {
+
+        long getRequests();
+
+        long getNotModified();
+
+        long getDataOnly();
+
+        long getTemplateChanges();
+
+        long getTemplateDiffs();
+
+        long getRegistryHits();
+
+        /**
+         * @return bytes of pages minus bytes sent, before compression
+         */
+        long getBytesSaved();
+
+        /**
+         * @return share of requests answered by 304 or data only
+         */
+        double getHitRatio();
+
+        /**
+         * @return share of requests getting a new template, as a whole page or a template diff
+         */
+        double getTemplateChangeRate();
+
+        void reset();
+    }
+
+    static class PathStats implements PathStatsMBean {
+
+        private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+
+        private final AtomicLong registryHits = new AtomicLong();
+
+        private final AtomicLong bytesSaved = new AtomicLong();
+
+        void record(Outcome outcome, boolean fromRegistry, long pageBytes, long sentBytes) {
+            outcomes.incrementAndGet(outcome.ordinal());
+            if (fromRegistry) {
+                registryHits.incrementAndGet();
+            }
+            if (pageBytes > sentBytes) {
+                bytesSaved.addAndGet(pageBytes - sentBytes);
+            }
+        }
+
+        @Override
+        public long getRequests() {
+            long requests = 0;
+            for (int i = 0; i < outcomes.length(); ++i) {
+                requests += outcomes.get(i);
+            }
+            return requests;
+        }
+
+        @Override
+        public long getNotModified() {
+            return outcomes.get(Outcome.NOT_MODIFIED.ordinal());
+        }
+
+        @Override
+        public long getDataOnly() {
+            return outcomes.get(Outcome.DATA_ONLY.ordinal());
+        }
+
+        @Override
+        public long getTemplateChanges() {
+            return outcomes.get(Outcome.TEMPLATE_CHANGE.ordinal());
+        }
+
+        @Override
+        public long getTemplateDiffs() {
+            return outcomes.get(Outcome.TEMPLATE_DIFF.ordinal());
+        }
+
+        @Override
+        public long getRegistryHits() {
+            return registryHits.get();
+        }
+
+        @Override
+        public long getBytesSaved() {
+            return bytesSaved.get();
+        }
+
+        @Override
+        public double getHitRatio() {
+            long requests = getRequests();
+            return requests == 0 ? 0 : (double) (getNotModified() + getDataOnly()) / requests;
+        }
+
+        @Override
+        public double getTemplateChangeRate() {
+            long requests = getRequests();
+            return requests == 0 ? 0 : (double) (getTemplateChanges() + getTemplateDiffs()) / requests;
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < outcomes.length(); ++i) {
+                outcomes.set(i, 0);
+            }
+            registryHits.set(0);
+            bytesSaved.set(0);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.tencent;
+
+import java.util.Map;
+
+/**
+ * Writes the json of data responses, <code>{"data":{...},"template-tag":"...","html-sha1":"...","diff":"..."}</code>,
+ * straight into UTF-8 bytes. The size is counted first, so the bytes are written once into an array of the
+ * exact size, without Gson reflection nor intermediate strings.
+ * <p>
+ * Only the chars json requires are escaped, plus U+2028 and U+2029 which javascript does not allow in strings.
+ * Unlike Gson, html chars such as <code>&lt;</code> are left as they are.
+ */
+final class SonicJsonWriter {
+
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private static final String DATA_START = "{\"data\":{";
+
+    private static final String TEMPLATE_TAG = "},\"template-tag\":";
+
+    private static final String HTML_SHA1 = ",\"html-sha1\":";
+
+    private static final String DIFF = ",\"diff\":";
+
+    private static final int ENVELOPE_SIZE = DATA_START.length() + TEMPLATE_TAG.length() + HTML_SHA1.length()
+            + DIFF.length() + 1;
+
+    private byte[] bytes;
+
+    private int position;
+
+    private SonicJsonWriter() {
+    }
+
+    /**
+     * @param data data blocks keyed by <code>{tag}</code>
+     * @param templateTag
+     * @param htmlSha1
+     * @param diff
+     * @return the json in UTF-8
+     */
+    static byte[] write(Map<String, String> data, String templateTag, String htmlSha1, String diff) {
+        int size = ENVELOPE_SIZE + sizeOf(templateTag) + sizeOf(htmlSha1) + sizeOf(diff);
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            // "key":"value",
+            size += sizeOf(entry.getKey()) + 1 + sizeOf(entry.getValue()) + 1;
+        }
+        if (!data.isEmpty()) {
+            --size;
+        }
+        SonicJsonWriter writer = new SonicJsonWriter();
+        writer.bytes = new byte[size];
+        writer.writeAscii(DATA_START);
+        boolean first = true;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            if (!first) {
+                writer.bytes[writer.position++] = ',';
+            }
+            first = false;
+            writer.writeString(entry.getKey());
+            writer.bytes[writer.position++] = ':';
+            writer.writeString(entry.getValue());
+        }
+        writer.writeAscii(TEMPLATE_TAG);
+        writer.writeString(templateTag);
+        writer.writeAscii(HTML_SHA1);
+        writer.writeString(htmlSha1);
+        writer.writeAscii(DIFF);
+        writer.writeString(diff);
+        writer.bytes[writer.position++] = '}';
+        if (writer.position != size) {
+            throw new IllegalStateException("json size " + writer.position + " != " + size);
+        }
+        return writer.bytes;
+    }
+
+    /**
+     * @return bytes of value as a quoted json string, null is written as an empty string
+     */
+    private static int sizeOf(String value) {
+        int size = 2;
+        if (value == null) {
+            return size;
+        }
+        for (int i = 0, length = value.length(); i < length; ++i) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f') {
+                    size += 2;
+                } else if (c < 0x20) {
+                    size += 6;
+                } else {
+                    ++size;
+                }
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (c == 0x2028 || c == 0x2029) {
+                size += 6;
+            } else if (isSurrogatePair(value, i)) {
+                size += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                // a lone surrogate is written as '?', the same as String.getBytes("UTF-8")
+                ++size;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static boolean isSurrogatePair(String value, int index) {
+        return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+
+    private void writeAscii(String text) {
+        for (int i = 0, length = text.length(); i < length; ++i) {
+            bytes[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void writeString(String value) {
+        byte[] out = bytes;
+        int p = position;
+        out[p++] = '"';
+        if (value != null) {
+            for (int i = 0, length = value.length(); i < length; ++i) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') {
+                        out[p++] = (byte) c;
+                        continue;
+                    }
+                    out[p++] = '\\';
+                    switch (c) {
+                        case '"':
+                            out[p++] = '"';
+                            break;
+                        case '\\':
+                            out[p++] = '\\';
+                            break;
+                        case '\n':
+                            out[p++] = 'n';
+                            break;
+                        case '\r':
+                            out[p++] = 'r';
+                            break;
+                        case '\t':
+                            out[p++] = 't';
+                            break;
+                        case '\b':
+                            out[p++] = 'b';
+                            break;
+                        case '\f':
+                            out[p++] = 'f';
+                            break;
+                        default:
+                            p = writeUnicodeEscape(out, p, c);
+                            break;
+                    }
+                } else if (c < 0x800) {
+                    out[p++] = (byte) (0xC0 | (c >> 6));
+                    out[p++] = (byte) (0x80 | (c & 0x3F));
+                } else if (c == 0x2028 || c == 0x2029) {
+                    out[p++] = '\\';
+                    p = writeUnicodeEscape(out, p, c);
+                } else if (isSurrogatePair(value, i)) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out[p++] = (byte) (0xF0 | (codePoint >> 18));
+                    out[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    out[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    out[p++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    out[p++] = '?';
+                } else {
+                    out[p++] = (byte) (0xE0 | (c >> 12));
+                    out[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    out[p++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+        out[p++] = '"';
+        position = p;
+    }
+
+    /**
+     * write uXXXX, the backslash is already written
+     */
+    private static int writeUnicodeEscape(byte[] out, int p, char c) {
+        out[p++] = 'u';
+        out[p++] = HEX[(c >> 12) & 0xF];
+        out[p++] = HEX[(c >> 8) & 0xF];
+        out[p++] = HEX[(c >> 4) & 0xF];
+        out[p++] = HEX[c & 0xF];
+        return p;
+    }
+}
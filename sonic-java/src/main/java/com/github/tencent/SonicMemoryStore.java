@@ -0,0 +1,98 @@
+package com.github.tencent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * {@link SonicStore} kept in the memory of this node, the default store of {@link SonicFilter}.
+ * <p>
+ * At most <code>storeSize</code> (init-param) values are kept, the least recently used one is
+ * dropped first.
+ */
+public class SonicMemoryStore implements SonicStore {
+
+    /**
+     * init-param name, max number of values kept
+     */
+    public static final String INIT_PARAM_STORE_SIZE = "storeSize";
+
+    public static final int DEFAULT_SIZE = 4096;
+
+    private Map<String, Value> values;
+
+    public SonicMemoryStore() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param maxSize max number of values kept
+     */
+    public SonicMemoryStore(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        String storeSize = config.getInitParameter(INIT_PARAM_STORE_SIZE);
+        if (storeSize != null) {
+            try {
+                setMaxSize(Integer.parseInt(storeSize.trim()));
+            } catch (NumberFormatException e) {
+                throw new ServletException("invalid " + INIT_PARAM_STORE_SIZE + ": " + storeSize, e);
+            }
+        }
+    }
+
+    private void setMaxSize(final int maxSize) {
+        this.values = Collections.synchronizedMap(new LinkedHashMap<String, Value>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Value> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Value value = values.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.expireAt > 0 && value.expireAt <= System.currentTimeMillis()) {
+            values.remove(key);
+            return null;
+        }
+        return value.bytes;
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlMillis) {
+        values.put(key, new Value(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0));
+    }
+
+    @Override
+    public void remove(String key) {
+        values.remove(key);
+    }
+
+    @Override
+    public void destroy() {
+        values.clear();
+    }
+
+    private static class Value {
+
+        private final byte[] bytes;
+
+        private final long expireAt;
+
+        private Value(byte[] bytes, long expireAt) {
+            this.bytes = bytes;
+            this.expireAt = expireAt;
+        }
+    }
+}
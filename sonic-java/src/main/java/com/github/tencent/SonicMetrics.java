@@ -0,0 +1,90 @@
+package com.github.tencent;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Receives timings and outcomes of the requests handled by {@link SonicFilter}.
+ * <p>
+ * The implementation is chosen by the <code>metrics</code> init-param of {@link SonicFilter}, it needs a
+ * public constructor without arguments and must be thread safe. Methods are called on the request path,
+ * so they should not block or allocate. {@link SonicNoopMetrics} is used by default and
+ * {@link SonicJmxMetrics} keeps histograms exposed by JMX.
+ */
+public interface SonicMetrics {
+
+    enum Stage {
+        /**
+         * the downstream servlet writing the page, including the streaming scanner if enabled
+         */
+        RENDER,
+        /**
+         * sha1 of the page
+         */
+        HASH,
+        /**
+         * finding the title and data blocks, building and hashing the template
+         */
+        SPLIT,
+        /**
+         * building the json of data responses
+         */
+        SERIALIZE,
+        /**
+         * compressing and writing the body, the time spent by the client reading it is not included
+         * in async mode
+         */
+        WRITE,
+        /**
+         * the whole request
+         */
+        TOTAL
+    }
+
+    enum Outcome {
+        /**
+         * 304, the page is not modified
+         */
+        NOT_MODIFIED,
+        /**
+         * the template is not changed, only data is sent
+         */
+        DATA_ONLY,
+        /**
+         * the template is changed or unknown to the client, the whole page is sent
+         */
+        TEMPLATE_CHANGE,
+        /**
+         * the template is changed, the client is sent the changes to its template and the data
+         */
+        TEMPLATE_DIFF
+    }
+
+    /**
+     * called once before the metrics are used
+     * @param config config of the filter
+     * @throws ServletException
+     */
+    void init(FilterConfig config) throws ServletException;
+
+    /**
+     * @param stage
+     * @param nanos time spent in the stage
+     */
+    void recordStage(Stage stage, long nanos);
+
+    /**
+     * called once per sonic request, requests without accept-diff are not recorded
+     * @param path prefix of the {@link SonicPolicyTable} rule the request uri matches, null if it matches none
+     * @param outcome
+     * @param fromRegistry true if answered by the etag registry without running the servlet
+     * @param pageBytes size of the page
+     * @param sentBytes size of the body before compression
+     */
+    void recordResponse(String path, Outcome outcome, boolean fromRegistry, long pageBytes, long sentBytes);
+
+    /**
+     * called once when the filter is destroyed
+     */
+    void destroy();
+}
@@ -0,0 +1,25 @@
+package com.github.tencent;
+
+import javax.servlet.FilterConfig;
+
+/**
+ * {@link SonicMetrics} recording nothing, the default of {@link SonicFilter}.
+ */
+public class SonicNoopMetrics implements SonicMetrics {
+
+    @Override
+    public void init(FilterConfig config) {
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+    }
+
+    @Override
+    public void recordResponse(String path, Outcome outcome, boolean fromRegistry, long pageBytes, long sentBytes) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.tencent;
+
+/**
+ * How {@link SonicFilter} handles the pages under a path prefix, see {@link SonicPolicyTable}.
+ * Instances are immutable.
+ */
+public class SonicPathPolicy {
+
+    /**
+     * every page is split, titles are extracted and nothing is cached by the client
+     */
+    public static final SonicPathPolicy DEFAULT = new SonicPathPolicy(true, 0, true, 0);
+
+    private final boolean enabled;
+
+    private final int maxPageSize;
+
+    private final boolean titleExtracted;
+
+    private final long cacheTtl;
+
+    private final String prefix;
+
+    public SonicPathPolicy(boolean enabled, int maxPageSize, boolean titleExtracted, long cacheTtl) {
+        this(enabled, maxPageSize, titleExtracted, cacheTtl, null);
+    }
+
+    /**
+     * @param prefix path prefix of the rule giving this policy, null if it comes from no rule
+     */
+    public SonicPathPolicy(boolean enabled, int maxPageSize, boolean titleExtracted, long cacheTtl, String prefix) {
+        this.enabled = enabled;
+        this.maxPageSize = maxPageSize;
+        this.titleExtracted = titleExtracted;
+        this.cacheTtl = cacheTtl;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return false if pages are sent as they are with <code>Cache-Offline: http</code>
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return max bytes of a page to split, larger pages are sent as they are with
+     * <code>Cache-Offline: http</code>, 0 for no limit
+     */
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    /**
+     * @return false if titles are left in the template instead of being sent as <code>{title}</code>
+     */
+    public boolean isTitleExtracted() {
+        return titleExtracted;
+    }
+
+    /**
+     * @return seconds the client may use its cache without asking, sent as <code>Cache-Control: max-age</code>,
+     * 0 to send <code>Cache-Control: no-cache</code>
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * @return path prefix of the rule giving this policy, null for {@link #DEFAULT}. Pages are recorded in
+     * {@link SonicMetrics} by this prefix
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    @Override
+    public String toString() {
+        return (enabled ? "on" : "off") + " maxPageSize=" + maxPageSize + " title=" + (titleExtracted ? "on" : "off")
+                + " cacheTtl=" + cacheTtl;
+    }
+}
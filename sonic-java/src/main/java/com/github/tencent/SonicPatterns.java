@@ -0,0 +1,138 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of precompiled patterns used to split html into template and data.
+ * <p>
+ * Data blocks are wrapped by <code>&lt;!--marker-tag--&gt;</code> and <code>&lt;!--marker-tag-end--&gt;</code>,
+ * the marker is "sonicdiff" by default and more markers can be configured by the
+ * <code>diffMarkers</code> init-param of {@link SonicFilter}.
+ */
+public class SonicPatterns {
+
+    public static final String DEFAULT_DIFF_MARKER = "sonicdiff";
+
+    /**
+     * titles replaced with <code>{title}</code> in the template, matched case sensitively before the data blocks
+     */
+    public static final String TITLE_REGEX = "<title(.*?)<\\/title>";
+
+    /**
+     * max number of patterns kept by {@link #compile(String, int)}
+     */
+    private static final int MAX_COMPILED_SIZE = 256;
+
+    private static final Pattern MARKER_PATTERN = Pattern.compile("\\w+");
+
+    private static final ConcurrentMap<String, Pattern> compiledPatterns = new ConcurrentHashMap<String, Pattern>();
+
+    public static final SonicPatterns DEFAULT = new SonicPatterns(new String[]{DEFAULT_DIFF_MARKER});
+
+    private final String[] diffMarkers;
+
+    private final Pattern templatePattern;
+
+    private final boolean titleExtracted;
+
+    /**
+     * @param diffMarkers markers of data blocks, made of word characters
+     */
+    public SonicPatterns(String[] diffMarkers) {
+        this(diffMarkers, true);
+    }
+
+    /**
+     * @param diffMarkers markers of data blocks, made of word characters
+     * @param titleExtracted false to leave titles in the template
+     */
+    public SonicPatterns(String[] diffMarkers, boolean titleExtracted) {
+        if (diffMarkers == null || diffMarkers.length == 0) {
+            throw new IllegalArgumentException("at least one diff marker is required");
+        }
+        this.diffMarkers = new String[diffMarkers.length];
+        StringBuilder markers = new StringBuilder();
+        for (int i = 0; i < diffMarkers.length; ++i) {
+            if (diffMarkers[i] == null || !MARKER_PATTERN.matcher(diffMarkers[i]).matches()) {
+                throw new IllegalArgumentException("invalid diff marker: " + diffMarkers[i]);
+            }
+            this.diffMarkers[i] = diffMarkers[i].toLowerCase();
+            markers.append(i == 0 ? "" : "|").append(this.diffMarkers[i]);
+        }
+        this.titleExtracted = titleExtracted;
+        this.templatePattern = Pattern.compile("<!--(?:" + markers + ")-?(\\w*)-->[\\s\\S]+?<!--(?:" + markers
+                + ")-?\\w*-end-->", Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * parse the diffMarkers init-param, "sonicdiff" is always included
+     * @param initParam comma separated markers, may be null
+     * @return
+     */
+    public static SonicPatterns parse(String initParam) {
+        if (initParam == null || initParam.trim().length() == 0) {
+            return DEFAULT;
+        }
+        List<String> markers = new ArrayList<String>();
+        markers.add(DEFAULT_DIFF_MARKER);
+        for (String marker : initParam.split(",")) {
+            marker = marker.trim();
+            if (marker.length() > 0 && !markers.contains(marker.toLowerCase())) {
+                markers.add(marker.toLowerCase());
+            }
+        }
+        return new SonicPatterns(markers.toArray(new String[markers.size()]));
+    }
+
+    /**
+     * get a compiled pattern, patterns are compiled once and shared
+     * @param regex
+     * @param flags
+     * @return
+     */
+    public static Pattern compile(String regex, int flags) {
+        String key = flags + ":" + regex;
+        Pattern pattern = compiledPatterns.get(key);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex, flags);
+            if (compiledPatterns.size() < MAX_COMPILED_SIZE) {
+                compiledPatterns.putIfAbsent(key, pattern);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * @return lower case markers of data blocks
+     */
+    public String[] getDiffMarkers() {
+        return diffMarkers.clone();
+    }
+
+    /**
+     * @return pattern matching a data block, group 1 is its tag name, in the page whose titles are already
+     * replaced if titles are extracted. {@link TemplateReplace} and {@link SonicStreamScanner} match the blocks
+     * without it, with the same result
+     */
+    public Pattern getTemplatePattern() {
+        return templatePattern;
+    }
+
+    /**
+     * @return false if titles are left in the template instead of being sent as <code>{title}</code>
+     */
+    public boolean isTitleExtracted() {
+        return titleExtracted;
+    }
+
+    /**
+     * @return the same markers with titles left in the template
+     */
+    public SonicPatterns withoutTitle() {
+        return titleExtracted ? new SonicPatterns(diffMarkers, false) : this;
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link SonicPathPolicy} by path prefix, indexed by a prefix tree built once so a request finds
+ * its policy in one walk along its path.
+ * <p>
+ * Rules are separated by ';' or line breaks, each one is a path prefix followed by space separated
+ * options:
+ * <ul>
+ * <li><code>on</code> or <code>off</code> splits pages or sends them as they are</li>
+ * <li><code>maxPageSize=bytes</code> sends larger pages as they are, 0 for no limit</li>
+ * <li><code>title=on|off</code> sends the title as data or leaves it in the template</li>
+ * <li><code>cacheTtl=seconds</code> lets the client use its cache without asking, 0 for no-cache</li>
+ * </ul>
+ * e.g. <code>/static/ off; /feed/ maxPageSize=262144 title=off; /feed/hot/ cacheTtl=60</code>.
+ * <p>
+ * Prefixes are matched against the path in the web application, the longest one wins. Options left out
+ * are taken from the rule of the longest shorter prefix, or from {@link SonicPathPolicy#DEFAULT}.
+ */
+public class SonicPolicyTable {
+
+    private static final String ON = "on";
+
+    private static final String OFF = "off";
+
+    private static final String MAX_PAGE_SIZE = "maxpagesize";
+
+    private static final String TITLE = "title";
+
+    private static final String CACHE_TTL = "cachettl";
+
+    private final Node root;
+
+    private SonicPolicyTable(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param rules see the class comment
+     * @return null if rules is null or empty
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public static SonicPolicyTable parse(String rules) {
+        if (rules == null || rules.trim().length() == 0) {
+            return null;
+        }
+        List<String[]> items = new ArrayList<String[]>();
+        for (String rule : rules.split("[;\r\n]")) {
+            rule = rule.trim();
+            if (rule.length() > 0) {
+                items.add(rule.split("\\s+"));
+            }
+        }
+        // shorter prefixes first, so every rule finds the rule it inherits from in the tree
+        Collections.sort(items, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] left, String[] right) {
+                return left[0].length() - right[0].length();
+            }
+        });
+        Node root = new Node();
+        root.policy = SonicPathPolicy.DEFAULT;
+        for (String[] item : items) {
+            String prefix = item[0];
+            if (!prefix.startsWith("/")) {
+                throw new IllegalArgumentException("path prefix must start with '/': " + prefix);
+            }
+            Node node = root;
+            SonicPathPolicy base = root.policy;
+            for (int i = 0; i < prefix.length(); ++i) {
+                node = node.getOrAddChild(prefix.charAt(i));
+                if (node.policy != null) {
+                    base = node.policy;
+                }
+            }
+            if (node.policy != null) {
+                throw new IllegalArgumentException("duplicate path prefix: " + prefix);
+            }
+            node.policy = parseOptions(item, base);
+        }
+        return new SonicPolicyTable(root);
+    }
+
+    private static SonicPathPolicy parseOptions(String[] item, SonicPathPolicy base) {
+        boolean enabled = base.isEnabled();
+        int maxPageSize = base.getMaxPageSize();
+        boolean titleExtracted = base.isTitleExtracted();
+        long cacheTtl = base.getCacheTtl();
+        for (int i = 1; i < item.length; ++i) {
+            String option = item[i];
+            int index = option.indexOf('=');
+            String name = (index < 0 ? option : option.substring(0, index)).toLowerCase(Locale.US);
+            String value = index < 0 ? null : option.substring(index + 1);
+            try {
+                if (value == null && (ON.equals(name) || OFF.equals(name))) {
+                    enabled = ON.equals(name);
+                } else if (MAX_PAGE_SIZE.equals(name) && value != null) {
+                    maxPageSize = Integer.parseInt(value);
+                } else if (TITLE.equals(name) && (ON.equalsIgnoreCase(value) || OFF.equalsIgnoreCase(value))) {
+                    titleExtracted = ON.equalsIgnoreCase(value);
+                } else if (CACHE_TTL.equals(name) && value != null) {
+                    cacheTtl = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option of " + item[0] + ": " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid option of " + item[0] + ": " + option, e);
+            }
+            if (maxPageSize < 0 || cacheTtl < 0) {
+                throw new IllegalArgumentException("invalid option of " + item[0] + ": " + option);
+            }
+        }
+        return new SonicPathPolicy(enabled, maxPageSize, titleExtracted, cacheTtl, item[0]);
+    }
+
+    /**
+     * @param path such as the request uri
+     * @param from index where the path in the web application starts, the length of the context path
+     * @return policy of the longest matching prefix, {@link SonicPathPolicy#DEFAULT} if none matches
+     */
+    public SonicPathPolicy get(String path, int from) {
+        Node node = root;
+        SonicPathPolicy policy = root.policy;
+        for (int i = from, length = path.length(); i < length; ++i) {
+            node = node.getChild(path.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.policy != null) {
+                policy = node.policy;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * children are kept in arrays sorted by char, they are only added while the table is parsed
+     */
+    private static class Node {
+
+        private char[] keys = new char[0];
+
+        private Node[] children = new Node[0];
+
+        /**
+         * null if no rule ends here
+         */
+        SonicPathPolicy policy;
+
+        Node getChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        Node getOrAddChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            Node child = new Node();
+            newKeys[index] = c;
+            newChildren[index] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.tencent;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Storage of templates and etags shared by {@link SonicFilter} instances.
+ * <p>
+ * A store shared by all nodes of a cluster, such as one backed by redis or memcached, lets the
+ * nodes reuse templates computed by each other and keeps etag invalidations consistent. The
+ * implementation is chosen by the <code>store</code> init-param of {@link SonicFilter}, it needs
+ * a public constructor without arguments and must be thread safe.
+ */
+public interface SonicStore {
+
+    /**
+     * called once before the store is used
+     * @param config config of the filter, implementations read their own init-params from it
+     * @throws ServletException
+     */
+    void init(FilterConfig config) throws ServletException;
+
+    /**
+     * @param key
+     * @return the value, null if there is none or it has expired
+     */
+    byte[] get(String key);
+
+    /**
+     * @param key
+     * @param value
+     * @param ttlMillis how long the value is kept, 0 means as long as the store can
+     */
+    void put(String key, byte[] value, long ttlMillis);
+
+    void remove(String key);
+
+    /**
+     * called once when the filter is destroyed, values shared with other nodes should be kept
+     */
+    void destroy();
+}
@@ -0,0 +1,683 @@
+package com.github.tencent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits html into template and data while the bytes are being written.
+ * <p>
+ * The scanner is fed with the raw UTF-8 bytes of the page and produces the same
+ * result as {@link TemplateReplace} does for the default path of {@link SonicFilter}: the
+ * sha1 of the page, the sha1 of the template (titles replaced with <code>{title}</code>, then
+ * every <code>&lt;!--sonicdiff-tag--&gt;</code> block replaced with <code>{tag}</code>), the
+ * first title and the data blocks. The bytes go through the same steps as the regular
+ * expressions, one stage each. Only the title and the data blocks are kept in memory, the
+ * template itself is hashed on the fly and never materialized.
+ */
+public class SonicStreamScanner extends OutputStream {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] TITLE_OPEN = ascii("<title");
+
+    private static final byte[] TITLE_CLOSE = ascii("</title>");
+
+    private static final byte[] TITLE_KEY = ascii("{title}");
+
+    private static final byte[] COMMENT_OPEN = ascii("<!--");
+
+    private static final byte[] DIFF_CLOSE = ascii("-->");
+
+    private static final byte[] DIFF_END_CLOSE = ascii("-end-->");
+
+    private static final int NEED_MORE = 0;
+
+    private static final int MATCHED = 1;
+
+    private static final int FAILED = -1;
+
+    private final DigestSink htmlSink;
+
+    private final DigestSink templateSink;
+
+    /**
+     * receives the page, null if titles are not extracted
+     */
+    private final TitleStage titleStage;
+
+    /**
+     * receives the page with its titles replaced
+     */
+    private final BlockStage blockStage;
+
+    /**
+     * finds the first title matched case insensitively in the page, null if titles are not extracted
+     */
+    private final TitleStage titleFinder;
+
+    private boolean finished = false;
+
+    public SonicStreamScanner() {
+        this(SonicPatterns.DEFAULT);
+    }
+
+    /**
+     * @param patterns provides the markers of data blocks and whether titles are extracted
+     */
+    public SonicStreamScanner(SonicPatterns patterns) {
+        String[] markers = patterns.getDiffMarkers();
+        byte[][] markerBytes = new byte[markers.length][];
+        for (int i = 0; i < markers.length; ++i) {
+            markerBytes[i] = ascii(markers[i]);
+        }
+        htmlSink = new DigestSink();
+        templateSink = new DigestSink();
+        blockStage = new BlockStage(templateSink, markerBytes);
+        if (patterns.isTitleExtracted()) {
+            titleStage = new TitleStage(blockStage, false);
+            titleFinder = new TitleStage(null, true);
+        } else {
+            titleStage = null;
+            titleFinder = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        htmlSink.write(b);
+        if (titleStage != null) {
+            titleFinder.write(b);
+            titleStage.write(b);
+        } else {
+            blockStage.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        htmlSink.write(b, off, len);
+        if (titleStage != null) {
+            titleFinder.write(b, off, len);
+            titleStage.write(b, off, len);
+        } else {
+            blockStage.write(b, off, len);
+        }
+    }
+
+    /**
+     * flush the bytes held back by the scanner, must be called once the whole page is written
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            if (titleStage != null) {
+                titleStage.finish();
+                titleFinder.finish();
+            }
+            blockStage.finish();
+            htmlSink.finish();
+            templateSink.finish();
+        }
+    }
+
+    /**
+     * @return sha1 of the whole page, empty string if the page is blank
+     */
+    public String getHtmlSha1() {
+        return htmlSink.getSha1();
+    }
+
+    /**
+     * @return sha1 of the template, empty string if the template is blank
+     */
+    public String getTemplateSha1() {
+        return templateSink.getSha1();
+    }
+
+    /**
+     * @return the first title of the page, empty string if there is none
+     */
+    public String getTitle() throws UnsupportedEncodingException {
+        return titleFinder == null || titleFinder.title == null ? "" : new String(titleFinder.title, "UTF-8");
+    }
+
+    /**
+     * @return data map of the page, the keys look like <code>{tag}</code>
+     */
+    public Map<String, String> getDataMap() throws UnsupportedEncodingException {
+        Map<String, String> dataMap = new HashMap<String, String>();
+        if (titleFinder != null) {
+            dataMap.put("{title}", getTitle());
+        }
+        for (Map.Entry<String, byte[]> entry : blockStage.blocks.entrySet()) {
+            dataMap.put("{" + entry.getKey() + "}", new String(entry.getValue(), "UTF-8"));
+        }
+        return dataMap;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(ASCII);
+    }
+
+    private static int lower(int b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean isWord(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    /**
+     * @return index of the first <code>'&lt;'</code> in <code>buf[from, to)</code>, <code>to</code> if there is none
+     */
+    private static int indexOfTagStart(byte[] buf, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (buf[i] == '<') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * compare <code>expect</code> with <code>buf[from, to)</code>
+     * @return MATCHED, FAILED or NEED_MORE when <code>buf[from, to)</code> is a prefix of <code>expect</code>
+     */
+    private static int compare(byte[] buf, int from, int to, byte[] expect, boolean ignoreCase) {
+        int count = Math.min(to - from, expect.length);
+        for (int i = 0; i < count; ++i) {
+            int b = buf[from + i] & 0xFF;
+            if ((ignoreCase ? lower(b) : b) != expect[i]) {
+                return FAILED;
+            }
+        }
+        return count == expect.length ? MATCHED : NEED_MORE;
+    }
+
+    /**
+     * Growable byte buffer which exposes its backing array. Unlike ByteArrayOutputStream it is not synchronized,
+     * the held bytes are checked on every byte written.
+     */
+    private static class Bytes {
+
+        private byte[] buf;
+
+        private int count = 0;
+
+        Bytes(int size) {
+            buf = new byte[size];
+        }
+
+        void write(int b) {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length << 1);
+            }
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    /**
+     * Receives the bytes produced by a stage.
+     */
+    private interface Sink {
+        void write(int b) throws IOException;
+
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * Computes a sha1 of the bytes written, buffered so the digest is updated in chunks. The digest is borrowed
+     * from the thread creating the sink and given back to the thread finishing it.
+     */
+    private static class DigestSink implements Sink {
+
+        private final MessageDigest digest;
+
+        private final byte[] buffer = new byte[512];
+
+        private int count = 0;
+
+        private boolean blank = true;
+
+        private String sha1;
+
+        DigestSink() {
+            try {
+                digest = SonicUtil.borrowDigest("sha-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void write(int b) {
+            if (count == buffer.length) {
+                digest.update(buffer, 0, count);
+                count = 0;
+            }
+            buffer[count++] = (byte) b;
+            if (blank && (b & 0xFF) > ' ') {
+                blank = false;
+            }
+        }
+
+        public void write(byte[] b, int off, int len) {
+            for (int i = off, end = off + len; blank && i < end; ++i) {
+                blank = (b[i] & 0xFF) <= ' ';
+            }
+            if (count + len > buffer.length) {
+                digest.update(buffer, 0, count);
+                count = 0;
+            }
+            if (len >= buffer.length) {
+                digest.update(b, off, len);
+            } else {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+        }
+
+        void finish() {
+            digest.update(buffer, 0, count);
+            count = 0;
+            // same as SonicUtil.encrypt: a blank text has no sha1
+            sha1 = blank ? "" : SonicUtil.hex(digest.digest());
+            SonicUtil.releaseDigest("sha-1", digest);
+        }
+
+        String getSha1() {
+            return sha1;
+        }
+    }
+
+    /**
+     * Finds titles the same as {@link SonicPatterns#TITLE_REGEX}: <code>&lt;title.*?&lt;/title&gt;</code>, where
+     * "." does not match line terminators. Without a next sink it only keeps the first title, otherwise every
+     * title goes to the next sink as <code>{title}</code> and the other bytes as they are.
+     */
+    private static class TitleStage implements Sink {
+
+        private final Sink next;
+
+        private final boolean ignoreCase;
+
+        private final Bytes pending = new Bytes(128);
+
+        private byte[] title;
+
+        /**
+         * @param next receives the bytes with titles replaced, null to only find the first title
+         * @param ignoreCase true to match case insensitively
+         */
+        TitleStage(Sink next, boolean ignoreCase) {
+            this.next = next;
+            this.ignoreCase = ignoreCase;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            int i = off;
+            int end = off + len;
+            while (i < end) {
+                if (next == null && title != null) {
+                    return;
+                }
+                if (pending.size() > 0) {
+                    write(b[i++]);
+                    continue;
+                }
+                // nothing held back, the bytes up to the next '<' cannot be part of a title
+                int tagStart = indexOfTagStart(b, i, end);
+                if (next != null && tagStart > i) {
+                    next.write(b, i, tagStart - i);
+                }
+                if (tagStart < end) {
+                    pending.write('<');
+                }
+                i = tagStart + 1;
+            }
+        }
+
+        public void write(int b) throws IOException {
+            b &= 0xFF;
+            if (next == null && title != null) {
+                return;
+            }
+            if (pending.size() == 0) {
+                if (b == '<') {
+                    pending.write(b);
+                } else if (next != null) {
+                    next.write(b);
+                }
+                return;
+            }
+            pending.write(b);
+            int result = matchTitle(pending.buf(), pending.size());
+            if (MATCHED == result) {
+                if (title == null) {
+                    title = pending.toByteArray();
+                }
+                if (next != null) {
+                    next.write(TITLE_KEY, 0, TITLE_KEY.length);
+                }
+                pending.reset();
+            } else if (FAILED == result) {
+                retry();
+            }
+        }
+
+        void finish() throws IOException {
+            // nothing held back can match any more, try again from the next byte like a regex does
+            while (pending.size() > 0) {
+                retry();
+            }
+        }
+
+        /**
+         * no title starts at the first held byte, emit the bytes up to the next '&lt;' and feed the rest again
+         */
+        private void retry() throws IOException {
+            byte[] buf = pending.buf();
+            int size = pending.size();
+            int tagStart = indexOfTagStart(buf, 1, size);
+            pending.reset();
+            if (next != null) {
+                next.write(buf, 0, tagStart);
+            }
+            if (tagStart < size) {
+                write(Arrays.copyOfRange(buf, tagStart, size), 0, size - tagStart);
+            }
+        }
+
+        /**
+         * match <code>&lt;title.*?&lt;/title&gt;</code> against <code>buf[0, size)</code>
+         */
+        private int matchTitle(byte[] buf, int size) {
+            int result = compare(buf, 0, size, TITLE_OPEN, ignoreCase);
+            if (FAILED == result) {
+                return FAILED;
+            }
+            if (size <= TITLE_OPEN.length) {
+                return NEED_MORE;
+            }
+            if (isLineTerminator(buf, size)) {
+                return FAILED;
+            }
+            if (size >= TITLE_OPEN.length + TITLE_CLOSE.length
+                    && MATCHED == compare(buf, size - TITLE_CLOSE.length, size, TITLE_CLOSE, ignoreCase)) {
+                return MATCHED;
+            }
+            return NEED_MORE;
+        }
+
+        private static boolean isLineTerminator(byte[] buf, int size) {
+            int b = buf[size - 1] & 0xFF;
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+            // U+0085 is C2 85, U+2028 and U+2029 are E2 80 A8 and E2 80 A9 in UTF-8
+            if (b == 0x85) {
+                return (buf[size - 2] & 0xFF) == 0xC2;
+            }
+            if (b == 0xA8 || b == 0xA9) {
+                return (buf[size - 2] & 0xFF) == 0x80 && (buf[size - 3] & 0xFF) == 0xE2;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Finds data blocks the same as {@link SonicPatterns#getTemplatePattern()}:
+     * <code>&lt;!--marker-?(\w*)--&gt;[\s\S]+?&lt;!--marker-?\w*-end--&gt;</code> matched case insensitively.
+     * Template bytes go to the next sink, the blocks are kept.
+     */
+    private static class BlockStage implements Sink {
+
+        private final Sink next;
+
+        private final byte[][] markers;
+
+        private final Bytes pending = new Bytes(128);
+
+        private final Bytes block = new Bytes(1024);
+
+        private final Map<String, byte[]> blocks = new HashMap<String, byte[]>();
+
+        private boolean inBlock = false;
+
+        private String tagName;
+
+        private int contentStart;
+
+        private int lastCommentStart;
+
+        BlockStage(Sink next, byte[][] markers) {
+            this.next = next;
+            this.markers = markers;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            int i = off;
+            int end = off + len;
+            while (i < end) {
+                if (inBlock) {
+                    // only '-' and '>' can complete the end tag of a block
+                    int stop = i;
+                    while (stop < end && b[stop] != '-' && b[stop] != '>') {
+                        ++stop;
+                    }
+                    block.write(b, i, stop - i);
+                    if (stop < end) {
+                        writeBlock(b[stop]);
+                    }
+                    i = stop + 1;
+                } else if (pending.size() > 0) {
+                    write(b[i++]);
+                } else {
+                    // nothing held back, the bytes up to the next '<' are template
+                    int tagStart = indexOfTagStart(b, i, end);
+                    if (tagStart > i) {
+                        next.write(b, i, tagStart - i);
+                    }
+                    if (tagStart < end) {
+                        pending.write('<');
+                    }
+                    i = tagStart + 1;
+                }
+            }
+        }
+
+        public void write(int b) throws IOException {
+            b &= 0xFF;
+            if (inBlock) {
+                writeBlock(b);
+                return;
+            }
+            if (pending.size() == 0) {
+                if (b == '<') {
+                    pending.write(b);
+                } else {
+                    next.write(b);
+                }
+                return;
+            }
+
+            pending.write(b);
+            byte[] buf = pending.buf();
+            int size = pending.size();
+            int diffResult = matchOpenTag(buf, size);
+            if (MATCHED == diffResult) {
+                inBlock = true;
+                block.reset();
+                block.write(buf, 0, size);
+                contentStart = size;
+                lastCommentStart = -1;
+                pending.reset();
+            } else if (FAILED == diffResult) {
+                retry(pending);
+            }
+        }
+
+        void finish() throws IOException {
+            // nothing held back can match any more, try again from the next byte like a regex does
+            while (inBlock || pending.size() > 0) {
+                if (inBlock) {
+                    inBlock = false;
+                    retry(block);
+                } else {
+                    retry(pending);
+                }
+            }
+        }
+
+        /**
+         * no match starts at the first held byte, emit the bytes up to the next '&lt;' and feed the rest again
+         */
+        private void retry(Bytes held) throws IOException {
+            byte[] buf = held.buf();
+            int size = held.size();
+            int tagStart = indexOfTagStart(buf, 1, size);
+            held.reset();
+            next.write(buf, 0, tagStart);
+            if (tagStart < size) {
+                write(Arrays.copyOfRange(buf, tagStart, size), 0, size - tagStart);
+            }
+        }
+
+        private void writeBlock(int b) throws IOException {
+            block.write(b);
+            byte[] buf = block.buf();
+            int size = block.size();
+            if (b == '-' && size - 4 >= contentStart && buf[size - 4] == '<' && buf[size - 3] == '!' && buf[size - 2] == '-') {
+                lastCommentStart = size - 4;
+            } else if (b == '>' && lastCommentStart > contentStart && matchCloseTag(buf, lastCommentStart, size)) {
+                blocks.put(tagName, block.toByteArray());
+                byte[] key = ascii("{" + tagName + "}");
+                next.write(key, 0, key.length);
+                block.reset();
+                inBlock = false;
+            }
+        }
+
+        /**
+         * match <code>&lt;!--marker-?(\w*)--&gt;</code> against <code>buf[0, size)</code>, markers are tried in order
+         */
+        private int matchOpenTag(byte[] buf, int size) {
+            int result = compare(buf, 0, size, COMMENT_OPEN, false);
+            if (MATCHED != result) {
+                return result;
+            }
+            boolean needMore = false;
+            for (byte[] marker : markers) {
+                result = matchOpenTag(buf, size, marker);
+                if (MATCHED == result) {
+                    // an earlier marker which is still undecided wins
+                    return needMore ? NEED_MORE : MATCHED;
+                }
+                needMore |= NEED_MORE == result;
+            }
+            return needMore ? NEED_MORE : FAILED;
+        }
+
+        private int matchOpenTag(byte[] buf, int size, byte[] marker) {
+            int result = compare(buf, COMMENT_OPEN.length, size, marker, true);
+            if (MATCHED != result) {
+                return result;
+            }
+            int nameStart = COMMENT_OPEN.length + marker.length;
+            if (size == nameStart) {
+                return NEED_MORE;
+            }
+            if (buf[nameStart] == '-') {
+                // "-tag-->" is tried first, then "-->" with an empty tag
+                int withDash = matchTagName(buf, nameStart + 1, size);
+                if (MATCHED == withDash) {
+                    return MATCHED;
+                }
+                int withoutDash = matchExactly(buf, nameStart, size, DIFF_CLOSE);
+                if (MATCHED == withoutDash) {
+                    tagName = "";
+                    return MATCHED;
+                }
+                return (NEED_MORE == withDash || NEED_MORE == withoutDash) ? NEED_MORE : FAILED;
+            }
+            return matchTagName(buf, nameStart, size);
+        }
+
+        private int matchTagName(byte[] buf, int nameStart, int size) {
+            int nameEnd = nameStart;
+            while (nameEnd < size && isWord(buf[nameEnd])) {
+                ++nameEnd;
+            }
+            if (nameEnd == size) {
+                return NEED_MORE;
+            }
+            int result = matchExactly(buf, nameEnd, size, DIFF_CLOSE);
+            if (MATCHED == result) {
+                tagName = new String(buf, nameStart, nameEnd - nameStart, ASCII);
+            }
+            return result;
+        }
+
+        private int matchExactly(byte[] buf, int from, int size, byte[] expect) {
+            int result = compare(buf, from, size, expect, false);
+            return (MATCHED == result && size - from != expect.length) ? FAILED : result;
+        }
+
+        /**
+         * whether <code>buf[from, to)</code> is exactly <code>&lt;!--marker-?\w*-end--&gt;</code>
+         */
+        private boolean matchCloseTag(byte[] buf, int from, int to) {
+            int nameEnd = to - DIFF_END_CLOSE.length;
+            if (MATCHED != compare(buf, nameEnd, to, DIFF_END_CLOSE, true)) {
+                return false;
+            }
+            for (byte[] marker : markers) {
+                int nameStart = from + COMMENT_OPEN.length + marker.length;
+                if (nameStart > nameEnd || MATCHED != compare(buf, from + COMMENT_OPEN.length, nameStart, marker, true)) {
+                    continue;
+                }
+                if (nameStart < nameEnd && buf[nameStart] == '-') {
+                    ++nameStart;
+                }
+                boolean isWord = true;
+                for (int i = nameStart; i < nameEnd && isWord; ++i) {
+                    isWord = isWord(buf[i]);
+                }
+                if (isWord) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.tencent;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Remembers the template of recent pages so the filter does not have to rebuild and hash
+ * the template when only the data changes.
+ * <p>
+ * A template is kept as its static segments, the text between <code>{tag}</code> placeholders
+ * once titles are replaced with <code>{title}</code>. A page hits the cache when its static segments
+ * are byte-identical to the cached ones, then the cached <code>template-tag</code> is reused.
+ * <p>
+ * Templates can also be put into a {@link SonicStore} shared by other nodes, which is looked up
+ * when this node has not seen a page yet, such as after a restart.
+ * <p>
+ * Lookups take no lock. Once the cache holds more than its max size, one thread drops the least recently
+ * used templates while the others go on, so eviction is approximate: the cache may briefly hold a few more
+ * templates, and a template used during eviction may still be dropped.
+ */
+public class SonicTemplateCache {
+
+    private static final String STORE_KEY_PREFIX = "sonic-template:";
+
+    private static final Gson GSON = new Gson();
+
+    private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+    private final int maxSize;
+
+    /**
+     * true while a thread is dropping templates
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final SonicStore store;
+
+    /**
+     * @param maxSize max number of templates kept, the least recently used one is dropped first
+     */
+    public SonicTemplateCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize max number of templates kept in memory, the least recently used one is dropped first
+     * @param store shared store of templates, may be null
+     */
+    public SonicTemplateCache(int maxSize, SonicStore store) {
+        this.maxSize = maxSize;
+        this.store = store;
+    }
+
+    /**
+     * get the template-tag of a page if its template is the same as the cached one
+     * @param key cache key, such as the request uri
+     * @param layout placeholders found in the page
+     * @return the cached template-tag, null if the page does not match the cached template
+     */
+    String getTemplateTag(String key, TemplateReplace layout) {
+        Template template = templates.get(key);
+        if (template == null && store != null) {
+            template = load(key);
+            if (template != null) {
+                add(key, template);
+            }
+        }
+        if (template != null && template.matches(layout.getText(), layout)) {
+            template.lastUsed = System.nanoTime();
+            return template.templateTag;
+        }
+        return null;
+    }
+
+    /**
+     * remember the template of a page
+     * @param key cache key, such as the request uri
+     * @param layout placeholders found in the page
+     * @param templateTag sha1 of the template
+     */
+    void put(String key, TemplateReplace layout, String templateTag) {
+        Template template = Template.create(layout.getText(), layout, templateTag);
+        add(key, template);
+        if (store != null) {
+            try {
+                store.put(STORE_KEY_PREFIX + key, GSON.toJson(template).getBytes("UTF-8"), 0);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void add(String key, Template template) {
+        template.lastUsed = System.nanoTime();
+        templates.put(key, template);
+        if (templates.size() > maxSize && evicting.compareAndSet(false, true)) {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * drop the least recently used templates and 1/16 of maxSize more, so the next puts do not evict again
+     */
+    private void evict() {
+        long[] lastUsed = new long[templates.size() + 16];
+        int count = 0;
+        for (Template template : templates.values()) {
+            if (count == lastUsed.length) {
+                break;
+            }
+            lastUsed[count++] = template.lastUsed;
+        }
+        int dropped = count - maxSize + maxSize / 16;
+        if (dropped <= 0) {
+            return;
+        }
+        Arrays.sort(lastUsed, 0, count);
+        long threshold = lastUsed[Math.min(dropped, count) - 1];
+        for (Map.Entry<String, Template> entry : templates.entrySet()) {
+            if (entry.getValue().lastUsed <= threshold) {
+                templates.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public void remove(String key) {
+        templates.remove(key);
+        if (store != null) {
+            store.remove(STORE_KEY_PREFIX + key);
+        }
+    }
+
+    private Template load(String key) {
+        byte[] bytes = store.get(STORE_KEY_PREFIX + key);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            Template template = GSON.fromJson(new String(bytes, "UTF-8"), Template.class);
+            return template != null && template.isValid() ? template : null;
+        } catch (JsonParseException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * forget the templates kept in memory, the shared store is left untouched
+     */
+    public void clear() {
+        templates.clear();
+    }
+
+    private static class Template {
+
+        /**
+         * System.nanoTime() when the template was put or last matched, not kept in the store
+         */
+        private transient volatile long lastUsed;
+
+        private final String templateTag;
+
+        private final String[] segments;
+
+        private final String[] keys;
+
+        private Template(String templateTag, String[] segments, String[] keys) {
+            this.templateTag = templateTag;
+            this.segments = segments;
+            this.keys = keys;
+        }
+
+        static Template create(String html, TemplateReplace layout, String templateTag) {
+            int count = layout.getCount();
+            String[] segments = new String[count + 1];
+            String[] keys = new String[count];
+            int lastEnd = 0;
+            for (int i = 0; i < count; ++i) {
+                segments[i] = html.substring(lastEnd, layout.getStart(i));
+                keys[i] = layout.getKey(i);
+                lastEnd = layout.getEnd(i);
+            }
+            segments[count] = html.substring(lastEnd);
+            return new Template(templateTag, segments, keys);
+        }
+
+        boolean isValid() {
+            return templateTag != null && keys != null && segments != null && segments.length == keys.length + 1;
+        }
+
+        boolean matches(String html, TemplateReplace layout) {
+            if (layout.getCount() != keys.length) {
+                return false;
+            }
+            int lastEnd = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (!keys[i].equals(layout.getKey(i)) || !regionEquals(html, lastEnd, layout.getStart(i), segments[i])) {
+                    return false;
+                }
+                lastEnd = layout.getEnd(i);
+            }
+            return regionEquals(html, lastEnd, html.length(), segments[keys.length]);
+        }
+
+        private static boolean regionEquals(String html, int start, int end, String segment) {
+            return end - start == segment.length() && html.regionMatches(start, segment, 0, segment.length());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Line based edit script turning an older template into the current one, sent instead of the
+ * whole page when only a few lines of the template changed.
+ * <p>
+ * A client holding a template sends <code>accept-template-diff: true</code> besides its
+ * <code>template-tag</code>. When that template is one of the recent templates of the page, the
+ * response carries <code>template-change: true</code> and <code>template-diff: true</code>, and
+ * its body is the same json as a data response, with every data block and the edit script in
+ * <code>diff</code>, as a string. The script is a json array read in order against the lines of the old
+ * template, each line keeping its line terminator:
+ * <ul>
+ * <li>a positive number n copies the next n lines</li>
+ * <li>a negative number -n skips the next n lines</li>
+ * <li>a string is inserted as it is</li>
+ * </ul>
+ * e.g. <code>[12,-1,"&lt;link href=\"v2.css\"&gt;\n",40]</code>. The client rebuilds the page from the
+ * new template and the data and checks it against html-sha1. Both templates and the data are split the way the
+ * client splits the page, see {@link SonicClientSplitter}.
+ */
+public class SonicTemplateDiff {
+
+    /**
+     * request header, "true" if the client applies template diffs
+     */
+    public static final String REQUEST_HEADER = "accept-template-diff";
+
+    /**
+     * response header set to "true" when diff holds the edit script of the template
+     */
+    public static final String RESPONSE_HEADER = "template-diff";
+
+    /**
+     * templates differing by more inserted or deleted lines are sent as a whole
+     */
+    private static final int MAX_EDITS = 200;
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private SonicTemplateDiff() {
+    }
+
+    /**
+     * @param oldTemplate
+     * @param newTemplate
+     * @return the edit script as json, null if it would not be much smaller than the new template
+     */
+    static String diff(String oldTemplate, String newTemplate) {
+        List<String> oldLines = splitLines(oldTemplate);
+        List<String> newLines = splitLines(newTemplate);
+        // lines are compared as ints
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int[] a = toIds(oldLines, ids);
+        int[] b = toIds(newLines, ids);
+
+        int prefix = 0;
+        while (prefix < a.length && prefix < b.length && a[prefix] == b[prefix]) {
+            ++prefix;
+        }
+        int suffix = 0;
+        while (suffix < a.length - prefix && suffix < b.length - prefix
+                && a[a.length - 1 - suffix] == b[b.length - 1 - suffix]) {
+            ++suffix;
+        }
+        Script script = new Script(newLines);
+        script.copy(prefix);
+        if (!middle(a, prefix, a.length - suffix, b, prefix, b.length - suffix, script)) {
+            return null;
+        }
+        script.copy(suffix);
+        String json = GSON.toJson(script.ops);
+        return json.length() * 2 < newTemplate.length() ? json : null;
+    }
+
+    /**
+     * Myers' O(ND) diff of a[aFrom, aTo) and b[bFrom, bTo), which differ at both ends
+     * @return false if they differ by more than {@link #MAX_EDITS} lines
+     */
+    private static boolean middle(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, Script script) {
+        int n = aTo - aFrom;
+        int m = bTo - bFrom;
+        int max = Math.min(n + m, MAX_EDITS);
+        // v[k + offset] is the furthest x reached on diagonal k = x - y, a copy is kept per step to walk back
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<int[]>();
+        int found = -1;
+        for (int d = 0; d <= max && found < 0; ++d) {
+            trace.add(v.clone());
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[k - 1 + offset] < v[k + 1 + offset])) {
+                    x = v[k + 1 + offset];
+                } else {
+                    x = v[k - 1 + offset] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aFrom + x] == b[bFrom + y]) {
+                    ++x;
+                    ++y;
+                }
+                v[k + offset] = x;
+                if (x >= n && y >= m) {
+                    found = d;
+                    break;
+                }
+            }
+        }
+        if (found < 0) {
+            return false;
+        }
+        // walk back from (n, m), each step is one inserted or deleted line followed by equal lines
+        List<int[]> steps = new ArrayList<int[]>();
+        int x = n;
+        int y = m;
+        for (int d = found; d > 0; --d) {
+            int[] previous = trace.get(d);
+            int k = x - y;
+            boolean insert = k == -d || (k != d && previous[k - 1 + offset] < previous[k + 1 + offset]);
+            int previousK = insert ? k + 1 : k - 1;
+            int previousX = previous[previousK + offset];
+            int previousY = previousX - previousK;
+            int snake = insert ? x - previousX : x - previousX - 1;
+            steps.add(new int[]{insert ? 1 : 0, previousY, snake});
+            x = previousX;
+            y = previousY;
+        }
+        script.copy(x);
+        for (int i = steps.size() - 1; i >= 0; --i) {
+            int[] step = steps.get(i);
+            if (step[0] == 1) {
+                script.insert(bFrom + step[1]);
+            } else {
+                script.delete(1);
+            }
+            script.copy(step[2]);
+        }
+        return true;
+    }
+
+    private static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0, length = text.length(); i < length; ++i) {
+            if (text.charAt(i) == '\n') {
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    private static int[] toIds(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; ++i) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * builds the ops, merging runs of the same kind
+     */
+    private static class Script {
+
+        final List<Object> ops = new ArrayList<Object>();
+
+        final List<String> newLines;
+
+        Script(List<String> newLines) {
+            this.newLines = newLines;
+        }
+
+        void copy(int count) {
+            if (count == 0) {
+                return;
+            }
+            Object last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+            if (last instanceof Integer && (Integer) last > 0) {
+                ops.set(ops.size() - 1, (Integer) last + count);
+            } else {
+                ops.add(count);
+            }
+        }
+
+        void delete(int count) {
+            Object last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+            if (last instanceof Integer && (Integer) last < 0) {
+                ops.set(ops.size() - 1, (Integer) last - count);
+            } else {
+                ops.add(-count);
+            }
+        }
+
+        void insert(int newLine) {
+            Object last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+            if (last instanceof String) {
+                ops.set(ops.size() - 1, last + newLines.get(newLine));
+            } else {
+                ops.add(newLines.get(newLine));
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the last templates of recent pages, so a client holding an older template can be sent
+ * a {@link SonicTemplateDiff} instead of the whole page. The templates are those of the client, see
+ * {@link SonicClientSplitter}, kept by the template-tag of the page.
+ * <p>
+ * The edit script from an older template to the current one is computed once and reused until the
+ * template changes again.
+ */
+class SonicTemplateHistory {
+
+    /**
+     * marks a script not worth sending
+     */
+    private static final String NO_DIFF = "";
+
+    private final Map<String, Versions> pages;
+
+    private final int depth;
+
+    /**
+     * @param maxSize max number of pages kept, the least recently used one is dropped first
+     * @param depth number of previous templates kept per page
+     */
+    SonicTemplateHistory(final int maxSize, int depth) {
+        this.depth = depth;
+        this.pages = Collections.synchronizedMap(new LinkedHashMap<String, Versions>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Versions> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * @param key cache key, such as the request uri
+     * @param templateTag
+     * @return true if templateTag is the current template of the page
+     */
+    boolean isCurrent(String key, String templateTag) {
+        Versions versions = pages.get(key);
+        return versions != null && versions.isCurrent(templateTag);
+    }
+
+    /**
+     * remember template as the current template of the page
+     * @param key cache key, such as the request uri
+     * @param templateTag
+     * @param template
+     */
+    void put(String key, String templateTag, String template) {
+        synchronized (pages) {
+            Versions versions = pages.get(key);
+            if (versions == null) {
+                versions = new Versions();
+                pages.put(key, versions);
+            }
+            versions.push(templateTag, template, depth);
+        }
+    }
+
+    /**
+     * @param key cache key, such as the request uri
+     * @param oldTag template-tag of the client
+     * @param newTag current template-tag of the page
+     * @return the edit script as json, null if the old template is not known, either template is empty
+     * or the script is not worth sending
+     */
+    String getDiff(String key, String oldTag, String newTag) {
+        Versions versions = pages.get(key);
+        if (versions == null || oldTag == null || oldTag.length() == 0) {
+            return null;
+        }
+        String oldTemplate;
+        String newTemplate;
+        synchronized (versions) {
+            if (!versions.isCurrent(newTag)) {
+                return null;
+            }
+            String diff = versions.diffs.get(oldTag);
+            if (diff != null) {
+                return NO_DIFF.equals(diff) ? null : diff;
+            }
+            oldTemplate = versions.get(oldTag);
+            newTemplate = versions.templates.get(0);
+            // the client does not keep the template of a page without block
+            if (oldTemplate == null || oldTemplate.length() == 0 || newTemplate.length() == 0) {
+                return null;
+            }
+        }
+        // diff out of the lock, two requests may compute the same script at worst
+        String diff = SonicTemplateDiff.diff(oldTemplate, newTemplate);
+        synchronized (versions) {
+            if (versions.isCurrent(newTag)) {
+                versions.diffs.put(oldTag, diff == null ? NO_DIFF : diff);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * templates of one page, the current one first
+     */
+    private static class Versions {
+
+        final List<String> tags = new ArrayList<String>();
+
+        final List<String> templates = new ArrayList<String>();
+
+        /**
+         * scripts from older templates to the current one by old template-tag
+         */
+        final Map<String, String> diffs = new HashMap<String, String>();
+
+        synchronized boolean isCurrent(String templateTag) {
+            return !tags.isEmpty() && tags.get(0).equals(templateTag);
+        }
+
+        synchronized String get(String templateTag) {
+            int index = tags.indexOf(templateTag);
+            return index < 0 ? null : templates.get(index);
+        }
+
+        synchronized void push(String templateTag, String template, int depth) {
+            int index = tags.indexOf(templateTag);
+            if (index == 0) {
+                return;
+            }
+            if (index > 0) {
+                tags.remove(index);
+                templates.remove(index);
+            }
+            tags.add(0, templateTag);
+            templates.add(0, template);
+            while (tags.size() > depth + 1) {
+                tags.remove(tags.size() - 1);
+                templates.remove(templates.size() - 1);
+            }
+            diffs.clear();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tells which variant of a page a request gets, for pages rendered differently by A/B bucket or
+ * locale. Each variant keeps its own template and etag, so users of one variant are not sent a
+ * new template because users of another one came in between.
+ * <p>
+ * A variant is made of the values of comma separated sources:
+ * <ul>
+ * <li><code>cookie:name</code> the value of a cookie</li>
+ * <li><code>header:name</code> the value of a request header</li>
+ * <li><code>attribute:name</code> a request attribute set by an earlier filter</li>
+ * <li><code>locale</code> the locale of the request</li>
+ * </ul>
+ * e.g. <code>cookie:ab_bucket,locale</code>.
+ */
+public class SonicTemplateVariant {
+
+    private static final String COOKIE = "cookie";
+
+    private static final String HEADER = "header";
+
+    private static final String ATTRIBUTE = "attribute";
+
+    private static final String LOCALE = "locale";
+
+    private final String[] types;
+
+    private final String[] names;
+
+    private final List<String> varyHeaders;
+
+    private SonicTemplateVariant(String[] types, String[] names, List<String> varyHeaders) {
+        this.types = types;
+        this.names = names;
+        this.varyHeaders = varyHeaders;
+    }
+
+    /**
+     * @param sources comma separated sources of the variant
+     * @return null if sources is null or empty
+     * @throws IllegalArgumentException if a source is unknown
+     */
+    public static SonicTemplateVariant parse(String sources) {
+        if (sources == null || sources.trim().length() == 0) {
+            return null;
+        }
+        String[] items = sources.split(",");
+        String[] types = new String[items.length];
+        String[] names = new String[items.length];
+        List<String> varyHeaders = new ArrayList<String>();
+        for (int i = 0; i < items.length; ++i) {
+            String item = items[i].trim();
+            int index = item.indexOf(':');
+            String type = (index < 0 ? item : item.substring(0, index)).trim().toLowerCase(Locale.US);
+            String name = index < 0 ? "" : item.substring(index + 1).trim();
+            if (LOCALE.equals(type)) {
+                varyHeaders.add("Accept-Language");
+            } else if (COOKIE.equals(type) || HEADER.equals(type) || ATTRIBUTE.equals(type)) {
+                if (name.length() == 0) {
+                    throw new IllegalArgumentException("missing name of template variant source: " + item);
+                }
+                if (HEADER.equals(type)) {
+                    varyHeaders.add(name);
+                }
+            } else {
+                throw new IllegalArgumentException("unknown template variant source: " + item);
+            }
+            types[i] = type;
+            names[i] = name;
+        }
+        return new SonicTemplateVariant(types, names, Collections.unmodifiableList(varyHeaders));
+    }
+
+    /**
+     * @param request
+     * @return the variant of the page, missing values are empty
+     */
+    public String getVariant(HttpServletRequest request) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < types.length; ++i) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            String value = getValue(request, types[i], names[i]);
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String getValue(HttpServletRequest request, String type, String name) {
+        if (LOCALE.equals(type)) {
+            Locale locale = request.getLocale();
+            return locale == null ? null : locale.toString();
+        }
+        if (HEADER.equals(type)) {
+            return request.getHeader(name);
+        }
+        if (ATTRIBUTE.equals(type)) {
+            Object value = request.getAttribute(name);
+            return value == null ? null : value.toString();
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (name.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return request headers the variant depends on, for the Vary response header
+     */
+    public List<String> getVaryHeaders() {
+        return varyHeaders;
+    }
+}
@@ -1,10 +1,12 @@
 package com.github.tencent;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -12,6 +14,26 @@ import javax.servlet.http.HttpServletRequest;
 
 public class SonicUtil {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * max number of idle MessageDigest instances a thread keeps per algorithm
+     */
+    private static final int MAX_THREAD_DIGESTS = 4;
+
+    /**
+     * MessageDigest instances of the current thread by algorithm name, getInstance is slow and
+     * a MessageDigest is not thread safe. The first one is used by {@link #getDigest(String)}
+     */
+    private static final ThreadLocal<Map<String, List<MessageDigest>>> threadDigests = new ThreadLocal<Map<String, List<MessageDigest>>>() {
+        @Override
+        protected Map<String, List<MessageDigest>> initialValue() {
+            return new HashMap<String, List<MessageDigest>>();
+        }
+    };
+
     /**
      * get hex string
      *
@@ -19,11 +41,70 @@ public class SonicUtil {
      * @return
      */
     public static String hex(byte[] arr) {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < arr.length; ++i) {
-            sb.append(Integer.toHexString((arr[i] & 0xFF) | 0x100).substring(1, 3));
+        char[] chars = new char[arr.length << 1];
+        for (int i = 0, j = 0; i < arr.length; ++i) {
+            chars[j++] = HEX_DIGITS[(arr[i] >> 4) & 0x0F];
+            chars[j++] = HEX_DIGITS[arr[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * get a reset MessageDigest owned by the current thread, do not share it with other threads
+     * @param algorithmName
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    public static MessageDigest getDigest(String algorithmName) throws NoSuchAlgorithmException {
+        List<MessageDigest> digests = getThreadDigests(algorithmName);
+        if (digests.isEmpty()) {
+            MessageDigest digest = MessageDigest.getInstance(algorithmName);
+            digests.add(digest);
+            return digest;
+        }
+        MessageDigest digest = digests.get(0);
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * take a reset MessageDigest out of the current thread, so it can be kept across calls and threads. Give it
+     * back with {@link #releaseDigest(String, MessageDigest)} once done
+     * @param algorithmName
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    static MessageDigest borrowDigest(String algorithmName) throws NoSuchAlgorithmException {
+        List<MessageDigest> digests = getThreadDigests(algorithmName);
+        if (digests.isEmpty()) {
+            return MessageDigest.getInstance(algorithmName);
+        }
+        MessageDigest digest = digests.remove(digests.size() - 1);
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * give a digest taken by {@link #borrowDigest(String)} to the current thread, which may be another one
+     * @param algorithmName
+     * @param digest
+     */
+    static void releaseDigest(String algorithmName, MessageDigest digest) {
+        List<MessageDigest> digests = getThreadDigests(algorithmName);
+        if (digests.size() < MAX_THREAD_DIGESTS) {
+            digests.add(digest);
+        }
+    }
+
+    private static List<MessageDigest> getThreadDigests(String algorithmName) {
+        String key = algorithmName.toLowerCase();
+        Map<String, List<MessageDigest>> digests = threadDigests.get();
+        List<MessageDigest> list = digests.get(key);
+        if (list == null) {
+            list = new ArrayList<MessageDigest>(MAX_THREAD_DIGESTS);
+            digests.put(key, list);
         }
-        return sb.toString();
+        return list;
     }
 
     /**
@@ -31,26 +112,73 @@ public class SonicUtil {
      * @param inputText
      * @param algorithmName
      * @return
+     * @throws IllegalStateException if the algorithm is not available
      */
     public static String encrypt(String inputText, String algorithmName) {
         if (inputText == null || "".equals(inputText.trim())) {
             return "";
         }
+        return encrypt(inputText.getBytes(UTF8), algorithmName);
+    }
+
+    /**
+     * encrypt bytes as they are, without decoding them. For valid UTF-8 the result is the same as
+     * encrypt(new String(input, "UTF-8"), algorithmName), invalid sequences are not replaced by U+FFFD first
+     * @param input
+     * @param algorithmName
+     * @return
+     * @throws IllegalStateException if the algorithm is not available
+     */
+    public static String encrypt(byte[] input, String algorithmName) {
+        if (input == null || isBlank(input)) {
+            return "";
+        }
+        if (algorithmName == null || "".equals(algorithmName.trim())) {
+            algorithmName = "md5";
+        }
+        try {
+            MessageDigest m = getDigest(algorithmName);
+            m.update(input);
+            return hex(m.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * encrypt the bytes of a buffer without joining its slabs, the result is the same as
+     * encrypt(input.toByteArray(), algorithmName)
+     * @param input
+     * @param algorithmName
+     * @return
+     * @throws IllegalStateException if the algorithm is not available
+     */
+    static String encrypt(SonicChunkedBuffer input, String algorithmName) {
+        if (input == null || input.isBlank()) {
+            return "";
+        }
         if (algorithmName == null || "".equals(algorithmName.trim())) {
             algorithmName = "md5";
         }
-        String encryptText = null;
         try {
-            MessageDigest m = MessageDigest.getInstance(algorithmName);
-            m.update(inputText.getBytes("UTF8"));
-            byte s[] = m.digest();
-            return hex(s);
+            MessageDigest m = getDigest(algorithmName);
+            input.update(m);
+            return hex(m.digest());
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * same as "".equals(text.trim()) on the decoded text: every UTF-8 byte of a char above U+0020 is above 0x20
+     */
+    private static boolean isBlank(byte[] input) {
+        for (int i = 0; i < input.length; ++i) {
+            if ((input[i] & 0xFF) > ' ') {
+                return false;
+            }
         }
-        return encryptText;
+        return true;
     }
 
     /**
@@ -87,7 +215,7 @@ public class SonicUtil {
      * @return
      */
     public static String pregMatch(String strContent, String strPattern) {
-        Pattern titlePattern = Pattern.compile(strPattern, Pattern.CASE_INSENSITIVE);
+        Pattern titlePattern = SonicPatterns.compile(strPattern, Pattern.CASE_INSENSITIVE);
         Matcher titleMatcher = titlePattern.matcher(strContent);
         if(titleMatcher.find()) {
             return titleMatcher.group(0);
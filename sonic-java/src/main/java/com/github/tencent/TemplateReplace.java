@@ -0,0 +1,294 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the title and the sonicdiff blocks of one page, with the same result as the regular expressions
+ * the filter always ran: every title is replaced case sensitively first, then the data blocks are matched
+ * against the result. The page is walked once from '&lt;' to '&lt;': a title found there is replaced, otherwise
+ * the tag is matched against the data blocks. A title can not be part of a block tag, and <code>{title}</code>
+ * can not make one, so the block tags are matched on the page itself. Instances hold per request state, so
+ * they must not be shared by concurrent requests; call {@link #reset()} before reusing one.
+ */
+class TemplateReplace {
+    private static final String TITLE_OPEN = "<title";
+    private static final String TITLE_CLOSE = "</title>";
+    private static final String TITLE_KEY = "{title}";
+    private static final String COMMENT_OPEN = "<!--";
+    private static final String DIFF_CLOSE = "-->";
+    private static final String DIFF_END_CLOSE = "-end-->";
+    private String title = "";
+    private String text;
+    private final Map<String, String> diffData = new HashMap<String, String>();
+    private int[] regions = new int[32];
+    private final List<String> keys = new ArrayList<String>();
+
+    /**
+     * tag name of the block being matched, set by {@link #matchOpenTag(String, int, String[])}
+     */
+    private String tagName;
+
+    /**
+     * find the title and the data blocks of html without building the template
+     * @param html
+     * @param patterns
+     */
+    public void scan(String html, SonicPatterns patterns) {
+        String[] markers = patterns.getDiffMarkers();
+        boolean titleExtracted = patterns.isTitleExtracted();
+        boolean titleFound = !titleExtracted;
+        // the text with titles replaced, only built once a title is found
+        StringBuilder sb = null;
+        int copied = 0;
+        // html.length() - text.length() up to the current position
+        int shift = 0;
+        int blockStart = -1;
+        int contentStart = 0;
+        int length = html.length();
+        int i = html.indexOf('<');
+        while (i != -1) {
+            int end = -1;
+            if (titleExtracted) {
+                if (!titleFound) {
+                    end = matchTitle(html, i, true);
+                    if (end != -1) {
+                        title = html.substring(i, end);
+                        titleFound = true;
+                    }
+                }
+                end = matchTitle(html, i, false);
+                if (end != -1) {
+                    if (sb == null) {
+                        sb = new StringBuilder(length);
+                    }
+                    sb.append(html, copied, i).append(TITLE_KEY);
+                    copied = end;
+                    shift += end - i - TITLE_KEY.length();
+                    i = html.indexOf('<', end);
+                    continue;
+                }
+            }
+            if (blockStart == -1) {
+                end = matchOpenTag(html, i, markers);
+                if (end != -1) {
+                    blockStart = i - shift;
+                    contentStart = end - shift;
+                }
+            } else if (i - shift > contentStart) {
+                // the data of a block has at least one char
+                end = matchCloseTag(html, i, markers);
+                if (end != -1) {
+                    addBlock(blockStart, end - shift);
+                    blockStart = -1;
+                }
+            }
+            i = html.indexOf('<', end != -1 ? end : i + 1);
+        }
+        // a block without end tag: no later block can have one either
+        if (sb != null) {
+            text = sb.append(html, copied, length).toString();
+        } else {
+            text = html;
+        }
+        for (int index = 0, count = keys.size(); index < count; ++index) {
+            diffData.put(keys.get(index), text.substring(regions[index * 2], regions[index * 2 + 1]));
+        }
+    }
+
+    private void addBlock(int start, int end) {
+        int count = keys.size();
+        if (regions.length < (count + 1) * 2) {
+            regions = Arrays.copyOf(regions, regions.length * 2);
+        }
+        regions[count * 2] = start;
+        regions[count * 2 + 1] = end;
+        keys.add("{" + tagName + "}");
+    }
+
+    /**
+     * match <code>&lt;title.*?&lt;/title&gt;</code> at <code>html[from]</code>, "." does not match line terminators
+     * @return the end of the title, -1 if there is none
+     */
+    private static int matchTitle(String html, int from, boolean ignoreCase) {
+        if (!matches(html, from, TITLE_OPEN, ignoreCase)) {
+            return -1;
+        }
+        for (int i = from + TITLE_OPEN.length(), length = html.length(); i < length; ++i) {
+            char c = html.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return -1;
+            }
+            if (c == '<' && matches(html, i, TITLE_CLOSE, ignoreCase)) {
+                return i + TITLE_CLOSE.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * match <code>&lt;!--marker-?(\w*)--&gt;</code> at <code>html[from]</code>, markers are tried in order and
+     * the tag name of the first one matching is kept
+     * @return the end of the tag, -1 if there is none
+     */
+    private int matchOpenTag(String html, int from, String[] markers) {
+        if (!html.startsWith(COMMENT_OPEN, from)) {
+            return -1;
+        }
+        for (String marker : markers) {
+            int nameStart = from + COMMENT_OPEN.length();
+            if (!matches(html, nameStart, marker, true)) {
+                continue;
+            }
+            nameStart += marker.length();
+            // "-tag-->" is tried first, then "-->" with an empty tag
+            if (nameStart < html.length() && html.charAt(nameStart) == '-') {
+                int nameEnd = skipWord(html, nameStart + 1);
+                if (html.startsWith(DIFF_CLOSE, nameEnd)) {
+                    tagName = html.substring(nameStart + 1, nameEnd);
+                    return nameEnd + DIFF_CLOSE.length();
+                }
+            }
+            int nameEnd = skipWord(html, nameStart);
+            if (html.startsWith(DIFF_CLOSE, nameEnd)) {
+                tagName = html.substring(nameStart, nameEnd);
+                return nameEnd + DIFF_CLOSE.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * match <code>&lt;!--marker-?\w*-end--&gt;</code> at <code>html[from]</code>
+     * @return the end of the tag, -1 if there is none
+     */
+    private static int matchCloseTag(String html, int from, String[] markers) {
+        if (!html.startsWith(COMMENT_OPEN, from)) {
+            return -1;
+        }
+        for (String marker : markers) {
+            int nameStart = from + COMMENT_OPEN.length();
+            if (!matches(html, nameStart, marker, true)) {
+                continue;
+            }
+            nameStart += marker.length();
+            if (nameStart < html.length() && html.charAt(nameStart) == '-') {
+                int nameEnd = skipWord(html, nameStart + 1);
+                if (matches(html, nameEnd, DIFF_END_CLOSE, true)) {
+                    return nameEnd + DIFF_END_CLOSE.length();
+                }
+            }
+            int nameEnd = skipWord(html, nameStart);
+            if (matches(html, nameEnd, DIFF_END_CLOSE, true)) {
+                return nameEnd + DIFF_END_CLOSE.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * compare like a regular expression without UNICODE_CASE: only ASCII letters are matched case insensitively,
+     * unlike String.regionMatches
+     * @param expect lower case
+     */
+    private static boolean matches(String html, int from, String expect, boolean ignoreCase) {
+        if (from + expect.length() > html.length()) {
+            return false;
+        }
+        for (int i = 0; i < expect.length(); ++i) {
+            char c = html.charAt(from + i);
+            if (ignoreCase && c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != expect.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first char from <code>from</code> which is not in <code>\w</code>
+     */
+    private static int skipWord(String html, int from) {
+        int i = from;
+        for (int length = html.length(); i < length; ++i) {
+            char c = html.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return the page walked by {@link #scan(String, SonicPatterns)} with its titles replaced, the regions
+     * of the data blocks are in this text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * build the template of the page walked by {@link #scan(String, SonicPatterns)}
+     * @return
+     */
+    public String buildTemplate() {
+        StringBuilder sb = new StringBuilder(text.length());
+        int lastEnd = 0;
+        for (int i = 0, count = keys.size(); i < count; ++i) {
+            sb.append(text, lastEnd, regions[i * 2]).append(keys.get(i));
+            lastEnd = regions[i * 2 + 1];
+        }
+        return sb.append(text, lastEnd, text.length()).toString();
+    }
+
+    /**
+     * @return the first title matched case insensitively, empty string if there is none
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the sonicdiff blocks keyed by <code>{tag}</code>
+     */
+    public Map<String, String> getDiffData() {
+        return diffData;
+    }
+
+    /**
+     * @return number of placeholders found
+     */
+    public int getCount() {
+        return keys.size();
+    }
+
+    public String getKey(int index) {
+        return keys.get(index);
+    }
+
+    public int getStart(int index) {
+        return regions[index * 2];
+    }
+
+    public int getEnd(int index) {
+        return regions[index * 2 + 1];
+    }
+
+    public boolean isSonicDiffBodyReplaced() {
+        return !keys.isEmpty();
+    }
+
+    public void reset() {
+        title = "";
+        text = null;
+        tagName = null;
+        diffData.clear();
+        keys.clear();
+    }
+
+}
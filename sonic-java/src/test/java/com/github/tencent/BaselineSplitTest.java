@@ -0,0 +1,161 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link TemplateReplace} and {@link SonicStreamScanner} against the regular expressions SonicFilter
+ * ran before them: titles replaced case sensitively by <code>replaceAll</code>, then the sonicdiff blocks
+ * replaced in the result, and the first title matched case insensitively.
+ */
+public class BaselineSplitTest {
+
+    private static final String TITLE_REGEX = "<title(.*?)<\\/title>";
+
+    private static final Pattern BLOCK_PATTERN = Pattern.compile(
+            "<!--sonicdiff-?(\\w*)-->[\\s\\S]+?<!--sonicdiff-?\\w*-end-->", Pattern.CASE_INSENSITIVE);
+
+    private static final String[] PAGES = {"sonic-demo-index.html", "sonic-title-cases.html"};
+
+    private static final String[] PIECES = {
+            "<title>", "</title>", "<TITLE>", "</TITLE>", "<title lang=\"en\">", "<title", "</title", "<titl",
+            "<!--sonicdiff-a-->", "<!--sonicdiff-a-end-->", "<!--SONICDIFF-b-->", "<!--sonicdiff-B-END-->",
+            "<!--sonicdiff-->", "<!--sonicdiff-end-->", "<!--sonicdiff-x_1-end-->", "<!--sonicdiffx-->",
+            "<!--sonicdiff--->", "<!--sonicdiff", "<!--", "-->", "-", "<", ">", "{title}",
+            "\n", "\r", "\u0085", " ", " ", " ", "text", "声速", "😀",
+            // non ASCII chars folding to ASCII letters, the regular expressions match them case sensitively
+            "<tİtle>", "</tİtle>", "<!--sonİcdiff-a-->", "<!--sonicdiff-a-endK-->"
+    };
+
+    /**
+     * markers where one is a prefix of the other, tried in order
+     */
+    private static final SonicPatterns PREFIX_MARKERS = SonicPatterns.parse("sonic");
+
+    private static final String[] MARKER_PIECES = {
+            "<!--sonic-a-->", "<!--sonicdiff-b-->", "<!--SONICdiffx-->", "<!--sonic-->", "<!--sonicdiff-->",
+            "<!--sonic-a-end-->", "<!--sonicdiff-b-end-->", "<!--SONIC-END-->", "<!--sonicdiffx-end-->",
+            "<!--sonic", "<!--", "-->", "-", "text", "<title>t</title>"
+    };
+
+    static String readPage(String name) throws Exception {
+        InputStream in = BaselineSplitTest.class.getClassLoader().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * template and data as SonicFilter computed them with regular expressions
+     */
+    private static String baseline(String html, Pattern blockPattern, final Map<String, String> data) {
+        data.put("{title}", SonicUtil.pregMatch(html, TITLE_REGEX));
+        String template = html.replaceAll(TITLE_REGEX, "{title}");
+        return SonicUtil.replaceAllCallBack(template, blockPattern, new AbstractReplaceCallBack() {
+            @Override
+            public String doReplace(String text, int index, Matcher matcher) {
+                String key = "{" + matcher.group(1) + "}";
+                data.put(key, matcher.group(0));
+                return key;
+            }
+        });
+    }
+
+    private static void assertSameSplit(String html, Random random) throws Exception {
+        Map<String, String> expectedData = new HashMap<String, String>();
+        String expectedTemplate = baseline(html, BLOCK_PATTERN, expectedData);
+
+        TemplateReplace templateReplace = new TemplateReplace();
+        templateReplace.scan(html, SonicPatterns.DEFAULT);
+        assertEquals(html, expectedTemplate, templateReplace.buildTemplate());
+        Map<String, String> data = new HashMap<String, String>(templateReplace.getDiffData());
+        data.put("{title}", templateReplace.getTitle());
+        assertEquals(html, expectedData, data);
+
+        // the scanner gets the bytes in pieces, which may cut characters and tags anywhere, or all at once
+        SonicStreamScanner scanner = new SonicStreamScanner(SonicPatterns.DEFAULT);
+        byte[] bytes = html.getBytes("UTF-8");
+        int maxLength = random.nextInt(4) == 0 ? bytes.length : 16;
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(bytes.length - offset, 1 + random.nextInt(maxLength));
+            if (length == 1 && random.nextBoolean()) {
+                scanner.write(bytes[offset]);
+            } else {
+                scanner.write(bytes, offset, length);
+            }
+            offset += length;
+        }
+        scanner.finish();
+        assertEquals(html, SonicUtil.encrypt(html, "sha-1"), scanner.getHtmlSha1());
+        assertEquals(html, SonicUtil.encrypt(expectedTemplate, "sha-1"), scanner.getTemplateSha1());
+        assertEquals(html, expectedData, scanner.getDataMap());
+    }
+
+    @Test
+    public void samplePages() throws Exception {
+        Random random = new Random(4);
+        for (String page : PAGES) {
+            assertSameSplit(readPage(page), random);
+        }
+    }
+
+    @Test
+    public void titlesAreCaseSensitiveInTheTemplate() {
+        TemplateReplace templateReplace = new TemplateReplace();
+        templateReplace.scan("<TITLE>a</TITLE><title>b</title><!--sonicdiff-x--><title>c</title><!--sonicdiff-x-end-->",
+                SonicPatterns.DEFAULT);
+        assertEquals("<TITLE>a</TITLE>{title}{x}", templateReplace.buildTemplate());
+        assertEquals("<TITLE>a</TITLE>", templateReplace.getTitle());
+        assertEquals("<!--sonicdiff-x-->{title}<!--sonicdiff-x-end-->", templateReplace.getDiffData().get("{x}"));
+    }
+
+    @Test
+    public void pieces() throws Exception {
+        Random random = new Random(4);
+        for (int i = 0; i < 20000; ++i) {
+            StringBuilder html = new StringBuilder();
+            for (int j = random.nextInt(30); j > 0; --j) {
+                html.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertSameSplit(html.toString(), random);
+        }
+    }
+
+    @Test
+    public void markersTriedInOrder() throws Exception {
+        Random random = new Random(5);
+        for (int i = 0; i < 5000; ++i) {
+            StringBuilder html = new StringBuilder();
+            for (int j = random.nextInt(20); j > 0; --j) {
+                html.append(MARKER_PIECES[random.nextInt(MARKER_PIECES.length)]);
+            }
+            Map<String, String> expectedData = new HashMap<String, String>();
+            String expectedTemplate = baseline(html.toString(), PREFIX_MARKERS.getTemplatePattern(), expectedData);
+
+            TemplateReplace templateReplace = new TemplateReplace();
+            templateReplace.scan(html.toString(), PREFIX_MARKERS);
+            assertEquals(html.toString(), expectedTemplate, templateReplace.buildTemplate());
+            Map<String, String> data = new HashMap<String, String>(templateReplace.getDiffData());
+            data.put("{title}", templateReplace.getTitle());
+            assertEquals(html.toString(), expectedData, data);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.tencent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Async context which calls its listeners on {@link #complete()}, there is no dispatch.
+ */
+class FakeAsyncContext implements AsyncContext {
+
+    private final ServletRequest request;
+
+    private final ServletResponse response;
+
+    private final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    private long timeout = 30000;
+
+    FakeAsyncContext(ServletRequest request, ServletResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    boolean isCompleted() {
+        return completed.getCount() == 0;
+    }
+
+    /**
+     * @return true if completed within the time
+     */
+    boolean awaitCompletion(long millis) throws InterruptedException {
+        return completed.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return response;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return true;
+    }
+
+    @Override
+    public void dispatch() {
+        throw new UnsupportedOperationException("dispatch");
+    }
+
+    @Override
+    public void dispatch(String path) {
+        throw new UnsupportedOperationException("dispatch");
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        throw new UnsupportedOperationException("dispatch");
+    }
+
+    @Override
+    public void complete() {
+        List<AsyncListener> toCall;
+        synchronized (this) {
+            if (isCompleted()) {
+                throw new IllegalStateException("already completed");
+            }
+            toCall = new ArrayList<AsyncListener>(listeners);
+        }
+        // listeners see the request completing, as containers call them before the context is recycled
+        AsyncEvent event = new AsyncEvent(this, request, response);
+        for (AsyncListener listener : toCall) {
+            try {
+                listener.onComplete(event);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        completed.countDown();
+    }
+
+    @Override
+    public void start(Runnable run) {
+        new Thread(run, "FakeAsyncContext").start();
+    }
+
+    @Override
+    public synchronized void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public synchronized void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> type) throws ServletException {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.tencent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * GET request with headers, the methods SonicFilter does not call throw.
+ */
+class FakeHttpServletRequest extends HttpServletRequestWrapper {
+
+    private final String uri;
+
+    private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    private final ServletContext servletContext;
+
+    private boolean asyncSupported = false;
+
+    private FakeAsyncContext asyncContext;
+
+    FakeHttpServletRequest(String uri, ServletContext servletContext) {
+        super(Fakes.unsupported(HttpServletRequest.class));
+        this.uri = uri;
+        this.servletContext = servletContext;
+    }
+
+    /**
+     * @return a sonic request, sent with accept-diff
+     */
+    static FakeHttpServletRequest sonic(String uri, ServletContext servletContext) {
+        return new FakeHttpServletRequest(uri, servletContext).header("accept-diff", "true");
+    }
+
+    FakeHttpServletRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    FakeHttpServletRequest asyncSupported(boolean asyncSupported) {
+        this.asyncSupported = asyncSupported;
+        return this;
+    }
+
+    /**
+     * @return the context started by the filter or the servlet, null if none
+     */
+    FakeAsyncContext getFakeAsyncContext() {
+        return asyncContext;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        List<String> values = new ArrayList<String>();
+        if (headers.containsKey(name)) {
+            values.add(headers.get(name));
+        }
+        return Collections.enumeration(values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(new ArrayList<String>(headers.keySet()));
+    }
+
+    @Override
+    public String getMethod() {
+        return "GET";
+    }
+
+    @Override
+    public String getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getContextPath() {
+        return "";
+    }
+
+    @Override
+    public String getServletPath() {
+        return uri;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return null;
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return null;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return Locale.SIMPLIFIED_CHINESE;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return asyncSupported;
+    }
+
+    @Override
+    public synchronized boolean isAsyncStarted() {
+        return asyncContext != null && !asyncContext.isCompleted();
+    }
+
+    @Override
+    public synchronized AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+        if (!asyncSupported) {
+            throw new IllegalStateException("async is not supported");
+        }
+        if (isAsyncStarted()) {
+            throw new IllegalStateException("async is already started");
+        }
+        asyncContext = new FakeAsyncContext(request, response);
+        return asyncContext;
+    }
+
+    @Override
+    public synchronized AsyncContext getAsyncContext() {
+        if (asyncContext == null) {
+            throw new IllegalStateException("async is not started");
+        }
+        return asyncContext;
+    }
+}
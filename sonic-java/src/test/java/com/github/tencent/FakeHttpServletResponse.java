@@ -0,0 +1,247 @@
+package com.github.tencent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response keeping its status, headers and body in memory, the methods SonicFilter does not call throw.
+ * <p>
+ * Its output stream can be made to report <code>isReady() == false</code> after a number of writes, as a
+ * container does when the client reads slowly, see {@link #setWritesUntilBusy(int)}.
+ */
+class FakeHttpServletResponse extends HttpServletResponseWrapper {
+
+    private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+    private final FakeOutputStream out = new FakeOutputStream();
+
+    private int status = SC_OK;
+
+    private String contentType;
+
+    FakeHttpServletResponse() {
+        super(Fakes.unsupported(HttpServletResponse.class));
+    }
+
+    /**
+     * @param writes number of writes accepted before the output stream is not ready, -1 to be always ready
+     */
+    void setWritesUntilBusy(int writes) {
+        out.setWritesUntilBusy(writes);
+    }
+
+    /**
+     * make the output stream ready again and call its WriteListener, as the container does once the client
+     * has read enough
+     * @param writes number of writes accepted before the output stream is not ready again, -1 to be always ready
+     */
+    void becomeReady(int writes) throws IOException {
+        WriteListener listener = out.setWritesUntilBusy(writes);
+        if (listener != null) {
+            listener.onWritePossible();
+        }
+    }
+
+    byte[] getBody() {
+        synchronized (out) {
+            return out.body.toByteArray();
+        }
+    }
+
+    String getBodyString() throws UnsupportedEncodingException {
+        return new String(getBody(), "UTF-8");
+    }
+
+    boolean isClosed() {
+        return out.closed;
+    }
+
+    /**
+     * @return true if a write was attempted while the output stream was not ready
+     */
+    boolean isWrittenWhenBusy() {
+        return out.writtenWhenBusy;
+    }
+
+    WriteListener getWriteListener() {
+        return out.listener;
+    }
+
+    @Override
+    public synchronized void addHeader(String name, String value) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    @Override
+    public synchronized void setHeader(String name, String value) {
+        headers.remove(name);
+        addHeader(name, value);
+    }
+
+    @Override
+    public synchronized void addIntHeader(String name, int value) {
+        addHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public synchronized void setIntHeader(String name, int value) {
+        setHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public synchronized boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public synchronized String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    @Override
+    public synchronized Collection<String> getHeaders(String name) {
+        List<String> values = headers.get(name);
+        return values == null ? new ArrayList<String>() : new ArrayList<String>(values);
+    }
+
+    @Override
+    public synchronized Collection<String> getHeaderNames() {
+        return new ArrayList<String>(headers.keySet());
+    }
+
+    @Override
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return "UTF-8";
+    }
+
+    @Override
+    public void setContentLength(int length) {
+        setIntHeader("Content-Length", length);
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return out.written;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void flushBuffer() {
+    }
+
+    private class FakeOutputStream extends ServletOutputStream {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        WriteListener listener;
+
+        /**
+         * -1 if always ready
+         */
+        int writesUntilBusy = -1;
+
+        volatile boolean written;
+
+        volatile boolean closed;
+
+        volatile boolean writtenWhenBusy;
+
+        /**
+         * @return the listener to call if the stream was found not ready meanwhile, null if none
+         */
+        synchronized WriteListener setWritesUntilBusy(int writes) {
+            boolean wasBusy = writesUntilBusy == 0;
+            writesUntilBusy = writes;
+            return wasBusy ? listener : null;
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            return writesUntilBusy != 0;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            synchronized (this) {
+                if (listener != null) {
+                    throw new IllegalStateException("a WriteListener is already set");
+                }
+                listener = writeListener;
+            }
+            // a container calls it once the listener is set
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException e) {
+                writeListener.onError(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("closed");
+            }
+            if (writesUntilBusy == 0) {
+                writtenWhenBusy = true;
+                throw new IllegalStateException("not ready");
+            }
+            if (writesUntilBusy > 0) {
+                --writesUntilBusy;
+            }
+            body.write(b, off, len);
+            written = true;
+        }
+
+        @Override
+        public void close() {
+            written = true;
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.tencent;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Helpers shared by the fake servlet objects of the tests.
+ */
+final class Fakes {
+
+    private Fakes() {
+    }
+
+    /**
+     * @return an instance of type whose methods all throw, wrapped by fakes which only override the methods
+     * the filter is expected to call
+     */
+    static <T> T unsupported(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+            }
+        }));
+    }
+
+    /**
+     * @return a servlet context holding attributes and printing what is logged
+     */
+    static ServletContext servletContext() {
+        final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+        return (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(),
+                new Class<?>[]{ServletContext.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(args[0]);
+                        } else if ("setAttribute".equals(name)) {
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        } else if ("removeAttribute".equals(name)) {
+                            attributes.remove(args[0]);
+                            return null;
+                        } else if ("log".equals(name)) {
+                            System.err.println(args[0]);
+                            if (args.length > 1 && args[1] instanceof Throwable) {
+                                ((Throwable) args[1]).printStackTrace();
+                            }
+                            return null;
+                        } else if ("getInitParameter".equals(name)) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException("ServletContext." + name);
+                    }
+                });
+    }
+
+    /**
+     * @param params init-param names and values, one after the other
+     */
+    static FilterConfig filterConfig(final ServletContext servletContext, String... params) {
+        final Map<String, String> initParams = new HashMap<String, String>();
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            initParams.put(params[i], params[i + 1]);
+        }
+        return new FilterConfig() {
+            @Override
+            public String getFilterName() {
+                return "SonicFilter";
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return servletContext;
+            }
+
+            @Override
+            public String getInitParameter(String name) {
+                return initParams.get(name);
+            }
+
+            @Override
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.enumeration(initParams.keySet());
+            }
+        };
+    }
+
+    /**
+     * @return a SonicFilter initialized with the init-params
+     */
+    static SonicFilter filter(String... params) throws ServletException {
+        SonicFilter filter = new SonicFilter();
+        filter.init(filterConfig(servletContext(), params));
+        return filter;
+    }
+
+    /**
+     * @return a chain writing page as UTF-8 html
+     */
+    static FilterChain page(final String page) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                try {
+                    response.setContentType("text/html;charset=utf-8");
+                    response.getOutputStream().write(page.getBytes("UTF-8"));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Checks that template diffs are computed from the templates the Android SDK keeps.
+ */
+public class SonicClientSplitterTest {
+
+    /**
+     * a page and its template, SeparateTemplateAndDataTest of the Android SDK checks its splitter against the
+     * same files
+     */
+    private static final String[] FIXTURES = {"sonic-client-template.html", "sonic-client-template.tpl"};
+
+    private static final File ANDROID_RESOURCES = new File("../sonic-android/sdk/src/test/resources");
+
+    @Test
+    public void sameTemplateAsAndroid() throws Exception {
+        SonicClientSplitter splitter = SonicClientSplitter.split(BaselineSplitTest.readPage(FIXTURES[0]));
+        assertEquals(BaselineSplitTest.readPage(FIXTURES[1]), splitter.getTemplate());
+        Map<String, String> data = splitter.getData();
+        assertEquals("<!--sonicdiffx-->not a block<!--sonicdiff-x-end-->", data.get("{null}"));
+        assertEquals("<title>声速 demo</title>", data.get("{title}"));
+    }
+
+    @Test
+    public void fixturesAreTheOnesOfAndroid() throws Exception {
+        Assume.assumeTrue(ANDROID_RESOURCES.isDirectory());
+        for (String fixture : FIXTURES) {
+            assertArrayEquals(fixture, Files.readAllBytes(new File("src/test/resources", fixture).toPath()),
+                    Files.readAllBytes(new File(ANDROID_RESOURCES, fixture).toPath()));
+        }
+    }
+
+    @Test
+    public void pageWithoutBlock() {
+        SonicClientSplitter splitter = SonicClientSplitter.split("<html><head><title>SONIC</title></head></html>");
+        assertEquals("", splitter.getTemplate());
+        assertEquals(0, splitter.getData().size());
+    }
+
+    private static String page(String css, String user) {
+        StringBuilder page = new StringBuilder("<html>\n<head>\n<title lang=\"en\">not the title</title>\n");
+        page.append("<title>声速</title>\n<link rel=\"stylesheet\" href=\"").append(css).append("\">\n</head>\n<body>\n");
+        for (int line = 0; line < 40; ++line) {
+            page.append("<div class=\"static\">static markup of the page ").append(line).append("</div>\n");
+        }
+        page.append("<!--sonicdiff--><p>block without key</p><!--sonicdiff-end-->\n");
+        page.append("<!--sonicdiff-user--><span>").append(user).append("</span><!--sonicdiff-user-end-->\n");
+        return page.append("</body>\n</html>").toString();
+    }
+
+    /**
+     * SonicUtils.applyTemplateDiff of the Android SDK
+     */
+    private static String applyTemplateDiff(String template, JsonArray diff) {
+        StringBuilder newTemplate = new StringBuilder();
+        int position = 0;
+        for (JsonElement op : diff) {
+            if (op.getAsJsonPrimitive().isString()) {
+                newTemplate.append(op.getAsString());
+                continue;
+            }
+            int lines = op.getAsInt();
+            int end = position;
+            for (int n = Math.abs(lines); n > 0; --n) {
+                int lineEnd = template.indexOf('\n', end);
+                end = lineEnd == -1 ? template.length() : lineEnd + 1;
+            }
+            if (lines > 0) {
+                newTemplate.append(template, position, end);
+            }
+            position = end;
+        }
+        assertEquals(template.length(), position);
+        return newTemplate.toString();
+    }
+
+    private void assertDiffRebuildsThePage(String... params) throws Exception {
+        SonicFilter filter = Fakes.filter(params);
+        ServletContext context = Fakes.servletContext();
+        String oldPage = page("v1.css", "user 1");
+        String newPage = page("v2.css", "user 2");
+        try {
+            FakeHttpServletResponse response = new FakeHttpServletResponse();
+            filter.doFilter(FakeHttpServletRequest.sonic("/page", context), response, Fakes.page(oldPage));
+            String oldTag = response.getHeader("template-tag");
+            assertNotNull(oldTag);
+
+            response = new FakeHttpServletResponse();
+            filter.doFilter(FakeHttpServletRequest.sonic("/page", context).header("template-tag", oldTag)
+                    .header(SonicTemplateDiff.REQUEST_HEADER, "true"), response, Fakes.page(newPage));
+            assertEquals("true", response.getHeader(SonicTemplateDiff.RESPONSE_HEADER));
+            JsonObject json = new JsonParser().parse(response.getBodyString()).getAsJsonObject();
+
+            // what the client does with the template it split from the old page
+            String template = applyTemplateDiff(SonicClientSplitter.split(oldPage).getTemplate(),
+                    new JsonParser().parse(json.get("diff").getAsString()).getAsJsonArray());
+            assertEquals(SonicClientSplitter.split(newPage).getTemplate(), template);
+            StringBuilder html = new StringBuilder(template);
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("data").entrySet()) {
+                int index = html.indexOf(entry.getKey());
+                html.replace(index, index + entry.getKey().length(), entry.getValue().getAsString());
+            }
+            assertEquals(newPage, html.toString());
+            assertEquals(json.get("html-sha1").getAsString(), SonicUtil.encrypt(html.toString(), "sha-1"));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void templateDiffRebuildsThePage() throws Exception {
+        assertDiffRebuildsThePage(SonicFilter.INIT_PARAM_TEMPLATE_HISTORY, "2");
+    }
+
+    @Test
+    public void templateDiffRebuildsThePageWhenStreaming() throws Exception {
+        assertDiffRebuildsThePage(SonicFilter.INIT_PARAM_TEMPLATE_HISTORY, "2",
+                SonicFilter.INIT_PARAM_STREAMING, "true");
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SonicDataDigestTest {
+
+    private static final String BLOCK = "<!--sonicdiff-a--><p>a</p><!--sonicdiff-a-end-->";
+
+    private static final String SHA1 = SonicDataDigest.digest(BLOCK);
+
+    @Test
+    public void fullAndLongPrefixDigestsAreAccepted() {
+        SonicDataDigest dataDigest = SonicDataDigest.parse(
+                "{a}:" + SHA1 + ", {b} : " + SHA1.substring(0, 16).toUpperCase());
+        assertEquals(SHA1, dataDigest.getDigest("{a}"));
+        assertEquals(SHA1.substring(0, 16), dataDigest.getDigest("{b}"));
+
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("{a}", BLOCK);
+        data.put("{b}", BLOCK);
+        data.put("{c}", BLOCK);
+        assertEquals(Collections.singletonMap("{c}", BLOCK), dataDigest.getChangedData(data));
+    }
+
+    @Test
+    public void shortDigestsAreAbsent() {
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1.substring(0, 8)));
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1.substring(0, 15)));
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1 + "0"));
+    }
+
+    @Test
+    public void malformedPairsAreAbsent() {
+        assertNull(SonicDataDigest.parse(""));
+        assertNull(SonicDataDigest.parse(",,"));
+        assertNull(SonicDataDigest.parse(SHA1));
+        assertNull(SonicDataDigest.parse(":" + SHA1));
+        assertNull(SonicDataDigest.parse("{a}:"));
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1.substring(0, 20) + "xyz"));
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1.substring(0, 10) + " " + SHA1.substring(10, 20)));
+
+        SonicDataDigest dataDigest = SonicDataDigest.parse("{a}:zz, {b}:" + SHA1 + ",:" + SHA1);
+        assertNull(dataDigest.getDigest("{a}"));
+        assertEquals(SHA1, dataDigest.getDigest("{b}"));
+    }
+
+    @Test
+    public void duplicateKeysAreAbsent() {
+        SonicDataDigest dataDigest = SonicDataDigest.parse("{a}:" + SHA1 + ",{b}:" + SHA1 + ",{a}:" + SHA1);
+        assertNull(dataDigest.getDigest("{a}"));
+        assertEquals(SHA1, dataDigest.getDigest("{b}"));
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1 + ",{a}:" + SHA1.substring(0, 16)));
+        // a third pair does not bring the key back
+        assertNull(SonicDataDigest.parse("{a}:" + SHA1 + ",{a}:" + SHA1 + ",{a}:" + SHA1));
+    }
+
+    @Test
+    public void keysMayHoldColons() {
+        SonicDataDigest dataDigest = SonicDataDigest.parse("{a:b}:" + SHA1 + ",{c:}:" + SHA1);
+        assertEquals(SHA1, dataDigest.getDigest("{a:b}"));
+        assertEquals(SHA1, dataDigest.getDigest("{c:}"));
+        assertNull(dataDigest.getDigest("{a"));
+    }
+}
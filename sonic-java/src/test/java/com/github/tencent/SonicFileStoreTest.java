@@ -0,0 +1,56 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import javax.servlet.ServletException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SonicFileStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putReplacesTheValue() throws Exception {
+        File dir = folder.getRoot();
+        SonicFileStore store = new SonicFileStore(dir);
+        store.put("/page", "first".getBytes("UTF-8"), 0);
+        assertArrayEquals("first".getBytes("UTF-8"), store.get("/page"));
+        // the file was read before, it must still be replaceable
+        store.put("/page", "second".getBytes("UTF-8"), 0);
+        assertArrayEquals("second".getBytes("UTF-8"), store.get("/page"));
+        assertNull(store.get("/other"));
+        assertEquals("no temp file is left", 1, dir.list().length);
+
+        store.remove("/page");
+        assertNull(store.get("/page"));
+    }
+
+    @Test
+    public void expiredValuesAreRemoved() throws Exception {
+        SonicFileStore store = new SonicFileStore(folder.getRoot());
+        store.put("/page", new byte[]{1, 2, 3}, 1);
+        Thread.sleep(10);
+        assertNull(store.get("/page"));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void filterNamesTheInvalidStore() {
+        try {
+            Fakes.filter(SonicFilter.INIT_PARAM_STORE, "java.lang.String");
+        } catch (ServletException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(SonicFilter.INIT_PARAM_STORE));
+            return;
+        }
+        throw new AssertionError("String is not a SonicStore");
+    }
+}
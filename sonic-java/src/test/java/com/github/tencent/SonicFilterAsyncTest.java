@@ -0,0 +1,195 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+
+import org.junit.Test;
+
+/**
+ * Responses written by the WriteListener of the async filter, and pages rendered asynchronously by the servlet.
+ */
+public class SonicFilterAsyncTest {
+
+    private static String page(int blocks) {
+        StringBuilder page = new StringBuilder("<html><head><title>async</title></head><body>\n");
+        for (int block = 0; block < blocks; ++block) {
+            page.append("<div class=\"static\">static markup of the page ").append(block).append("</div>\n");
+            page.append("<!--sonicdiff-b").append(block).append("--><p>data ").append(block)
+                    .append(" 声速</p><!--sonicdiff-b").append(block).append("-end-->\n");
+        }
+        return page.append("</body></html>").toString();
+    }
+
+    @Test
+    public void asyncResponseWaitsForTheClient() throws Exception {
+        SonicFilter filter = Fakes.filter(SonicFilter.INIT_PARAM_ASYNC, "true");
+        ServletContext context = Fakes.servletContext();
+        String page = page(2000);
+        FakeHttpServletRequest request = FakeHttpServletRequest.sonic("/async", context).asyncSupported(true);
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        // the client takes one chunk at a time
+        response.setWritesUntilBusy(1);
+        try {
+            filter.doFilter(request, response, Fakes.page(page));
+            FakeAsyncContext asyncContext = request.getFakeAsyncContext();
+            int readyCount = 0;
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!asyncContext.isCompleted()) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                if (response.getWriteListener() != null && !response.getOutputStream().isReady()) {
+                    // let the listener return before it is called again, as a container does
+                    Thread.sleep(1);
+                    response.becomeReady(1);
+                    ++readyCount;
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+            assertFalse(response.isWrittenWhenBusy());
+            // completed once the container took the last chunk
+            assertTrue(response.getOutputStream().isReady());
+            assertTrue(readyCount > 1);
+            assertEquals("true", response.getHeader("template-change"));
+            assertEquals(page, response.getBodyString());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    /**
+     * a chain which writes half of the page, starts async and writes the rest on another thread once released
+     */
+    private static FilterChain asyncPage(final String page, final boolean useWriter, final CountDownLatch release) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, final ServletResponse response) throws IOException {
+                response.setContentType("text/html;charset=utf-8");
+                final int half = page.length() / 2;
+                final PrintWriter writer = useWriter ? response.getWriter() : null;
+                if (useWriter) {
+                    writer.write(page, 0, half);
+                } else {
+                    response.getOutputStream().write(page.substring(0, half).getBytes("UTF-8"));
+                }
+                final AsyncContext asyncContext = request.startAsync(request, response);
+                asyncContext.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                            if (useWriter) {
+                                writer.write(page, half, page.length() - half);
+                            } else {
+                                response.getOutputStream().write(page.substring(half).getBytes("UTF-8"));
+                            }
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            asyncContext.complete();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private void assertPassedThrough(boolean useWriter) throws Exception {
+        SonicFilter filter = Fakes.filter();
+        ServletContext context = Fakes.servletContext();
+        String page = page(20);
+        FakeHttpServletRequest request = FakeHttpServletRequest.sonic("/rendered-async", context).asyncSupported(true);
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            filter.doFilter(request, response, asyncPage(page, useWriter, release));
+            // the first half is sent, the copy is not split and the output is left open for the servlet
+            assertEquals(page.substring(0, page.length() / 2), response.getBodyString());
+            assertFalse(response.isClosed());
+            release.countDown();
+            assertTrue(request.getFakeAsyncContext().awaitCompletion(30000));
+            assertEquals(page, response.getBodyString());
+            assertEquals("http", response.getHeader("Cache-Offline"));
+            assertNull(response.getHeader("template-tag"));
+            assertNull(response.getHeader("Etag"));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void asyncRenderedPagePassesThrough() throws Exception {
+        assertPassedThrough(false);
+    }
+
+    @Test
+    public void asyncRenderedPageWrittenByWriterPassesThrough() throws Exception {
+        assertPassedThrough(true);
+    }
+
+    @Test
+    public void writeListenerOfTheServletIsCalledByTheContainer() throws Exception {
+        SonicFilter filter = Fakes.filter();
+        ServletContext context = Fakes.servletContext();
+        final String page = page(20);
+        FakeHttpServletRequest request = FakeHttpServletRequest.sonic("/write-listener", context).asyncSupported(true);
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        // the thread while it is in setWriteListener
+        final AtomicReference<Thread> inSetWriteListener = new AtomicReference<Thread>();
+        final AtomicBoolean calledInside = new AtomicBoolean();
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                response.setContentType("text/html;charset=utf-8");
+                final AsyncContext asyncContext = request.startAsync(request, response);
+                final ServletOutputStream out = response.getOutputStream();
+                inSetWriteListener.set(Thread.currentThread());
+                out.setWriteListener(new WriteListener() {
+                    private boolean written;
+
+                    @Override
+                    public void onWritePossible() throws IOException {
+                        if (inSetWriteListener.get() == Thread.currentThread()) {
+                            calledInside.set(true);
+                        }
+                        if (!written && out.isReady()) {
+                            written = true;
+                            out.write(page.getBytes("UTF-8"));
+                            asyncContext.complete();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        asyncContext.complete();
+                    }
+                });
+                inSetWriteListener.set(null);
+            }
+        };
+        try {
+            filter.doFilter(request, response, chain);
+            assertTrue(request.getFakeAsyncContext().awaitCompletion(30000));
+            assertFalse(calledInside.get());
+            // split or passed through, depending on whether the listener was done when the chain returned
+            assertEquals(page, response.getBodyString());
+        } finally {
+            filter.destroy();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+import org.junit.Test;
+
+/**
+ * Checks that requests are recorded by the policy prefix they match, not by their own path.
+ */
+public class SonicJmxMetricsTest {
+
+    private static long requests(MBeanServer server, String path) throws Exception {
+        ObjectName name = new ObjectName("com.github.tencent:type=SonicFilter,filter=" + ObjectName.quote("SonicFilter")
+                + ",path=" + ObjectName.quote(path));
+        return (Long) server.getAttribute(name, "Requests");
+    }
+
+    @Test
+    public void pathsAreRecordedByPrefix() throws Exception {
+        SonicFilter filter = Fakes.filter(SonicFilter.INIT_PARAM_METRICS, SonicJmxMetrics.class.getName(),
+                SonicFilter.INIT_PARAM_POLICIES, "/feed/ maxPageSize=262144; /feed/hot/ cacheTtl=60");
+        ServletContext context = Fakes.servletContext();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String[] uris = {"/feed/1", "/feed/2", "/feed/hot/1", "/index.html", "/about.html"};
+            for (String uri : uris) {
+                filter.doFilter(FakeHttpServletRequest.sonic(uri, context), new FakeHttpServletResponse(),
+                        Fakes.page("<html><body><!--sonicdiff-a-->" + uri + "<!--sonicdiff-a-end--></body></html>"));
+            }
+            assertEquals(2, requests(server, "/feed/"));
+            assertEquals(1, requests(server, "/feed/hot/"));
+            assertEquals(2, requests(server, "*default*"));
+            assertEquals(uris.length, requests(server, "*all*"));
+            Set<ObjectName> paths = server.queryNames(new ObjectName("com.github.tencent:type=SonicFilter,*"), null);
+            int pathBeans = 0;
+            for (ObjectName name : paths) {
+                if (name.getKeyProperty("path") != null) {
+                    ++pathBeans;
+                }
+            }
+            // *all*, *other*, *default* and the two prefixes
+            assertEquals(5, pathBeans);
+        } finally {
+            filter.destroy();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * The json of {@link SonicJsonWriter} must read back as the json Gson wrote for the same data response.
+ */
+public class SonicJsonWriterTest {
+
+    private static final String[] PIECES = {
+            "a", "{title}", "<title>", "</p>", "&amp;", "'", "=", "\"", "\\", "/", "\\u", "\n", "\r", "\t", "\b", "\f",
+            "\u0000", "\u0001", "\u001f", "\u007f", "\u0080", "\u00e9", "\u07ff", "\u0800", "\u58f0\u901f",
+            "\u2028", "\u2029", "\ufeff", "\uffff", "\ud83d\ude00", "\ud840\udc00", "\udbff\udfff"
+    };
+
+    private static final Gson GSON = new Gson();
+
+    private static String randomString(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = random.nextInt(12); i > 0; --i) {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.toString();
+    }
+
+    private static void assertSameJson(Map<String, String> data, String templateTag, String htmlSha1, String diff)
+            throws Exception {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("data", data);
+        result.put("template-tag", templateTag);
+        result.put("html-sha1", htmlSha1);
+        result.put("diff", diff);
+        // the response is sent in UTF-8, where Gson's json loses nothing either
+        JsonElement expected = new JsonParser().parse(new String(GSON.toJson(result).getBytes("UTF-8"), "UTF-8"));
+
+        String json = new String(SonicJsonWriter.write(data, templateTag, htmlSha1, diff), "UTF-8");
+        assertEquals(json, expected, new JsonParser().parse(json));
+    }
+
+    @Test
+    public void trickyChars() throws Exception {
+        Map<String, String> data = new LinkedHashMap<String, String>();
+        for (String piece : PIECES) {
+            data.put("{" + piece + "}", "<p>" + piece + "</p>");
+        }
+        data.put("", "");
+        assertSameJson(data, "\"tag\"", " ", "[3,-1,\"<link href=\\\"v2.css\\\">\\n\",240]");
+    }
+
+    @Test
+    public void emptyData() throws Exception {
+        assertSameJson(new LinkedHashMap<String, String>(), "tag", "sha1", "");
+    }
+
+    @Test
+    public void randomStrings() throws Exception {
+        Random random = new Random(17);
+        for (int i = 0; i < 5000; ++i) {
+            Map<String, String> data = new LinkedHashMap<String, String>();
+            for (int j = random.nextInt(5); j > 0; --j) {
+                data.put(randomString(random), randomString(random));
+            }
+            assertSameJson(data, randomString(random), randomString(random), randomString(random));
+        }
+    }
+
+    @Test
+    public void loneSurrogatesAreWrittenAsQuestionMarks() throws Exception {
+        Map<String, String> data = new LinkedHashMap<String, String>();
+        data.put("{a}", "x\ud800y\udc00z\ud83d");
+        String json = new String(SonicJsonWriter.write(data, "t", "h", ""), "UTF-8");
+        assertEquals("{\"data\":{\"{a}\":\"x?y?z?\"},\"template-tag\":\"t\",\"html-sha1\":\"h\",\"diff\":\"\"}", json);
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks which templates are dropped once the cache is full.
+ */
+public class SonicTemplateCacheTest {
+
+    private static TemplateReplace layout(int page) {
+        TemplateReplace layout = new TemplateReplace();
+        layout.scan("<html><title>page " + page + "</title><!--sonicdiff-a-->data<!--sonicdiff-a-end--></html>",
+                SonicPatterns.DEFAULT);
+        return layout;
+    }
+
+    @Test
+    public void leastRecentlyUsedAreDropped() {
+        SonicTemplateCache cache = new SonicTemplateCache(16);
+        for (int page = 0; page < 16; ++page) {
+            cache.put("/" + page, layout(page), "tag" + page);
+        }
+        // used after the others, so the oldest ones go first
+        assertEquals("tag0", cache.getTemplateTag("/0", layout(0)));
+        for (int page = 16; page < 20; ++page) {
+            cache.put("/" + page, layout(page), "tag" + page);
+        }
+        assertEquals("tag0", cache.getTemplateTag("/0", layout(0)));
+        assertNull(cache.getTemplateTag("/1", layout(1)));
+        assertNull(cache.getTemplateTag("/2", layout(2)));
+        for (int page = 5; page < 20; ++page) {
+            assertEquals("tag" + page, cache.getTemplateTag("/" + page, layout(page)));
+        }
+    }
+}
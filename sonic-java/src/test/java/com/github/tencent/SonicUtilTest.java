@@ -0,0 +1,98 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SonicUtilTest {
+
+    /**
+     * the hex SonicUtil built before, with Integer.toHexString
+     */
+    private static String oldHex(byte[] arr) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < arr.length; ++i) {
+            sb.append(Integer.toHexString((arr[i] & 0xFF) | 0x100).substring(1, 3));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void hexIsTheSameAsBefore() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) i;
+        }
+        assertEquals(oldHex(bytes), SonicUtil.hex(bytes));
+        assertEquals("", SonicUtil.hex(new byte[0]));
+    }
+
+    @Test
+    public void encryptIsTheSameAsBefore() throws Exception {
+        Random random = new Random(6);
+        for (int size : new int[] {1, 100, SonicChunkedBuffer.SLAB_SIZE, 3 * SonicChunkedBuffer.SLAB_SIZE + 7}) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            bytes[0] = 'x';
+            String expected = oldHex(MessageDigest.getInstance("sha-1").digest(bytes));
+            assertEquals(expected, SonicUtil.encrypt(bytes, "sha-1"));
+
+            SonicChunkedBuffer buffer = new SonicChunkedBuffer();
+            buffer.write(bytes, 0, bytes.length);
+            assertEquals(expected, SonicUtil.encrypt(buffer, "sha-1"));
+            buffer.release();
+        }
+        assertEquals(oldHex(MessageDigest.getInstance("sha-1").digest("声速".getBytes("UTF-8"))),
+                SonicUtil.encrypt("声速", "sha-1"));
+        assertEquals("", SonicUtil.encrypt(" \n", "sha-1"));
+    }
+
+    @Test
+    public void unknownAlgorithmFailsThePage() {
+        SonicChunkedBuffer buffer = new SonicChunkedBuffer();
+        buffer.write('x');
+        try {
+            SonicUtil.encrypt(buffer, "no-such-digest");
+            fail();
+        } catch (IllegalStateException expected) {
+            // the filter sends the page the plain way
+        } finally {
+            buffer.release();
+        }
+        try {
+            SonicUtil.encrypt("x", "no-such-digest");
+            fail();
+        } catch (IllegalStateException expected) {
+            // same as the buffer
+        }
+        try {
+            SonicUtil.encrypt(new byte[] {'x'}, "no-such-digest");
+            fail();
+        } catch (IllegalStateException expected) {
+            // same as the buffer
+        }
+    }
+
+    @Test
+    public void borrowedDigestsAreNotShared() throws Exception {
+        MessageDigest first = SonicUtil.borrowDigest("sha-1");
+        MessageDigest second = SonicUtil.borrowDigest("SHA-1");
+        assertNotSame(first, second);
+        first.update((byte) 'x');
+        assertEquals(SonicUtil.encrypt("y", "sha-1"), SonicUtil.hex(second.digest(new byte[] {'y'})));
+        assertNotSame(first, SonicUtil.getDigest("sha-1"));
+        SonicUtil.releaseDigest("sha-1", first);
+        SonicUtil.releaseDigest("sha-1", second);
+        // given back, and reset when borrowed again
+        MessageDigest again = SonicUtil.borrowDigest("sha-1");
+        assertTrue(again == first || again == second);
+        assertEquals(SonicUtil.encrypt("y", "sha-1"), SonicUtil.hex(again.digest(new byte[] {'y'})));
+        SonicUtil.releaseDigest("sha-1", again);
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.tencent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Many threads split different pages through one filter, each response must be the one a single thread gets
+ * for the same page: no TemplateReplace state may leak from one request to another.
+ */
+public class TemplateReplaceConcurrencyTest {
+
+    private static final int THREADS = 64;
+
+    private static final int REQUESTS_PER_THREAD = 200;
+
+    private static final int PAGE_COUNT = 16;
+
+    private static final int DATA_VARIANTS = 4;
+
+    /**
+     * a page of uri with its own template, blocks and data variant
+     */
+    static String page(int pageIndex, int variant) {
+        StringBuilder page = new StringBuilder();
+        page.append("<html><head><meta charset=\"utf-8\">");
+        page.append("<title>page ").append(pageIndex).append(" v").append(variant).append("</title>");
+        page.append("<link rel=\"stylesheet\" href=\"/p").append(pageIndex).append(".css\"></head><body>\n");
+        for (int block = 0; block <= pageIndex % 5; ++block) {
+            page.append("<div class=\"static").append(block).append("\">header ").append(pageIndex).append("</div>\n");
+            String tag = block == 3 ? "" : "-b" + block;
+            page.append("<!--sonicdiff").append(tag).append("-->");
+            page.append("<p>data ").append(block).append(" of ").append(pageIndex).append(" v").append(variant)
+                    .append(" 声速</p>");
+            page.append("<!--sonicdiff").append(tag).append("-end-->\n");
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+
+    private static String uri(int pageIndex) {
+        return "/page/" + pageIndex;
+    }
+
+    /**
+     * @return response of filter to a sonic request for the page holding templateTag, "" for none
+     */
+    private static FakeHttpServletResponse request(SonicFilter filter, ServletContext context, int pageIndex,
+                                                   int variant, String templateTag) throws Exception {
+        FakeHttpServletRequest request = FakeHttpServletRequest.sonic(uri(pageIndex), context);
+        if (templateTag.length() > 0) {
+            request.header("template-tag", templateTag);
+        }
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        filter.doFilter(request, response, Fakes.page(page(pageIndex, variant)));
+        return response;
+    }
+
+    private static Expected[][] runSingleThreaded() throws Exception {
+        SonicFilter filter = Fakes.filter();
+        ServletContext context = Fakes.servletContext();
+        Expected[][] expected = new Expected[PAGE_COUNT][DATA_VARIANTS];
+        for (int pageIndex = 0; pageIndex < PAGE_COUNT; ++pageIndex) {
+            for (int variant = 0; variant < DATA_VARIANTS; ++variant) {
+                String templateTag = request(filter, context, pageIndex, variant, "").getHeader("template-tag");
+                FakeHttpServletResponse response = request(filter, context, pageIndex, variant, templateTag);
+                assertEquals("false", response.getHeader("template-change"));
+                expected[pageIndex][variant] = new Expected(templateTag, parse(response));
+            }
+        }
+        filter.destroy();
+        return expected;
+    }
+
+    private static JsonObject parse(FakeHttpServletResponse response) throws Exception {
+        return new JsonParser().parse(response.getBodyString()).getAsJsonObject();
+    }
+
+    private void runConcurrently(final SonicFilter filter) throws Exception {
+        final Expected[][] expected = runSingleThreaded();
+        // templates and data differ between pages
+        for (int pageIndex = 1; pageIndex < PAGE_COUNT; ++pageIndex) {
+            assertTrue(!expected[pageIndex][0].templateTag.equals(expected[pageIndex - 1][0].templateTag));
+            assertEquals(expected[pageIndex][0].templateTag, expected[pageIndex][1].templateTag);
+        }
+
+        final ServletContext context = Fakes.servletContext();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int thread = 0; thread < THREADS; ++thread) {
+            final Random random = new Random(thread);
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    int checked = 0;
+                    for (int i = 0; i < REQUESTS_PER_THREAD; ++i) {
+                        int pageIndex = random.nextInt(PAGE_COUNT);
+                        int variant = random.nextInt(DATA_VARIANTS);
+                        Expected page = expected[pageIndex][variant];
+                        boolean withTag = random.nextInt(4) != 0;
+                        FakeHttpServletResponse response = request(filter, context, pageIndex, variant,
+                                withTag ? page.templateTag : "");
+                        String where = uri(pageIndex) + " v" + variant;
+                        assertEquals(where, page.templateTag, response.getHeader("template-tag"));
+                        if (withTag) {
+                            assertEquals(where, "false", response.getHeader("template-change"));
+                            assertEquals(where, page.response, parse(response));
+                        } else {
+                            assertEquals(where, "true", response.getHeader("template-change"));
+                            assertEquals(where, page(pageIndex, variant), response.getBodyString());
+                        }
+                        ++checked;
+                    }
+                    return checked;
+                }
+            }));
+        }
+        start.countDown();
+        int checked = 0;
+        try {
+            for (Future<Integer> result : results) {
+                checked += result.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+            filter.destroy();
+        }
+        assertEquals(THREADS * REQUESTS_PER_THREAD, checked);
+    }
+
+    @Test
+    public void defaultMode() throws Exception {
+        runConcurrently(Fakes.filter());
+    }
+
+    @Test
+    public void defaultModeWithTemplateCache() throws Exception {
+        runConcurrently(Fakes.filter(SonicFilter.INIT_PARAM_TEMPLATE_CACHE_SIZE, "8",
+                SonicFilter.INIT_PARAM_TEMPLATE_HISTORY, "2"));
+    }
+
+    @Test
+    public void streamingMode() throws Exception {
+        runConcurrently(Fakes.filter(SonicFilter.INIT_PARAM_STREAMING, "true",
+                SonicFilter.INIT_PARAM_TEMPLATE_HISTORY, "2"));
+    }
+
+    private static class Expected {
+
+        final String templateTag;
+
+        /**
+         * the json sent when the template is not changed
+         */
+        final JsonObject response;
+
+        Expected(String templateTag, JsonObject response) {
+            this.templateTag = templateTag;
+            this.response = response;
+        }
+    }
+}